@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// One assignment of an update's set list, column = expression. The expression is a literal, a
+// column of the table or arithmetic over them (+ - * / and parentheses), evaluated against the
+// row as it was before the update, so "set a = b, b = a" swaps two columns. Types are checked
+// when it is parsed: arithmetic takes numbers, and the result must fit the column's type.
+public class Assignment {
+    private static final Pattern TOKEN = Pattern.compile("\\s*(\"[^\"]*\"|\\d+\\.\\d+|\\d+|[A-Za-z_][\\w.]*|[-+*/()])");
+
+    private final int column;
+    private final Attribute attribute;
+    private final Expression expression;
+
+    private Assignment(int column, Attribute attribute, Expression expression) {
+        this.column = column;
+        this.attribute = attribute;
+        this.expression = expression;
+    }
+
+    // Parses "column = expression" for the table. Prints the error and returns null if it isn't valid.
+    public static Assignment parse(String text, Table table) {
+        String[] sides = text.split("=", 2);
+        if (sides.length != 2 || sides[1].isBlank()) {
+            System.err.println("Invalid assignment: " + text.trim());
+            return null;
+        }
+        Attribute[] attributes = table.getAttributes();
+        int column = findColumn(sides[0].trim(), table);
+        if (column == -1) {
+            System.err.println("Column not found: " + sides[0].trim());
+            return null;
+        }
+        Attribute attr = attributes[column];
+
+        List<String> tokens = tokenize(sides[1]);
+        Expression expression = null;
+        if (tokens != null) {
+            Parser parser = new Parser(tokens, table, attr);
+            expression = parser.expression();
+            if (expression != null && parser.position < tokens.size()) {
+                expression = null; // Something left after a whole expression
+            }
+        }
+        if (expression == null) {
+            System.err.println("Invalid expression for " + attr.getName() + ": " + sides[1].trim());
+            return null;
+        }
+
+        String type = typeOf(attr);
+        String result = expression.type();
+        boolean fits = result.equals("null") || result.equals(type) || (type.equals("double") && result.equals("integer"));
+        if (!fits) {
+            System.err.println("Invalid value for attribute type: " + attr.getType());
+            return null;
+        }
+        return new Assignment(column, attr, expression);
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public Attribute getAttribute() {
+        return attribute;
+    }
+
+    // Flags the columns the expression reads
+    public void markReadColumns(boolean[] columns) {
+        expression.markReadColumns(columns);
+    }
+
+    // The new value of the column for a row, as a value of the column's type
+    public Object evaluate(List<Object> row) {
+        Object value = expression.evaluate(row);
+        if (value instanceof Integer number && typeOf(attribute).equals("double")) {
+            return number.doubleValue();
+        }
+        return value;
+    }
+
+    // Matches the column the way the target of the old single assignment was matched, by name
+    // ignoring case, with or without the table name in front
+    private static int findColumn(String name, Table table) {
+        String prefix = table.getName() + ".";
+        if (name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            name = name.substring(prefix.length());
+        }
+        Attribute[] attributes = table.getAttributes();
+        for (int i = 0; i < attributes.length; i++) {
+            if (attributes[i].getName().equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Type of an attribute's values: integer, double, boolean or string
+    private static String typeOf(Attribute attr) {
+        switch (attr.getType().toLowerCase()) {
+            case "integer":
+            case "double":
+            case "boolean":
+                return attr.getType().toLowerCase();
+            default:
+                return "string";
+        }
+    }
+
+    // Null if something in the text is not a token
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(text);
+        int position = 0;
+        while (position < text.length()) {
+            if (text.substring(position).isBlank()) {
+                break;
+            }
+            matcher.region(position, text.length());
+            if (!matcher.lookingAt()) {
+                return null;
+            }
+            tokens.add(matcher.group(1));
+            position = matcher.end();
+        }
+        return tokens;
+    }
+
+    private interface Expression {
+        Object evaluate(List<Object> row);
+
+        String type(); // integer, double, boolean, string or null
+
+        default void markReadColumns(boolean[] columns) {
+        }
+    }
+
+    private record Literal(Object value, String type) implements Expression {
+        public Object evaluate(List<Object> row) {
+            return value;
+        }
+    }
+
+    private record ColumnValue(int index, String type) implements Expression {
+        public Object evaluate(List<Object> row) {
+            return row.get(index);
+        }
+
+        public void markReadColumns(boolean[] columns) {
+            columns[index] = true;
+        }
+    }
+
+    // Null if either side is null. Integers stay integers unless one side is a double, and a
+    // division by zero gives null.
+    private record Arithmetic(char operator, Expression left, Expression right) implements Expression {
+        public Object evaluate(List<Object> row) {
+            Object a = left.evaluate(row);
+            Object b = right.evaluate(row);
+            if (a == null || b == null) {
+                return null;
+            }
+            if (a instanceof Integer x && b instanceof Integer y) {
+                switch (operator) {
+                    case '+': return x + y;
+                    case '-': return x - y;
+                    case '*': return x * y;
+                    default: return y == 0 ? null : x / y;
+                }
+            }
+            double x = ((Number) a).doubleValue();
+            double y = ((Number) b).doubleValue();
+            switch (operator) {
+                case '+': return x + y;
+                case '-': return x - y;
+                case '*': return x * y;
+                default: return y == 0 ? null : x / y;
+            }
+        }
+
+        public String type() {
+            String a = left.type();
+            String b = right.type();
+            if (a.equals("null") || b.equals("null")) {
+                return "null";
+            }
+            return a.equals("double") || b.equals("double") ? "double" : "integer";
+        }
+
+        public void markReadColumns(boolean[] columns) {
+            left.markReadColumns(columns);
+            right.markReadColumns(columns);
+        }
+    }
+
+    // Recursive descent over the tokens, * and / bind tighter than + and -. Returns null on a
+    // syntax or type error.
+    private static class Parser {
+        private final List<String> tokens;
+        private final Table table;
+        private final Attribute target;
+        private int position;
+
+        Parser(List<String> tokens, Table table, Attribute target) {
+            this.tokens = tokens;
+            this.table = table;
+            this.target = target;
+        }
+
+        Expression expression() {
+            Expression left = term();
+            while (left != null && (peek("+") || peek("-"))) {
+                char operator = tokens.get(position++).charAt(0);
+                left = arithmetic(operator, left, term());
+            }
+            return left;
+        }
+
+        private Expression term() {
+            Expression left = factor();
+            while (left != null && (peek("*") || peek("/"))) {
+                char operator = tokens.get(position++).charAt(0);
+                left = arithmetic(operator, left, factor());
+            }
+            return left;
+        }
+
+        private Expression factor() {
+            if (position >= tokens.size()) {
+                return null;
+            }
+            String token = tokens.get(position++);
+            if (token.equals("(")) {
+                Expression inner = expression();
+                if (inner == null || !peek(")")) {
+                    return null;
+                }
+                position++;
+                return inner;
+            }
+            if (token.equals("-")) {
+                Expression operand = factor();
+                if (operand instanceof Literal literal && literal.value() instanceof Integer number) {
+                    return new Literal(-number, "integer");
+                }
+                if (operand instanceof Literal literal && literal.value() instanceof Double number) {
+                    return new Literal(-number, "double");
+                }
+                return arithmetic('-', new Literal(0, "integer"), operand);
+            }
+            if (token.startsWith("\"")) {
+                return new Literal(token.substring(1, token.length() - 1), "string");
+            }
+            if (Character.isDigit(token.charAt(0))) {
+                try {
+                    return token.contains(".") ? new Literal(Double.parseDouble(token), "double")
+                                               : new Literal(Integer.parseInt(token), "integer");
+                } catch (NumberFormatException e) {
+                    return null; // Too large for an integer
+                }
+            }
+            if (token.equalsIgnoreCase("null")) {
+                return new Literal(null, "null");
+            }
+            if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+                return new Literal(Boolean.parseBoolean(token), "boolean");
+            }
+            if (!Character.isLetter(token.charAt(0)) && token.charAt(0) != '_') {
+                return null;
+            }
+            int column = findColumn(token, table);
+            if (column != -1) {
+                return new ColumnValue(column, typeOf(table.getAttributes()[column]));
+            }
+            // A bare word alone is a string, as the old single assignment took it
+            if (tokens.size() == 1 && typeOf(target).equals("string")) {
+                return new Literal(token, "string");
+            }
+            return null;
+        }
+
+        private Expression arithmetic(char operator, Expression left, Expression right) {
+            if (right == null || !isNumeric(left.type()) || !isNumeric(right.type())) {
+                return null;
+            }
+            return new Arithmetic(operator, left, right);
+        }
+
+        private static boolean isNumeric(String type) {
+            return type.equals("integer") || type.equals("double") || type.equals("null");
+        }
+
+        private boolean peek(String token) {
+            return position < tokens.size() && tokens.get(position).equals(token);
+        }
+    }
+}
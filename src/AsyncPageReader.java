@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Reads pages of the table files without blocking the caller. Each read is handed to an
+// AsynchronousFileChannel and the page is decoded on the I/O thread that finished it, so up to
+// IO_THREADS reads are in flight at once and decoding overlaps with the reads still running.
+// The pages are not put in the buffer here, the buffer is only touched by the thread running
+// statements (see StorageManager.getPage).
+public class AsyncPageReader {
+    private static final int IO_THREADS = 8;
+
+    private final Catalog catalog;
+    private final ExecutorService ioThreads;
+    private final Map<Integer, AsynchronousFileChannel> channels = new HashMap<>(); // By table
+
+    public AsyncPageReader(Catalog catalog) {
+        this.catalog = catalog;
+        this.ioThreads = Executors.newFixedThreadPool(IO_THREADS, task -> {
+            Thread thread = new Thread(task, "page-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Reads the page stored in a slot of the table file. The future fails if it can't be read.
+    public CompletableFuture<Page> read(Table table, int pageId, int slot) {
+        CompletableFuture<Page> future = new CompletableFuture<>();
+        AsynchronousFileChannel channel;
+        try {
+            channel = getChannel(table.getTableID());
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(Main.getPageSize());
+        long position = Integer.BYTES + ((long) slot * Main.getPageSize());
+        channel.read(data, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read < 0) {
+                    future.completeExceptionally(new IOException("End of file reading page " + pageId));
+                } else if (data.hasRemaining()) {
+                    channel.read(data, position + data.position(), null, this); // Short read, go on
+                } else {
+                    try {
+                        future.complete(Page.fromBinary(data.array(), table.getTableID(), pageId, catalog));
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // Closes the file of a table, used when the table is dropped
+    public void close(int tableId) {
+        AsynchronousFileChannel channel = channels.remove(tableId);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing file of table " + tableId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private AsynchronousFileChannel getChannel(int tableId) throws IOException {
+        AsynchronousFileChannel channel = channels.get(tableId);
+        if (channel == null || !channel.isOpen()) {
+            Path path = Path.of(Main.getDBLocation() + "tables/" + tableId + ".bin");
+            channel = AsynchronousFileChannel.open(path, Set.of(StandardOpenOption.READ), ioThreads);
+            channels.put(tableId, channel);
+        }
+        return channel;
+    }
+}
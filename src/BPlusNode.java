@@ -1,746 +1,494 @@
-import java.util.ArrayList;
-import java.nio.ByteBuffer;
-import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
+// A node of a B+ tree, stored as one page of the table's index file and read into the page
+// buffer when the tree needs it. Nodes refer to each other by page number: an internal node
+// holds the pages of its children, a leaf the page of the leaf after it. A leaf maps each of
+// its keys to the (table file slot, record slot) of the key's record, see Page.
 public class BPlusNode {
-    private boolean isLeaf;
-    private boolean isRoot;
-    private Attribute attr;
-    private int tableID;
-    private int pageID;
-    private int order;
-    private LinkedList<Object> keys;
-    private LinkedList<BPlusNode> children;
-    private LinkedList<Pair<Integer, Integer>> pointers;
-    private BPlusNode parent;
-    private BPlusNode nextLeaf;
-
-    public BPlusNode(int order, boolean isRoot, int tableID, Attribute attr) {
-        this.order = order;
-        this.isRoot = isRoot;
-        this.isLeaf = true;
-        this.tableID = tableID;
-        Table table = Main.getCatalog().getTable(tableID);
-        ArrayList<Integer> freeSpaces = table.getFreeSpaces();
-        if (freeSpaces.size() > 0)
-            this.pageID = freeSpaces.remove(0);
-        else
-            this.pageID = table.getNumNodes();
-        table.addTreeNode();
-        this.parent = null;
-        this.attr = attr;
-        this.children = new LinkedList<BPlusNode>();
-        this.keys = new LinkedList<>();
-        this.pointers = new LinkedList<>();
-    }
-
-    // If this works I might be the actual GOAT
-    public boolean insert(Record record, Object searchKey, int pointer, boolean intoInternal) {
-        if (isLeaf || intoInternal) {
-            for (int i = 0; i < keys.size(); i++) {
-                Object key = keys.get(i);
-                if (key != null) {
-                    int cmp = compare(searchKey, key);
-    
-                    if (cmp == 0) {
-                        System.err.println("Duplicate primary key, insert cancelled.");
-                        return false;
-                    }
-    
-                    if (cmp < 0) {
-                        keys.add(i, searchKey);
-                        System.out.println(searchKey + " < " + key);
-    
-                        if (isLeaf) {
-                            Pair<Integer, Integer> nextPointer = pointers.get(i);
-    
-                            Page page = Main.getStorageManager().getPage(tableID, nextPointer.getPageNumber());
-                            
-                            // Defensive adjustment for shift
-                            int insertIndex = Math.min(nextPointer.getIndex(), page.getRecordCount());
-                            page.shiftRecordsAndAdd(record, insertIndex);
-    
-                            // Maintain correct pointer size
-                            pointers.add(i + 1, new Pair<>(nextPointer.pageNumber, nextPointer.index + 1));
-                            pointers.set(i, new Pair<>(nextPointer.pageNumber, nextPointer.index));
-    
-                            if (pointers.size() >= i + 2) {
-                                incrementPointerIndexes(nextPointer.getPageNumber(), i + 2);
-                            }
-    
-                            // Propagate pointer updates to right siblings
-                            BPlusNode rightNeighbor = getRightSibling();
-                            while (rightNeighbor != null) {
-                                if (!rightNeighbor.incrementPointerIndexes(nextPointer.getPageNumber(), 0)) {
-                                    rightNeighbor = rightNeighbor.getRightSibling();
-                                } else break;
-                            }
-    
-    
-                            if (page.isOverfull()) {
-                                SplitResult splitResult = Main.getStorageManager().splitPage(page);
-    
-                                Attribute[] attrs = Main.getCatalog().getTable(tableID).getAttributes();
-                                Object firstVal = splitResult.firstRecord.getAttributeValue(attr.getName(), attrs);
-    
-                                keys.add(i + 1, firstVal);
-                                pointers.add(i + 2, new Pair<>(splitResult.newPageId, splitResult.firstIndex));
-    
-                                int oldPageRecordCount = page.getRecordCount();
-    
-                                // Update pointers inside this node
-                                for (int j = 0; j < pointers.size(); j++) {
-                                    Pair<Integer, Integer> ptr = pointers.get(j);
-                                    if (ptr.getPageNumber() == page.getPageId() && ptr.getIndex() >= oldPageRecordCount) {
-                                        int newIdx = ptr.getIndex() - oldPageRecordCount;
-                                        pointers.set(j, new Pair<>(splitResult.newPageId, newIdx));
-                                    }
-                                }
-    
-                                // Propagate to neighbors
-                                BPlusNode neighbor = getLeftSiblingInclusive();
-                                while (neighbor != null) {
-                                    for (int j = 0; j < neighbor.pointers.size(); j++) {
-                                        Pair<Integer, Integer> ptr = neighbor.pointers.get(j);
-                                        if (ptr.getPageNumber() == page.getPageId() && ptr.getIndex() >= oldPageRecordCount) {
-                                            int newIdx = ptr.getIndex() - oldPageRecordCount;
-                                            neighbor.pointers.set(j, new Pair<>(splitResult.newPageId, newIdx));
-                                        }
-                                    }
-                                    neighbor = neighbor.getRightSiblingInclusive();
-                                }
-                            }
-                        }
-    
-                        System.out.println("Inserted: " + searchKey);
-                        return true;
-                    }
-                }
-            }
-    
-            // Insert at the end of the node
-            System.out.println("End of node, inserting: " + searchKey);
-            keys.add(searchKey);
-    
-            if (isLeaf) {
-                if (pointers.isEmpty()) {
-                    Page newPage = new Page(0, tableID, true);
-                    newPage.addRecord(record);
-                    Main.getCatalog().getTable(tableID).addPage(newPage);
-            
-                    // First insert: add pointers for the record and next position
-                    pointers.add(new Pair<>(0, 0));
-                    pointers.add(new Pair<>(0, 1));
-                } else {
-                    Pair<Integer, Integer> lastPointer = pointers.getLast();
-                    Page page = Main.getStorageManager().getPage(tableID, lastPointer.getPageNumber());
-                    page.addRecord(record);
-            
-                    // Add new pointer for the inserted record
-                    pointers.add(new Pair<>(lastPointer.getPageNumber(), lastPointer.getIndex() + 1));
-                    
-
-                    if (page.isOverfull()) {
-                        SplitResult splitResult = Main.getStorageManager().splitPage(page);
-
-                        System.out.println(" Splitting (end-insert) — pageId=" + page.getPageId() +
-                                          ", newPageId=" + splitResult.newPageId +
-                                          ", firstRec=" + splitResult.firstRecord.getData());
-
-                        Attribute[] attrs = Main.getCatalog().getTable(tableID).getAttributes();
-                        Object firstVal = splitResult.firstRecord.getAttributeValue(attr.getName(), attrs);
-
-                        keys.add(firstVal);
-                        pointers.add(new Pair<>(splitResult.newPageId, splitResult.firstIndex));
-
-                        int oldPageRecordCount = page.getRecordCount();
-
-                        // Update pointers inside this node
-                        for (int j = 0; j < pointers.size(); j++) {
-                            Pair<Integer, Integer> ptr = pointers.get(j);
-                            if (ptr.getPageNumber() == page.getPageId() && ptr.getIndex() >= oldPageRecordCount) {
-                                int newIdx = ptr.getIndex() - oldPageRecordCount;
-                                pointers.set(j, new Pair<>(splitResult.newPageId, newIdx));
-                            }
-                        }
-
-                        // Propagate to neighbors
-                        BPlusNode neighbor = getLeftSiblingInclusive();
-                        while (neighbor != null && neighbor != this) {
-                            for (int j = 0; j < neighbor.pointers.size(); j++) {
-                                Pair<Integer, Integer> ptr = neighbor.pointers.get(j);
-                                if (ptr.getPageNumber() == page.getPageId() && ptr.getIndex() >= oldPageRecordCount) {
-                                    int newIdx = ptr.getIndex() - oldPageRecordCount;
-                                    neighbor.pointers.set(j, new Pair<>(splitResult.newPageId, newIdx));
-                                }
-                            }
-                            neighbor = neighbor.getRightSiblingInclusive();
-                        }
-            
-                        // Debug pointers
-                        System.out.println("After split: keys=" + keys + ", pointers=" + pointers);
-                    }
-                }
-            }
-    
-            // Handle node splitting
-            System.out.println("ORDER: " + order);
-            if (keys.size() == order) {
-                int splitIndex = (int) Math.ceil(order / 2.0);
-                Object splitKey = keys.get(splitIndex);
-    
-                BPlusNode leftNode = new BPlusNode(order, this.isLeaf, tableID, attr);
-                BPlusNode rightNode = new BPlusNode(order, this.isLeaf, tableID, attr);  
-                
-                System.out.println("splitting");
-
-                leftNode.parent = parent;
-                rightNode.parent = parent;
-    
-                // Distribute keys and pointers properly
-                LinkedList<Object> leftKeys = new LinkedList<>(keys.subList(0, splitIndex));
-                LinkedList<Object> rightKeys = new LinkedList<>(keys.subList(splitIndex, keys.size()));
-                LinkedList<Pair<Integer, Integer>> leftPointers = new LinkedList<>(pointers.subList(0, splitIndex + 1)); // ✅ +1
-                LinkedList<Pair<Integer, Integer>> rightPointers = new LinkedList<>(pointers.subList(splitIndex + 1, pointers.size()));
-    
-                leftNode.keys = leftKeys;
-                leftNode.pointers = leftPointers;
-                rightNode.keys = rightKeys;
-                rightNode.pointers = rightPointers;
-    
-                // Link leaf nodes if it's a leaf split
-                if (isLeaf) {
-                    leftNode.isLeaf = true;
-                    rightNode.isLeaf = true;
-                    
-                    // Set leaf linkage
-                    System.out.println("Setting next leaf...");
-                    leftNode.setNextLeaf(rightNode);
-                    rightNode.setNextLeaf(this.getNextLeaf()); // preserve chain
-                }
-
-                if (isRoot) {
-                    keys = new LinkedList<>();
-                    insert(record, splitKey, pointer, true);
-                    leftNode.parent = this;
-                    rightNode.parent = this;
-    
-                    if (intoInternal) rightNode.keys.remove(splitKey);
-    
-                    children.add(leftNode);
-                    children.add(rightNode);
-                    pointers = new LinkedList<>();
-                    pointers.add(new Pair<>(leftNode.pageID, -1));
-                    pointers.add(new Pair<>(rightNode.pageID, -1));
-                    isLeaf = false;
-                } else {
-                    if (intoInternal) rightNode.keys.remove(splitKey);
-    
-                    parent.children.add(leftNode);
-                    parent.children.add(rightNode);
-                    parent.pointers.add(new Pair<>(leftNode.pageID, -1));
-                    parent.pointers.add(new Pair<>(rightNode.pageID, -1));
-                    parent.insert(record, splitKey, 0, true);
-    
-                    parent.pointers.remove(parent.children.indexOf(this));
-                    parent.children.remove(this);
-                    Main.getCatalog().getTable(tableID).deleteTreeNode();
-                }
-            }
+    // Leaf flag, key count and next leaf, then the entries: in a leaf each key followed by the
+    // slots of its record, in an internal node the first child followed by (key, child)
+    static final int HEADER_SIZE = 1 + 2 * Integer.BYTES;
+    static final int NO_PAGE = -1;
+
+    private final BPlusTree tree;
+    private final int pageNumber;
+    private final boolean isLeaf;
+    // Sized for the order of the tree, a node holds that many keys only until it is split
+    private final Keys keys;
+    private int keyCount;
+    private int[] children; // keyCount + 1 of them, internal nodes only
+    private long[] recordIds; // (table file slot, record slot) of each key's record packed in a long, leaves only
+    private int nextLeaf;
+    private boolean updated; // Changed since it was last written to the index file
+
+    public BPlusNode(BPlusTree tree, int pageNumber, boolean isLeaf) {
+        this.tree = tree;
+        this.pageNumber = pageNumber;
+        this.isLeaf = isLeaf;
+        this.keys = Keys.create(tree, tree.getOrder());
+        if (isLeaf) {
+            this.recordIds = new long[tree.getOrder()];
         } else {
-            return search(searchKey).insert(record, searchKey, pointer, false);
-        }
-    
-        return true;
-    }    
-
-    // Increments the index of all pointers starting from the given index
-    // if their page number matches the specified page number.
-    public boolean incrementPointerIndexes(int pageNum, int indexInPointerList) {
-        for (int i = indexInPointerList; i < pointers.size(); i++) {
-            Pair<Integer, Integer> pointer = pointers.get(i);
-    
-            if (pointer.getPageNumber() == pageNum) {
-                pointers.set(i, new Pair<>(pointer.getPageNumber(), pointer.getIndex() + 1));
-            } else {
-                return true; // Stop early if a different page is encountered
-            }
+            this.children = new int[tree.getOrder() + 1];
         }
-        return false; // All matching page numbers were updated
+        this.nextLeaf = NO_PAGE;
     }
 
-    // Increments pointers for entries that come after a split page.
-    // If a pointer shares the same pageNum and its key is greater than the split key,
-    // update its page number and index.
-    public int incrementPointers(int pageNum, Object searchKey, int newIndex) {
-        int offset = 0;
-        for (int i = 0; i < pointers.size(); i++) {
-            Pair<Integer, Integer> pointer = pointers.get(i);
-            if (pointer.getPageNumber() == pageNum && (i == 0 || compare(keys.get(i - 1), searchKey) > 0)) {
-                pointers.set(i, new Pair<>(pageNum + 1, newIndex + offset));
-                offset++;
-            }
-        }
-        return offset;
+    // Whether the node has to be split: it holds order keys, or a varchar key made it
+    // longer than a page
+    public boolean isFull() {
+        return keyCount >= tree.getOrder() || (tree.hasVariableKeys() && byteSize() > Main.getPageSize());
     }
 
-    // Checks if this node has any pointers that share the given page number.
-    public boolean doesNodeSharePage(int pageNum) {
-        for (Pair<Integer, Integer> pointer : pointers) {
-            if (pointer.getPageNumber() == pageNum) {
-                return true;
-            }
-        }
-        return false;
+    // Position of the key in this node, -(position + 1) if it would go at position
+    public int indexOfKey(Object key) {
+        return keys.search(key, keyCount);
     }
 
-    public Record delete(Object searchKey, boolean intoInternal) {
-        if (isLeaf || intoInternal) {
-            // Locate and remove key
-            int index = keys.indexOf(searchKey);
-            if (index == -1)
-                return null; // Key not found
+    // Page of the child of an internal node the key is or would go under. Keys equal to a
+    // separator are in the subtree right of it.
+    public int childFor(Object key) {
+        int position = indexOfKey(key);
+        return children[position >= 0 ? position + 1 : -(position + 1)];
+    }
 
-            keys.remove(index);
-            Pair<Integer, Integer> pointer = pointers.remove(index);
+    // Adds a key of a leaf with the slots of its record at the given position
+    public void insertEntry(int position, Object key, Pair<Integer, Integer> recordId) {
+        keys.move(position, position + 1, keyCount - position);
+        System.arraycopy(recordIds, position, recordIds, position + 1, keyCount - position);
+        keys.set(position, key);
+        recordIds[position] = pack(recordId);
+        keyCount++;
+    }
 
-            // Remove the record from its page
-            Page page = Main.getStorageManager().getPage(tableID, pointer.getPageNumber());
-            Record record = page.getRecords().get(pointer.getIndex());
-            page.deleteRecord(record, pointer.getIndex());
+    // Removes the key of a leaf at the given position, returns the slots it pointed to
+    public Pair<Integer, Integer> removeEntry(int position) {
+        Pair<Integer, Integer> recordId = getPointer(position);
+        keys.move(position + 1, position, keyCount - position - 1);
+        System.arraycopy(recordIds, position + 1, recordIds, position, keyCount - position - 1);
+        keyCount--;
+        keys.clear(keyCount, keyCount + 1);
+        return recordId;
+    }
 
-            // If the page becomes empty, drop it; otherwise, update it
-            if (page.getRecordCount() == 0) {
-                Main.getCatalog().getTable(tableID).dropPage(page.getPageId());
-            } else {
-                Main.getBuffer().updatePage(page);
-            }
+    // Adds the node split off a child of this internal node, right after the child
+    public void insertChild(int child, Object separator, int rightChild) {
+        int position = indexOfChild(child);
+        keys.move(position, position + 1, keyCount - position);
+        System.arraycopy(children, position + 1, children, position + 2, keyCount - position);
+        keys.set(position, separator);
+        children[position + 1] = rightChild;
+        keyCount++;
+    }
 
-            // Handle underflow: try to borrow or merge
-            if (children.size() > Math.ceil(order / 2.0) || (isRoot && !children.isEmpty())) {
-                if (borrowFrom()) {
-                    return record;
-                }
-                if (isRoot) {
-                    children.get(0).merge();
-                } else {
-                    merge();
-                }
-            }
+    // Removes a child of this internal node with the separator left of it, or right of it for
+    // the first child. Its keys are then under the child before it, or after it.
+    public void removeChild(int child) {
+        int position = indexOfChild(child);
+        int separator = Math.max(0, position - 1);
+        keys.move(separator + 1, separator, keyCount - separator - 1);
+        System.arraycopy(children, position + 1, children, position, keyCount - position);
+        keyCount--;
+        keys.clear(keyCount, keyCount + 1);
+    }
 
-            return record;
-        } else {
-            // Recurse to appropriate child and delete
-            BPlusNode target = search(searchKey);
-            if (target != null) {
-                return target.delete(searchKey, false);
-            }
+    // Position of a child among the children of this internal node
+    public int indexOfChild(int child) {
+        int position = 0;
+        while (children[position] != child) {
+            position++;
         }
-
-        return null;
+        return position;
     }
 
-    public boolean borrowFrom() {
-        BPlusNode toBorrowFrom = null;
-        Object key = null;
+    // Makes this internal node the root above the two halves of a split node
+    public void setChildren(int left, Object separator, int right) {
+        keys.set(0, separator);
+        children[0] = left;
+        children[1] = right;
+        keyCount = 1;
+    }
 
-        // Attempt to find a node to borrow from
-        if (isRoot && !children.isEmpty()) {
-            toBorrowFrom = children.get(children.size() - 1);
-            key = toBorrowFrom.keys.get(0);
-        } else if (parent != null && parent.isRoot) {
-            toBorrowFrom = parent;
-            key = parent.keys.get(0);
-        } else if (getLeftSibling() != null) {
-            toBorrowFrom = getLeftSibling();
-            key = toBorrowFrom.keys.get(toBorrowFrom.keys.size() - 1);
-            toBorrowFrom.isRoot = false;
-        } else if (getRightSibling() != null) {
-            toBorrowFrom = getRightSibling();
-            key = toBorrowFrom.keys.get(0);
+    // Moves the upper half of this node to the given empty node and returns the separator for
+    // the parent. A leaf keeps its keys in one of the halves and links the new leaf after it; an
+    // internal node gives its middle key up to the parent.
+    public Object splitInto(BPlusNode right) {
+        int mid = keyCount / 2;
+        if (isLeaf) {
+            right.keyCount = keyCount - mid;
+            keys.copyTo(right.keys, mid, right.keyCount);
+            System.arraycopy(recordIds, mid, right.recordIds, 0, right.keyCount);
+            keys.clear(mid, keyCount);
+            keyCount = mid;
+            right.nextLeaf = nextLeaf;
+            nextLeaf = right.pageNumber;
+            return right.keys.get(0);
+        }
+        Object separator = keys.get(mid);
+        right.keyCount = keyCount - mid - 1;
+        keys.copyTo(right.keys, mid + 1, right.keyCount);
+        System.arraycopy(children, mid + 1, right.children, 0, right.keyCount + 1);
+        keys.clear(mid, keyCount);
+        keyCount = mid;
+        return separator;
+    }
+
+    // Fills an empty leaf, used by bulk loads
+    public void setEntries(List<Object> keys, List<Pair<Integer, Integer>> pointers) {
+        for (int i = 0; i < keys.size(); i++) {
+            this.keys.set(i, keys.get(i));
+            this.recordIds[i] = pack(pointers.get(i));
         }
+        keyCount = keys.size();
+    }
 
-        // If no suitable node found or it's too small to borrow from, fail
-        if (toBorrowFrom == null || toBorrowFrom.keys.size() <= Math.ceil(order / 2.0)) {
-            return false;
+    // Fills an empty internal node, used by bulk loads. There is one key less than children,
+    // the first key of each child but the first.
+    public void setChildren(List<Object> keys, List<Integer> children) {
+        for (int i = 0; i < children.size(); i++) {
+            this.children[i] = children.get(i);
         }
-
-        // Special case for root redistribution
-        if (isRoot) {
-            int keyIndex = toBorrowFrom.keys.indexOf(key);
-            if (keyIndex != -1 && keyIndex < toBorrowFrom.children.size()) {
-                BPlusNode nodeToRedistribute = toBorrowFrom.children.get(keyIndex);
-                toBorrowFrom.children.remove(nodeToRedistribute);
-                int currentIndex = children.indexOf(toBorrowFrom);
-                if (currentIndex > 0) {
-                    children.get(currentIndex - 1).children.add(nodeToRedistribute);
-                }
-            }
+        for (int i = 0; i < keys.size(); i++) {
+            this.keys.set(i, keys.get(i));
         }
+        keyCount = keys.size();
+    }
 
-        // Insert borrowed key into current node
-        insert(null, key, 0, !isLeaf);
-        toBorrowFrom.delete(key, !toBorrowFrom.isLeaf);
-
-        return true;
+    public int getTableID() {
+        return tree.getTableID();
     }
 
-    // Returns the immediate right sibling of this node, if it exists.
-    public BPlusNode getRightSibling() {
-        if (parent == null) return null;
+    public int getPageNumber() {
+        return pageNumber;
+    }
 
-        int index = parent.children.indexOf(this);
-        if (index + 1 < parent.children.size()) {
-            return parent.children.get(index + 1);
-        }
-        return null;
+    public boolean isLeaf() {
+        return isLeaf;
     }
 
-    // Returns the leftmost leaf node of the right sibling subtree.
-    // Recursively ascends if no immediate right sibling is available.
-    public BPlusNode getRightSiblingInclusive() {
-        if (parent == null) return null;
+    public int getKeyCount() {
+        return keyCount;
+    }
 
-        int index = parent.children.indexOf(this);
-        if (index + 1 < parent.children.size()) {
-            return parent.children.get(index + 1).getLeftmostLeaf();
-        }
-        return parent.getRightSiblingInclusive();
+    public Object getKey(int position) {
+        return keys.get(position);
     }
 
-    // Returns the immediate left sibling of this node, if it exists.
-    public BPlusNode getLeftSibling() {
-        if (parent == null) return null;
+    public Pair<Integer, Integer> getPointer(int position) {
+        return new Pair<>(pageOf(recordIds[position]), indexOf(recordIds[position]));
+    }
 
-        int index = parent.children.indexOf(this);
-        if (index > 0) {
-            return parent.children.get(index - 1);
-        }
-        return null;
+    public void setPointer(int position, Pair<Integer, Integer> recordId) {
+        recordIds[position] = pack(recordId);
     }
 
-    // Returns the rightmost leaf node of the left sibling subtree.
-    // Recursively ascends if no immediate left sibling is available.
-    public BPlusNode getLeftSiblingInclusive() {
-        if (parent == null) return null;
+    public int getFirstChild() {
+        return children[0];
+    }
 
-        int index = parent.children.indexOf(this);
-        if (index > 0) {
-            return parent.children.get(index - 1).getRightmostLeaf();
-        }
-        return parent.getLeftSiblingInclusive();
+    public int getChild(int position) {
+        return children[position];
     }
 
-    // Recursively traverses to the leftmost leaf from this node.
-    private BPlusNode getLeftmostLeaf() {
-        BPlusNode current = this;
-        while (!current.isLeaf()) {
-            current = current.children.get(0);
-        }
-        return current;
+    public int getNextLeaf() {
+        return nextLeaf;
     }
 
-    // Recursively traverses to the rightmost leaf from this node.
-    private BPlusNode getRightmostLeaf() {
-        BPlusNode current = this;
-        while (!current.isLeaf()) {
-            current = current.children.get(current.children.size() - 1);
-        }
-        return current;
+    public void setNextLeaf(int nextLeaf) {
+        this.nextLeaf = nextLeaf;
     }
 
-    // Merges this node with its right sibling.
-    public boolean mergeRight() {
-        int index = parent.children.indexOf(this);
-        BPlusNode rightSibling = getRightSibling();
+    public boolean isUpdated() {
+        return updated;
+    }
 
-        if (rightSibling == null) {
-            return false;
-        }
+    public void setUpdated(boolean updated) {
+        this.updated = updated;
+    }
 
-        // Create a new merged node
-        BPlusNode merged = new BPlusNode(order, isRoot, tableID, attr);
+    private static long pack(Pair<Integer, Integer> recordId) {
+        return pack(recordId.getPageNumber(), recordId.getIndex());
+    }
 
-        // Merge keys
-        for (Object key : this.keys) {
-            merged.insert(null, key, 0, true);
-        }
-        for (Object key : rightSibling.keys) {
-            merged.insert(null, key, 0, true);
-        }
+    private static long pack(int page, int index) {
+        return ((long) page << 32) | (index & 0xFFFFFFFFL);
+    }
 
-        // Merge children
-        merged.children.addAll(this.children);
-        merged.children.addAll(rightSibling.children);
-        merged.parent = parent;
+    private static int pageOf(long recordId) {
+        return (int) (recordId >> 32);
+    }
 
-        // Update parent
-        parent.children.remove(this);
-        parent.children.remove(rightSibling);
-        parent.children.add(index, merged);
+    private static int indexOf(long recordId) {
+        return (int) recordId;
+    }
 
-        // If this was the last internal split, promote merged node to root
-        if (parent.children.size() == 1 && parent.isRoot) {
-            merged.isRoot = true;
-            merged.parent = null;
-            merged.isLeaf = false;
-            return true;
+    // Reads the node at a page of the tree's index file
+    public static BPlusNode read(BPlusTree tree, int pageNumber) {
+        byte[] data = new byte[Main.getPageSize()];
+        try (RandomAccessFile file = new RandomAccessFile(BPlusTree.getIndexPath(tree.getTableID()), "r")) {
+            file.seek((long) pageNumber * Main.getPageSize());
+            file.readFully(data);
+        } catch (IOException e) {
+            System.err.println("Error reading index node " + pageNumber + " of table " + tree.getTableID() + ": " + e.getMessage());
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        BPlusNode node = new BPlusNode(tree, pageNumber, buffer.get() == 1);
+        node.keyCount = buffer.getInt();
+        node.nextLeaf = buffer.getInt();
+        if (!node.isLeaf) {
+            node.children[0] = buffer.getInt();
+        }
+        Attribute attr = tree.getAttribute();
+        for (int i = 0; i < node.keyCount; i++) {
+            node.keys.read(buffer, i, attr);
+            if (node.isLeaf) {
+                node.recordIds[i] = pack(buffer.getInt(), buffer.getInt());
+            } else {
+                node.children[i + 1] = buffer.getInt();
+            }
         }
+        return node;
+    }
 
-        // Delete parent separator key that used to separate the two nodes
-        if (index < parent.keys.size()) {
-            parent.delete(parent.keys.get(index), true);
+    // Writes the node to its page of the index file
+    public void write() {
+        ByteBuffer buffer = ByteBuffer.allocate(Main.getPageSize());
+        buffer.put((byte) (isLeaf ? 1 : 0));
+        buffer.putInt(keyCount);
+        buffer.putInt(nextLeaf);
+        if (!isLeaf) {
+            buffer.putInt(children[0]);
+        }
+        Attribute attr = tree.getAttribute();
+        for (int i = 0; i < keyCount; i++) {
+            keys.write(buffer, i, attr);
+            if (isLeaf) {
+                buffer.putInt(pageOf(recordIds[i]));
+                buffer.putInt(indexOf(recordIds[i]));
+            } else {
+                buffer.putInt(children[i + 1]);
+            }
         }
 
-        return true;
+        try (RandomAccessFile file = new RandomAccessFile(BPlusTree.getIndexPath(tree.getTableID()), "rw")) {
+            file.seek((long) pageNumber * Main.getPageSize());
+            file.write(buffer.array());
+            updated = false;
+        } catch (IOException e) {
+            System.err.println("Error writing index node " + pageNumber + " of table " + tree.getTableID() + ": " + e.getMessage());
+        }
     }
 
-    // Merges this node with its left sibling.
-    public boolean mergeLeft() {
-        BPlusNode leftSibling = getLeftSibling();
-        if (leftSibling == null) {
-            return false;
+    // Bytes the node takes in its page, for varchar keys
+    private int byteSize() {
+        int size = HEADER_SIZE + Integer.BYTES;
+        for (int i = 0; i < keyCount; i++) {
+            size += Integer.BYTES + ((String) keys.get(i)).getBytes(StandardCharsets.UTF_8).length + 2 * Integer.BYTES;
         }
+        return size;
+    }
 
-        int index = parent.children.indexOf(leftSibling);
-        BPlusNode merged = new BPlusNode(order, isRoot, tableID, attr);
-
-        // Merge keys
-        for (Object key : leftSibling.keys) {
-            merged.insert(null, key, 0, true);
-        }
-        for (Object key : this.keys) {
-            merged.insert(null, key, 0, true);
+    // Bytes a key of the attribute takes at most, a varchar as long as its size in ASCII
+    public static int maxKeySize(Attribute attr) {
+        switch (attr.getType().toLowerCase()) {
+            case "varchar":
+                return Integer.BYTES + attr.getSize();
+            case "char":
+            case "integer":
+            case "double":
+            case "boolean":
+                return attr.getSize();
+            default:
+                throw new IllegalArgumentException("Unsupported attribute type: " + attr.getType());
         }
+    }
 
-        // Merge children
-        merged.children.addAll(leftSibling.children);
-        merged.children.addAll(this.children);
-        merged.parent = parent;
+    // Keys of a node in ascending order. Integer and double keys are kept in primitive arrays
+    // and searched without boxing, the others as objects compared with the tree's comparator.
+    private abstract static class Keys {
+        static Keys create(BPlusTree tree, int capacity) {
+            switch (tree.getAttribute().getType().toLowerCase()) {
+                case "integer":
+                    return new IntKeys(capacity);
+                case "double":
+                    return new DoubleKeys(capacity);
+                default:
+                    return new ObjectKeys(capacity, tree.getComparator());
+            }
+        }
 
-        // Update parent
-        parent.children.remove(this);
-        parent.children.remove(leftSibling);
-        parent.children.add(index, merged);
+        // Position of the key among the first count, -(position + 1) if it would go at position
+        abstract int search(Object key, int count);
 
-        // Promote merged node to root if needed
-        if (parent.children.size() == 1 && parent.isRoot) {
-            merged.isRoot = true;
-            merged.parent = null;
-            merged.isLeaf = false;
-            return true;
-        }
+        abstract Object get(int position);
 
-        // Delete separator key in parent
-        if (index < parent.keys.size()) {
-            parent.delete(parent.keys.get(index), true);
-        }
+        abstract void set(int position, Object key);
 
-        return true;
-    }
+        // Moves count keys from one position to another, overlapping ranges included
+        abstract void move(int from, int to, int count);
 
-    // merge function
-    public void merge() {
-        if (mergeLeft())
-            return;
-        if (mergeRight())
-            return;
-    }
+        // Copies count keys from a position to the start of another node's keys
+        abstract void copyTo(Keys target, int from, int count);
 
-    public void update(Record record, Object keyToUpdate, Object key) {
-        delete(key, false);
-        insert(record, keyToUpdate, 0, false);
-    }
+        // Lets go of the keys in [from, to), once they are no longer in the node
+        void clear(int from, int to) {
+        }
 
-    public int getPageID() {
-        return pageID;
-    }
+        abstract void read(ByteBuffer buffer, int position, Attribute attr);
 
-    public LinkedList<BPlusNode> getChildren() {
-        return this.children;
+        abstract void write(ByteBuffer buffer, int position, Attribute attr);
     }
 
-    public LinkedList<Object> getKeys() {
-        return this.keys;
-    }
+    private static final class IntKeys extends Keys {
+        private final int[] values;
 
-    public boolean isLeaf() {
-        return this.isLeaf;
-    }
+        IntKeys(int capacity) {
+            values = new int[capacity];
+        }
 
-    // Searches the B+ Tree for the leaf node where the given key would reside.
-    public BPlusNode search(Object key) {
-        if (!isLeaf) {
-            BPlusNode childNode = getChildNodeForKey(key);
-            if (childNode != null) {
-                return childNode.isLeaf ? childNode : childNode.search(key);
-            }
+        int search(Object key, int count) {
+            return Arrays.binarySearch(values, 0, count, (Integer) key);
         }
-        return null; // Should only happen if structure is broken or key is out of bounds
-    }
 
-    // Determines the correct child node for a given key based on the current node's keys.
-    private BPlusNode getChildNodeForKey(Object key) {
-        for (int i = 0; i < keys.size(); i++) {
-            if (i == 0 && compare(key, keys.get(i)) < 0) {
-                // Key is less than the smallest key
-                return children.get(0);
-            }
+        Object get(int position) {
+            return values[position];
+        }
 
-            if (i == keys.size() - 1 && compare(key, keys.get(i)) >= 0) {
-                // Key is greater than or equal to the largest key
-                return children.get(i + 1);
-            }
+        void set(int position, Object key) {
+            values[position] = (Integer) key;
+        }
 
-            if (i > 0 && compare(key, keys.get(i - 1)) >= 0 && compare(key, keys.get(i)) < 0) {
-                // Key falls between keys[i - 1] and keys[i]
-                return children.get(i);
-            }
+        void move(int from, int to, int count) {
+            System.arraycopy(values, from, values, to, count);
         }
 
-        return null; // Fallback case
-    }
+        void copyTo(Keys target, int from, int count) {
+            System.arraycopy(values, from, ((IntKeys) target).values, 0, count);
+        }
 
-    public ArrayList<BPlusNode> getLeafNodes() {
-        ArrayList<BPlusNode> leafNodes = new ArrayList<>();
-        collectLeafNodes(this, leafNodes);
-        return leafNodes;
-    }
+        void read(ByteBuffer buffer, int position, Attribute attr) {
+            values[position] = buffer.getInt();
+        }
 
-    private void collectLeafNodes(BPlusNode node, ArrayList<BPlusNode> leafNodes) {
-        if (node.isLeaf) {
-            leafNodes.add(node);
-        } else {
-            for (BPlusNode child : node.children) {
-                collectLeafNodes(child, leafNodes);
-            }
+        void write(ByteBuffer buffer, int position, Attribute attr) {
+            buffer.putInt(values[position]);
         }
     }
 
-    public void setNextLeaf(BPlusNode nextLeaf) {
-        this.nextLeaf = nextLeaf;
-    }
-    
-    public BPlusNode getNextLeaf() {
-        return this.nextLeaf;
-    }
+    private static final class DoubleKeys extends Keys {
+        private final double[] values;
 
-    public void setKeys(LinkedList<Object> keys) {
-        this.keys = keys;
-    }
-    
-    public void setPointers(LinkedList<Pair<Integer, Integer>> pointers) {
-        this.pointers = pointers;
-    }
-    
-    public void writeToFile() {
-        int estimatedSize = 4 + pointers.size() * 8 + keys.size() * 12;
-        ByteBuffer buffer = ByteBuffer.allocate(Math.max(Main.getPageSize(), estimatedSize));
-        
-        // Defensive check
-        if (pointers.size() != keys.size() + 1) {
-            throw new IllegalStateException("Pointer-key mismatch in node: expected " +
-                (keys.size() + 1) + " pointers but found " + pointers.size());
+        DoubleKeys(int capacity) {
+            values = new double[capacity];
         }
 
-        // Write number of keys
-        buffer.putInt(keys.size());
+        int search(Object key, int count) {
+            return Arrays.binarySearch(values, 0, count, ((Number) key).doubleValue()); // Ordered as Double.compare
+        }
 
-        // Write first pointer
-        Pair<Integer, Integer> pointer = pointers.get(0);
-        buffer.putInt(pointer.getPageNumber());
-        buffer.putInt(pointer.getIndex());
+        Object get(int position) {
+            return values[position];
+        }
 
-        // Write each key and corresponding next pointer
-        for (int i = 0; i < keys.size(); i++) {
-            Object key = keys.get(i);
+        void set(int position, Object key) {
+            values[position] = ((Number) key).doubleValue();
+        }
 
-            switch (attr.getType().toLowerCase()) {
-                case "varchar" -> {
-                    String varcharValue = (String) key;
-                    byte[] varcharBytes = varcharValue.getBytes();
-                    buffer.putInt(varcharBytes.length);
-                    buffer.put(varcharBytes);
-                }
-                case "char" -> {
-                    String charValue = (String) key;
-                    String padded = String.format("%-" + attr.getSize() + "s", charValue);
-                    buffer.put(padded.getBytes());
-                }
-                case "integer" -> buffer.putInt((int) key);
-                case "double" -> buffer.putDouble((double) key);
-                case "boolean" -> buffer.put((byte) ((boolean) key ? 1 : 0));
-                default -> throw new IllegalArgumentException("Unsupported attribute type: " + attr.getType());
-            }
+        void move(int from, int to, int count) {
+            System.arraycopy(values, from, values, to, count);
+        }
 
-            if (i + 1 >= pointers.size()) {
-                System.err.println("Tried to access pointers[" + (i + 1) + "] but size is " + pointers.size());
-            }            
+        void copyTo(Keys target, int from, int count) {
+            System.arraycopy(values, from, ((DoubleKeys) target).values, 0, count);
+        }
 
-            Pair<Integer, Integer> nextPointer = pointers.get(i + 1); // Safe now
-            buffer.putInt(nextPointer.getPageNumber()); // Line 692
-            buffer.putInt(nextPointer.getIndex());
+        void read(ByteBuffer buffer, int position, Attribute attr) {
+            values[position] = buffer.getDouble();
         }
 
-        // Ensure the directory exists
-        String fileName = Main.getDBLocation() + "/BPIndex/" + tableID + ".bin";
-        File file = new File(fileName);
-        File directory = file.getParentFile();
-        if (directory != null && !directory.exists()) {
-            directory.mkdirs(); // ?
+        void write(ByteBuffer buffer, int position, Attribute attr) {
+            buffer.putDouble(values[position]);
         }
+    }
 
-        // Write to file
-        try (RandomAccessFile fileOut = new RandomAccessFile(file, "rw")) {
-            fileOut.seek(pageID * Main.getPageSize());
+    private static final class ObjectKeys extends Keys {
+        private final Object[] values;
+        private final Comparator<Object> comparator;
 
-            System.out.println("Total buffer capacity: " + buffer.capacity());
-            System.out.println("Buffer position before write: " + buffer.position());
+        ObjectKeys(int capacity, Comparator<Object> comparator) {
+            this.values = new Object[capacity];
+            this.comparator = comparator;
+        }
 
-            fileOut.write(buffer.array());
-        } catch (IOException e) {
-            e.printStackTrace();
+        int search(Object key, int count) {
+            return Arrays.binarySearch(values, 0, count, key, comparator);
         }
 
-        // Write children to file
-        for (BPlusNode child : children) {
-            child.writeToFile();
+        Object get(int position) {
+            return values[position];
         }
-    }
-    
-    public void display() {
-        if (this.isRoot) {
-            System.out.print("root: ");
+
+        void set(int position, Object key) {
+            values[position] = key;
         }
-        if (this.isLeaf) {
-            System.out.print("leaf: ");
-        } else {
-            System.out.print("internal: ");
+
+        void move(int from, int to, int count) {
+            System.arraycopy(values, from, values, to, count);
         }
-        for (Object key : this.keys) {
-            System.out.print("| " + key);
+
+        void copyTo(Keys target, int from, int count) {
+            System.arraycopy(values, from, ((ObjectKeys) target).values, 0, count);
         }
 
-        System.out.print(" |\n");
-        for (BPlusNode child : children) {
-            child.display();
+        void clear(int from, int to) {
+            Arrays.fill(values, from, to, null);
         }
-    }
 
-    public int compare(Object insertValue, Object existingValue) { // used for finding where to insert search keys
-        if (attr.getType().equalsIgnoreCase("integer")) {
-            return ((Integer) insertValue).compareTo((Integer) existingValue);
-        } else if (attr.getType().equalsIgnoreCase("double")) {
-            return ((Double) insertValue).compareTo((Double) existingValue);
-        } else {
-            return ((String) insertValue).compareTo((String) existingValue);
+        void read(ByteBuffer buffer, int position, Attribute attr) {
+            switch (attr.getType().toLowerCase()) {
+                case "varchar" -> {
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    values[position] = new String(bytes, StandardCharsets.UTF_8);
+                }
+                case "char" -> {
+                    byte[] bytes = new byte[attr.getSize()];
+                    buffer.get(bytes);
+                    values[position] = new String(bytes, StandardCharsets.UTF_8).trim();
+                }
+                case "boolean" -> values[position] = buffer.get() == 1;
+                default -> throw new IllegalArgumentException("Unsupported attribute type: " + attr.getType());
+            }
+        }
+
+        void write(ByteBuffer buffer, int position, Attribute attr) {
+            Object key = values[position];
+            switch (attr.getType().toLowerCase()) {
+                case "varchar" -> {
+                    byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+                    buffer.putInt(bytes.length);
+                    buffer.put(bytes);
+                }
+                case "char" -> {
+                    String padded = String.format("%-" + attr.getSize() + "s", (String) key);
+                    buffer.put(padded.getBytes(StandardCharsets.UTF_8), 0, attr.getSize());
+                }
+                case "boolean" -> buffer.put((byte) ((boolean) key ? 1 : 0));
+                default -> throw new IllegalArgumentException("Unsupported attribute type: " + attr.getType());
+            }
         }
     }
 
+    // Record id of a leaf entry: getPageNumber is the table file slot of the record's page,
+    // getIndex the record's slot in that page
     static class Pair<K, V> {
         private K pageNumber;
         private final V index;
@@ -762,36 +510,4 @@ public class BPlusNode {
             return index;
         }
     }
-
-    public Pair<Integer, Integer> deleteAndReturnPointer(Object key) {
-        if (isLeaf) {
-            int index = keys.indexOf(key);
-            if (index == -1) return null;
-    
-            // Remove key and pointer
-            keys.remove(index);
-            Pair<Integer, Integer> pointer = pointers.remove(index);
-    
-            // Delete record from page directly
-            Page page = Main.getStorageManager().getPage(tableID, pointer.getPageNumber());
-            Record record = page.getRecords().get(pointer.getIndex());
-            page.deleteRecord(record, pointer.getIndex());
-    
-            if (page.getRecordCount() == 0) {
-                Main.getCatalog().getTable(tableID).dropPage(page.getPageId());
-            } else {
-                Main.getBuffer().updatePage(page);
-            }
-    
-            return pointer;
-        } else {
-            BPlusNode child = search(key);
-            return child != null ? child.deleteAndReturnPointer(key) : null;
-        }
-    }
-    
-    public List<Pair<Integer, Integer>> getPointers() {
-        return pointers;
-    }
-
-}
\ No newline at end of file
+}
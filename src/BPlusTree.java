@@ -1,206 +1,475 @@
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * Class representing a B+ Tree index structure.
+ *
+ * The tree lives in BPIndex/<table id>.bin. Page 0 holds a header with the root's page, the
+ * number of nodes and the first free page, every other page one node (see BPlusNode). A leaf
+ * emptied by deletes is unlinked and its page, with those of parents left without children,
+ * goes on a free list that new nodes are taken from first. Leaves running low are not merged
+ * otherwise, a vacuum rebuilds the tree packed. Nodes are read into the page
+ * buffer when a lookup or change reaches them and written back when they are evicted or at a
+ * checkpoint, so a tree needs neither to fit in memory nor to be read whole when it is opened.
+ * Nodes are not in the write-ahead log: the header says whether the nodes on disk are the ones
+ * of the last checkpoint, and a tree changed since then is rebuilt from its table after a crash.
  */
 public class BPlusTree {
+    private static final int MAGIC = 0x42505453; // Tells a paged index file with a free list from an older one
 
-    private BPlusNode root;
-    private final int order; // Maximum number of keys in a node
+    private final int order; // A node holding this many keys is split
     private final Attribute attr;
+    private final Comparator<Object> comparator; // Chosen once for the key type, nodes search with it
+    private final boolean variableKeys; // Varchar keys, a node may fill its page before it has order keys
+    private final int tableID;
+    private int root; // Page of the root, NO_PAGE while the tree is empty
+    private int nodeCount; // Nodes are in pages 1 to nodeCount
+    private int freePage; // First page of a removed node, 0 if there is none. Each links to the next as its next leaf.
+    private boolean checkpointed; // The header on disk says the nodes are those of the last checkpoint
 
+    /**
+     * Creates an empty tree, replacing any index file the table had.
+     */
     public BPlusTree(Attribute attr, int tableID) {
-        this.order = (int) Math.floor(Main.getPageSize() / (attr.getSize() + 2 * Integer.BYTES)) - 1;
+        this(attr, tableID, BPlusNode.NO_PAGE, 0, 0);
+        Main.getBuffer().purgeTableNodes(tableID);
+        File file = new File(getIndexPath(tableID));
+        file.getParentFile().mkdirs();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+        } catch (IOException e) {
+            System.err.println("Error creating index file: " + file);
+        }
+        writeHeader(true);
+    }
+
+    private BPlusTree(Attribute attr, int tableID, int root, int nodeCount, int freePage) {
+        int entries = (Main.getPageSize() - BPlusNode.HEADER_SIZE - Integer.BYTES) / (BPlusNode.maxKeySize(attr) + 2 * Integer.BYTES);
+        this.order = Math.max(3, entries + 1);
         this.attr = attr;
-        this.root = null;
+        this.comparator = comparatorFor(attr);
+        this.variableKeys = attr.getType().equalsIgnoreCase("varchar");
+        this.tableID = tableID;
+        this.root = root;
+        this.nodeCount = nodeCount;
+        this.freePage = freePage;
+        this.checkpointed = true;
     }
 
-    /**
-     * Searches for the leaf node that may contain the given key.
-     */
-    public BPlusNode search(Object key) {
-        return root != null ? root.search(key) : null;
+    private static Comparator<Object> comparatorFor(Attribute attr) {
+        switch (attr.getType().toLowerCase()) {
+            case "integer":
+                return (a, b) -> Integer.compare((Integer) a, (Integer) b);
+            case "double":
+                return (a, b) -> Double.compare((Double) a, (Double) b);
+            case "boolean":
+                return (a, b) -> Boolean.compare((Boolean) a, (Boolean) b);
+            default:
+                return (a, b) -> ((String) a).compareTo((String) b);
+        }
+    }
+
+    public int getTableID() {
+        return tableID;
+    }
+
+    public Attribute getAttribute() {
+        return attr;
     }
 
-    private boolean isEmpty() {
-        return root == null;
+    public int getOrder() {
+        return order;
+    }
+
+    public Comparator<Object> getComparator() {
+        return comparator;
+    }
+
+    public boolean hasVariableKeys() {
+        return variableKeys;
+    }
+
+    public static String getIndexPath(int tableID) {
+        return Main.getDBLocation() + "BPIndex/" + tableID + ".bin";
     }
 
     /**
-     * Inserts a new record into the B+ Tree.
+     * Opens the tree of a table from its index file. Only the header is read, the nodes are
+     * read as they are used.
      *
-     * @param record  The record to insert.
-     * @param key     The key associated with the record.
-     * @param pointer The pointer value (page offset).
-     * @return true if insertion succeeded, false otherwise.
+     * @param tableID The table ID associated with this index.
+     * @param attr    The attribute used as the primary key.
+     * @return The tree, or null if the file is missing, from an older version, or has nodes
+     *         written since the last checkpoint.
      */
-    public boolean insert(Record record, Object key, int pointer, int tablID) {
-        if (isEmpty()) {
-            root = new BPlusNode(order, true, tablID, attr);
+    public static BPlusTree fromFile(int tableID, Attribute attr) {
+        File file = new File(getIndexPath(tableID));
+        if (file.length() < 5 * Integer.BYTES) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != MAGIC || in.readInt() != 1) {
+                return null;
+            }
+            int root = in.readInt();
+            int nodeCount = in.readInt();
+            int freePage = in.readInt();
+            return new BPlusTree(attr, tableID, root, nodeCount, freePage);
+        } catch (IOException e) {
+            System.err.println("Error reading B+ Tree from file: " + e.getMessage());
+            return null;
         }
-        return root.insert(record, key, pointer, false);
     }
 
     /**
-     * Returns all leaf nodes in the tree in order.
+     * Deletes the index file of a dropped table and its nodes in the buffer.
      */
-    public ArrayList<BPlusNode> getLeafNodes() {
-        return root != null ? root.getLeafNodes() : new ArrayList<>();
+    public static void drop(int tableID) {
+        Main.getBuffer().purgeTableNodes(tableID);
+        new File(getIndexPath(tableID)).delete();
     }
 
     /**
-     * Deletes the given key from the B+ Tree.
+     * Replaces the tree with one built from the leaves up, used by bulk loads.
      *
-     * @param key The key to delete.
-     * @return The deleted record, if it existed.
+     * @param keys       The keys in ascending order.
+     * @param pointers   The (table file slot, record slot) of the record of each key.
+     * @param fillFactor How full each node is made, between 0 and 1.
      */
-    public Record delete(Object key) {
-        if (isEmpty()) return null;
-
-        Record record = root.delete(key, false);
-
-        if (root.getChildren().size() == 1) {
-            root = root.getChildren().get(0);
+    public void bulkLoad(List<Object> keys, List<BPlusNode.Pair<Integer, Integer>> pointers, double fillFactor) {
+        if (keys.isEmpty()) {
+            root = BPlusNode.NO_PAGE;
+            changed(null);
+            return;
         }
 
-        return record;
+        // Leaves hold at most order - 1 keys. Each is marked changed once it is linked to the next.
+        List<Integer> level = new ArrayList<>();
+        List<Object> firstKeys = new ArrayList<>();
+        BPlusNode previous = null;
+        for (int[] range : spread(keys.size(), Math.max(1, (int) ((order - 1) * fillFactor)), 1)) {
+            BPlusNode leaf = newNode(true);
+            leaf.setEntries(keys.subList(range[0], range[1]), pointers.subList(range[0], range[1]));
+            if (previous != null) {
+                previous.setNextLeaf(leaf.getPageNumber());
+                changed(previous);
+            }
+            previous = leaf;
+            level.add(leaf.getPageNumber());
+            firstKeys.add(keys.get(range[0]));
+        }
+        changed(previous);
+
+        // Internal nodes hold at most order children
+        while (level.size() > 1) {
+            List<Integer> upper = new ArrayList<>();
+            List<Object> upperFirstKeys = new ArrayList<>();
+            for (int[] range : spread(level.size(), Math.max(2, (int) (order * fillFactor)), 2)) {
+                BPlusNode node = newNode(false);
+                node.setChildren(firstKeys.subList(range[0] + 1, range[1]), level.subList(range[0], range[1]));
+                changed(node);
+                upper.add(node.getPageNumber());
+                upperFirstKeys.add(firstKeys.get(range[0]));
+            }
+            level = upper;
+            firstKeys = upperFirstKeys;
+        }
+        root = level.get(0);
     }
 
-    /**
-     * Updates a record with a new key value.
-     */
-    public void update(Record record, Object keyToUpdate, Object key) {
-        if (!isEmpty()) {
-            root.update(record, keyToUpdate, key);
+    // Splits count entries into the fewest groups of at most perGroup entries, with sizes that
+    // differ by at most one so no node ends up nearly empty. Every group gets at least
+    // minPerGroup entries, an internal node needs two children. Returns [start, end) of each group.
+    private static List<int[]> spread(int count, int perGroup, int minPerGroup) {
+        int groups = Math.max(1, (count + perGroup - 1) / perGroup);
+        if (count / groups < minPerGroup) {
+            groups = Math.max(1, count / minPerGroup);
         }
+        List<int[]> ranges = new ArrayList<>(groups);
+        int start = 0;
+        for (int i = 0; i < groups; i++) {
+            int size = count / groups + (i < count % groups ? 1 : 0);
+            ranges.add(new int[] { start, start + size });
+            start += size;
+        }
+        return ranges;
     }
 
     /**
-     * Serializes the tree and writes it to disk.
+     * Adds a key with the (table file slot, record slot) of its record.
+     *
+     * @return false if the key is already in the tree.
      */
-    public void writeToFile() {
-        if (root != null) {
-            root.writeToFile();
+    public boolean insertEntry(Object key, BPlusNode.Pair<Integer, Integer> recordId) {
+        if (root == BPlusNode.NO_PAGE) {
+            BPlusNode leaf = newNode(true);
+            leaf.insertEntry(0, key, recordId);
+            root = leaf.getPageNumber();
+            changed(leaf);
+            return true;
         }
+
+        List<BPlusNode> path = new ArrayList<>(); // Internal nodes from the root down
+        BPlusNode node = findLeaf(key, path);
+        int position = node.indexOfKey(key);
+        if (position >= 0) {
+            return false;
+        }
+        node.insertEntry(-(position + 1), key, recordId);
+
+        // A full node is split before it is marked changed, so the buffer never writes it
+        while (node.isFull()) {
+            BPlusNode right = newNode(node.isLeaf());
+            Object separator = node.splitInto(right);
+            changed(node);
+            changed(right);
+            if (path.isEmpty()) { // The root was split, a new root goes above it
+                BPlusNode newRoot = newNode(false);
+                newRoot.setChildren(node.getPageNumber(), separator, right.getPageNumber());
+                root = newRoot.getPageNumber();
+                changed(newRoot);
+                return true;
+            }
+            BPlusNode parent = path.remove(path.size() - 1);
+            parent.insertChild(node.getPageNumber(), separator, right.getPageNumber());
+            node = parent;
+        }
+        changed(node);
+        return true;
     }
 
     /**
-     * Reconstructs a B+ Tree from its binary representation on disk.
+     * Removes a key. A leaf left empty is taken out of the tree and its page freed, other leaves
+     * are not merged and may run low until the tree is rebuilt by a vacuum.
      *
-     * @param tableID The table ID associated with this index.
-     * @param attr    The attribute used as the primary key.
-     * @return A reconstructed BPlusTree, or null if loading fails.
+     * @return The slots of its record, or null if the key wasn't there.
      */
-    public static BPlusTree fromFile(int tableID, Attribute attr) {
-        String fileName = Main.getDBLocation() + "/BPIndex/" + tableID + ".bin";
-
-        File file = new File(fileName);
-        long fileLength = file.length();
-
-        if (fileLength == 0) {
-            System.err.println("Empty BPlusTree file: " + fileName);
+    public BPlusNode.Pair<Integer, Integer> removeEntry(Object key) {
+        List<BPlusNode> path = new ArrayList<>(); // Internal nodes from the root down
+        BPlusNode leaf = findLeaf(key, path);
+        int position = leaf == null ? -1 : leaf.indexOfKey(key);
+        if (position < 0) {
             return null;
         }
-
-        byte[] data = new byte[(int) fileLength];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            fis.read(data);
-        } catch (IOException e) {
-            System.err.println("Error reading B+ Tree from file: " + e.getMessage());
-            return null;
+        BPlusNode.Pair<Integer, Integer> recordId = leaf.removeEntry(position);
+        if (leaf.getKeyCount() > 0) {
+            changed(leaf);
+        } else {
+            removeLeaf(leaf, path);
         }
+        return recordId;
+    }
 
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        int numKeys = buffer.getInt();
-
-        String attrType = attr.getType();
-        int order = (int) Math.floor(Main.getPageSize() / (attr.getSize() + 2 * Integer.BYTES)) - 1;
-
-        BPlusNode root = new BPlusNode(order, true, tableID, attr);
-        LinkedList<Object> keys = new LinkedList<>();
-        LinkedList<BPlusNode.Pair<Integer, Integer>> pointers = new LinkedList<>();
-
-        // First pointer
-        int pageNumber = buffer.getInt();
-        int index = buffer.getInt();
-        pointers.add(new BPlusNode.Pair<>(pageNumber, index));
-
-        // Read keys and their corresponding pointers
-        for (int i = 0; i < numKeys; i++) {
-            Object key;
+    // Takes an empty leaf out of the tree: the leaf before it is linked to the one after it, and
+    // it is removed from its parent. A parent left without children goes as well, and a root
+    // left with a single child is replaced by it. The removed nodes' pages are freed.
+    private void removeLeaf(BPlusNode leaf, List<BPlusNode> path) {
+        BPlusNode previous = previousLeaf(leaf, path);
+        if (previous != null) {
+            previous.setNextLeaf(leaf.getNextLeaf());
+            changed(previous);
+        }
+        freeNode(leaf);
+
+        int child = leaf.getPageNumber();
+        int level = path.size() - 1;
+        while (level >= 0 && path.get(level).getKeyCount() == 0) { // The child was its only one
+            child = path.get(level).getPageNumber();
+            freeNode(path.get(level));
+            level--;
+        }
+        if (level < 0) {
+            root = BPlusNode.NO_PAGE;
+            changed(null);
+            return;
+        }
+        path.get(level).removeChild(child);
+        changed(path.get(level));
+
+        BPlusNode top = getNode(root);
+        while (!top.isLeaf() && top.getKeyCount() == 0) {
+            root = top.getFirstChild();
+            freeNode(top);
+            top = getNode(root);
+        }
+    }
 
-            switch (attrType.toLowerCase()) {
-                case "varchar" -> {
-                    int strLen = buffer.getInt();
-                    byte[] strBytes = new byte[strLen];
-                    buffer.get(strBytes, 0, strLen);
-                    key = new String(strBytes);
-                }
-                case "char" -> {
-                    int charSize = attr.getSize();
-                    byte[] charBytes = new byte[charSize];
-                    buffer.get(charBytes, 0, charSize);
-                    key = new String(charBytes).trim();
-                }
-                case "integer" -> key = buffer.getInt();
-                case "double" -> key = buffer.getDouble();
-                case "boolean" -> key = buffer.get() == 1;
-                default -> {
-                    System.err.println("Unsupported attribute type: " + attrType);
-                    return null;
+    // Leaf before the given one, the last leaf of the nearest subtree left of it on its path
+    // from the root. Null for the first leaf.
+    private BPlusNode previousLeaf(BPlusNode leaf, List<BPlusNode> path) {
+        int child = leaf.getPageNumber();
+        for (int level = path.size() - 1; level >= 0; level--) {
+            BPlusNode parent = path.get(level);
+            int position = parent.indexOfChild(child);
+            if (position > 0) {
+                BPlusNode node = getNode(parent.getChild(position - 1));
+                while (!node.isLeaf()) {
+                    node = getNode(node.getChild(node.getKeyCount()));
                 }
+                return node;
             }
+            child = parent.getPageNumber();
+        }
+        return null;
+    }
 
-            keys.add(key);
+    /**
+     * Returns the (table file slot, record slot) of the record of a key, or null if the key isn't there.
+     */
+    public BPlusNode.Pair<Integer, Integer> findEntry(Object key) {
+        BPlusNode leaf = findLeaf(key, null);
+        int position = leaf == null ? -1 : leaf.indexOfKey(key);
+        return position >= 0 ? leaf.getPointer(position) : null;
+    }
 
-            pageNumber = buffer.getInt();
-            index = buffer.getInt();
-            pointers.add(new BPlusNode.Pair<>(pageNumber, index));
+    /**
+     * Returns the record ids of the keys between low and high in key order. The tree is descended
+     * once to the leaf of low, then the leaves are followed along their next leaf until a key
+     * passes high, so the cost is one path plus the leaves holding the range.
+     *
+     * @param low           The lowest key, null for no lower bound.
+     * @param lowInclusive  Whether a key equal to low is in the range.
+     * @param high          The highest key, null for no upper bound.
+     * @param highInclusive Whether a key equal to high is in the range.
+     */
+    public List<BPlusNode.Pair<Integer, Integer>> rangeScan(Object low, boolean lowInclusive,
+                                                            Object high, boolean highInclusive) {
+        List<BPlusNode.Pair<Integer, Integer>> recordIds = new ArrayList<>();
+        if (root == BPlusNode.NO_PAGE) {
+            return recordIds;
+        }
+        BPlusNode leaf;
+        int position = 0;
+        if (low == null) {
+            leaf = getNode(root);
+            while (!leaf.isLeaf()) {
+                leaf = getNode(leaf.getFirstChild());
+            }
+        } else {
+            leaf = findLeaf(low, null);
+            position = leaf.indexOfKey(low);
+            position = position >= 0 ? (lowInclusive ? position : position + 1) : -(position + 1);
         }
 
-        // Set root's reconstructed data
-        root.setKeys(keys);
-        root.setPointers(pointers);
-
-        BPlusTree tree = new BPlusTree(attr, tableID);
-        tree.root = root;
-        return tree;
+        while (true) {
+            for (; position < leaf.getKeyCount(); position++) {
+                if (high != null) {
+                    int order = comparator.compare(leaf.getKey(position), high);
+                    if (order > 0 || (order == 0 && !highInclusive)) {
+                        return recordIds;
+                    }
+                }
+                recordIds.add(leaf.getPointer(position));
+            }
+            if (leaf.getNextLeaf() == BPlusNode.NO_PAGE) {
+                return recordIds;
+            }
+            leaf = getNode(leaf.getNextLeaf());
+            position = 0;
+        }
     }
 
-
     /**
-     * Displays the structure of the tree (debugging/visualization).
+     * Points a key at the new place of its record.
      */
-    public void display() {
-        if (root != null) {
-            root.display();
+    public void setEntry(Object key, BPlusNode.Pair<Integer, Integer> recordId) {
+        BPlusNode leaf = findLeaf(key, null);
+        int position = leaf == null ? -1 : leaf.indexOfKey(key);
+        if (position >= 0) {
+            leaf.setPointer(position, recordId);
+            changed(leaf);
         }
     }
 
     /**
-     * Compares two key values based on the attribute type.
-     * Used for determining insert/search positions.
+     * Writes the nodes changed since the last checkpoint and a header saying the file is up to date.
      */
-    public int compare(Object insertValue, Object existingValue) {
-        if (attr.getType().equalsIgnoreCase("integer")) {
-            return ((Integer) insertValue).compareTo((Integer) existingValue);
-        } else if (attr.getType().equalsIgnoreCase("double")) {
-            return ((Double) insertValue).compareTo((Double) existingValue);
-        } else {
-            return ((String) insertValue).compareTo((String) existingValue);
+    public void writeToFile() {
+        Main.getBuffer().writeNodes(tableID);
+        writeHeader(true);
+    }
+
+    // Leaf where the key is or would go, null if the tree is empty. The internal nodes on the
+    // way are added to path if one is given.
+    private BPlusNode findLeaf(Object key, List<BPlusNode> path) {
+        if (root == BPlusNode.NO_PAGE) {
+            return null;
+        }
+        BPlusNode node = getNode(root);
+        while (!node.isLeaf()) {
+            if (path != null) {
+                path.add(node);
+            }
+            node = getNode(node.childFor(key));
         }
-    }    
+        return node;
+    }
 
+    // The node at a page of the index file, from the buffer if it is there
+    private BPlusNode getNode(int pageNumber) {
+        PageBuffer buffer = Main.getBuffer();
+        BPlusNode node = buffer.getNode(tableID, pageNumber);
+        if (node == null) {
+            node = BPlusNode.read(this, pageNumber);
+            buffer.addNode(node);
+        }
+        return node;
+    }
+
+    // A node at a free page of the index file, or a new one if none is free. It is in the buffer
+    // once it is marked changed. The free page is read around the buffer, a node about to be
+    // split must not be evicted for it.
+    private BPlusNode newNode(boolean isLeaf) {
+        if (freePage == 0) {
+            return new BPlusNode(this, ++nodeCount, isLeaf);
+        }
+        BPlusNode free = Main.getBuffer().getNode(tableID, freePage);
+        if (free == null) {
+            free = BPlusNode.read(this, freePage);
+        }
+        BPlusNode node = new BPlusNode(this, freePage, isLeaf);
+        freePage = free.getNextLeaf();
+        return node;
+    }
+
+    // Puts the page of a node taken out of the tree on the free list, as an empty leaf linked
+    // to the page freed before it
+    private void freeNode(BPlusNode node) {
+        BPlusNode free = new BPlusNode(this, node.getPageNumber(), true);
+        free.setNextLeaf(freePage);
+        freePage = node.getPageNumber();
+        changed(free);
+    }
 
-    public BPlusNode.Pair<Integer, Integer> deleteAndReturnPointer(Object key) {
-        if (isEmpty()) return null;
-        return root.deleteAndReturnPointer(key);
+    // Marks a node as to be written and, the first time after a checkpoint, the file as no
+    // longer matching it. A node may have left the buffer since it was read, it is put back.
+    private void changed(BPlusNode node) {
+        if (checkpointed) {
+            writeHeader(false);
+        }
+        if (node != null) {
+            node.setUpdated(true);
+            Main.getBuffer().addNode(node);
+        }
     }
 
+    private void writeHeader(boolean atCheckpoint) {
+        ByteBuffer header = ByteBuffer.allocate(5 * Integer.BYTES);
+        header.putInt(MAGIC);
+        header.putInt(atCheckpoint ? 1 : 0);
+        header.putInt(root);
+        header.putInt(nodeCount);
+        header.putInt(freePage);
+        try (RandomAccessFile out = new RandomAccessFile(getIndexPath(tableID), "rw")) {
+            out.write(header.array());
+            checkpointed = atCheckpoint;
+        } catch (IOException e) {
+            System.err.println("Error writing index header of table " + tableID + ": " + e.getMessage());
+        }
+    }
 }
@@ -1,8 +1,14 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -83,6 +89,13 @@ public class Catalog {
             tables.remove(tableToRemove.get());
             tableCount--;
             Main.getBuffer().purgeTablePages(tableID); // Remove pages from the buffer
+            Main.getStorageManager().dropPendingReads(tableID);
+            OverflowManager.dropTable(tableID); // Remove out of line varchars
+            new File(getZoneMapPath(tableID)).delete();
+            new File(getUniqueIndexPath(tableID)).delete();
+            new File(getStatsPath(tableID)).delete();
+            ColumnStore.drop(tableID);
+            BPlusTree.drop(tableID);
             System.out.println("Table dropped: " + tableName);
         } else {
             System.err.println("Table not found: " + tableName);
@@ -116,25 +129,97 @@ public class Catalog {
     // Note: For each table in catalog, call Table.write/readToBuffer
 
     public void writeCatalog(String pathname) throws IOException {
-        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(pathname))) {
-            dos.writeInt(this.tableCount);
-            for (Table table : this.tables) {
-                table.writeToStream(dos); 
+        // Written next to the old catalog and renamed over it, so a crash mid write can't
+        // leave a torn catalog behind for the write-ahead log to be replayed onto
+        Path tempPath = Path.of(pathname + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempPath.toFile());
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+            writeTables(dos);
+            dos.flush();
+            fos.getFD().sync(); // On disk before it replaces the old one
+        }
+        Files.move(tempPath, Path.of(pathname), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Zone maps go in a sidecar file per table
+        for (Table table : this.tables) {
+            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(getZoneMapPath(table.getTableID())))) {
+                table.writeZoneMaps(dos);
+            }
+        }
+
+        // So are the unique indexes, they would otherwise take a full scan to rebuild
+        for (Table table : this.tables) {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getUniqueIndexPath(table.getTableID()))))) {
+                table.writeUniqueIndexes(dos);
+            }
+        }
+
+        // And the statistics, so row counts and column summaries survive a restart
+        for (Table table : this.tables) {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getStatsPath(table.getTableID()))))) {
+                table.writeStats(dos);
             }
         }
     }
 
     public void readCatalog(String pathname) throws IOException {
         try (DataInputStream dis = new DataInputStream(new FileInputStream(pathname))) {
-            this.tableCount = dis.readInt();
-            this.tables.clear();
-            for (int i = 0; i < this.tableCount; i++) {
-                Table table = Table.readFromStream(dis); 
-                this.tables.add(table);
+            readTables(dis);
+        }
+
+        for (Table table : this.tables) {
+            File zoneMapFile = new File(getZoneMapPath(table.getTableID()));
+            if (zoneMapFile.exists()) {
+                try (DataInputStream dis = new DataInputStream(new FileInputStream(zoneMapFile))) {
+                    table.readZoneMaps(dis);
+                }
+            }
+
+            File uniqueIndexFile = new File(getUniqueIndexPath(table.getTableID()));
+            if (uniqueIndexFile.exists()) {
+                try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(uniqueIndexFile)))) {
+                    table.readUniqueIndexes(dis);
+                }
+            }
+
+            File statsFile = new File(getStatsPath(table.getTableID()));
+            if (statsFile.exists()) {
+                try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(statsFile)))) {
+                    table.readStats(dis);
+                }
             }
         }
     }
 
+    // Table definitions and page layouts, the part of the catalog the write-ahead log also records
+    public void writeTables(DataOutputStream dos) throws IOException {
+        dos.writeInt(this.tableCount);
+        for (Table table : this.tables) {
+            table.writeToStream(dos); 
+        }
+    }
+
+    public void readTables(DataInputStream dis) throws IOException {
+        this.tableCount = dis.readInt();
+        this.tables.clear();
+        for (int i = 0; i < this.tableCount; i++) {
+            Table table = Table.readFromStream(dis); 
+            this.tables.add(table);
+        }
+    }
+
+    private String getZoneMapPath(int tableID) {
+        return this.dbLocation + "tables/" + tableID + ".zm";
+    }
+
+    private String getUniqueIndexPath(int tableID) {
+        return this.dbLocation + "tables/" + tableID + ".uix";
+    }
+
+    private String getStatsPath(int tableID) {
+        return this.dbLocation + "tables/" + tableID + ".stats";
+    }
+
 
     /**
      * Read next 3 catalog's boxes, grab name and type of the attribute, use Attribue.java's parse() to create an
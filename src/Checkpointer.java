@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+
+// Fuzzy checkpoints, so recovery only replays the log written since the last one. A checkpoint
+// starts a new log segment once enough log has been written since the previous one, and then
+// writes the pages that were dirty at its start a few at a time after each statement, so no
+// statement waits for the whole buffer. Pages changed after the start don't need to be
+// written, their changes are in the new segment. When the last page is out, the catalog,
+// sidecar files and indexes are saved, everything is forced to disk and the new segment
+// becomes the start of recovery.
+public class Checkpointer {
+    private static final long CHECKPOINT_LOG_BYTES = 8L << 20; // Log written between checkpoints
+    private static final int PAGES_PER_STEP = 8; // Dirty pages written after each statement
+
+    private final WriteAheadLog wal;
+    private final PageBuffer buffer;
+    private long lastRedoLsn;         // Start of the last finished checkpoint
+    private long redoLsn = -1;        // Start of the checkpoint in progress, -1 if none
+    private ArrayDeque<Page> dirtyPages;
+
+    public Checkpointer(WriteAheadLog wal, PageBuffer buffer) {
+        this.wal = wal;
+        this.buffer = buffer;
+        this.lastRedoLsn = wal.getRedoLsn();
+    }
+
+    // Called after every committed statement. Advances the checkpoint in progress, or starts
+    // one once the log has grown enough since the last.
+    public void afterCommit() {
+        if (redoLsn < 0) {
+            if (wal.getNextLsn() - lastRedoLsn < CHECKPOINT_LOG_BYTES) {
+                return;
+            }
+            begin();
+        }
+        if (writeDirtyPages(PAGES_PER_STEP)) {
+            finish();
+        }
+    }
+
+    // Runs a whole checkpoint at once, used at shutdown and after recovery
+    public void checkpointNow() {
+        if (redoLsn < 0) {
+            begin();
+        }
+        writeDirtyPages(Integer.MAX_VALUE);
+        finish();
+    }
+
+    private void begin() {
+        redoLsn = wal.startSegment();
+        List<Page> dirty = buffer.getDirtyPages();
+        dirtyPages = new ArrayDeque<>(dirty);
+    }
+
+    // Writes up to count of the pages that were dirty at the start, returns true once all are out.
+    // Pages that left the buffer since were written when they were evicted, or belong to
+    // pages and tables that were dropped.
+    private boolean writeDirtyPages(int count) {
+        int written = 0;
+        while (!dirtyPages.isEmpty() && written < count) {
+            Page page = dirtyPages.poll();
+            if (page.isUpdated() && buffer.getPage(page.getTableId(), page.getPageId()) == page) {
+                buffer.writePage(page);
+                written++;
+            }
+        }
+        return dirtyPages.isEmpty();
+    }
+
+    private void finish() {
+        Catalog catalog = Main.getCatalog();
+        try {
+            catalog.writeCatalog(Main.getDBLocation() + "catalog.bin");
+        } catch (IOException e) {
+            System.err.println("Error saving catalog: " + e.getMessage());
+            return; // Retried by the next statement, the log still has what the catalog is missing
+        }
+        for (BPlusTree tree : Main.getBPlusTrees()) {
+            if (tree != null) {
+                tree.writeToFile();
+            }
+        }
+
+        forceFiles(Main.getDBLocation() + "tables");
+        forceFiles(Main.getDBLocation() + "BPIndex");
+        wal.setRedoLsn(redoLsn);
+        lastRedoLsn = redoLsn;
+        redoLsn = -1;
+        dirtyPages = null;
+    }
+
+    // Forces every file of a directory to disk
+    private static void forceFiles(String directory) {
+        File[] files = new File(directory).listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (IOException e) {
+                System.err.println("Error forcing " + file + " to disk: " + e.getMessage());
+            }
+        }
+    }
+}
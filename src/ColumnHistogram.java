@@ -0,0 +1,194 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Distribution of the values of one column, built by analyze from a sample of the table: the
+// most common values with how often they occur, and equi-depth buckets over the other values
+// (each bucket holds as many sampled values as the others). Used to estimate how many rows a
+// comparison with a literal keeps, see Selectivity.
+public class ColumnHistogram {
+    private static final int MAX_COMMON_VALUES = 10;
+    private static final int BUCKETS = 16;
+
+    private Object[] commonValues;
+    private double[] commonFractions; // Of the non null values
+    private double otherFraction;     // Of the non null values, spread over the buckets
+    private Object[] bounds;          // Bucket i holds the other values from bounds[i] to bounds[i + 1]
+
+    private ColumnHistogram(Object[] commonValues, double[] commonFractions, double otherFraction, Object[] bounds) {
+        this.commonValues = commonValues;
+        this.commonFractions = commonFractions;
+        this.otherFraction = otherFraction;
+        this.bounds = bounds;
+    }
+
+    // Builds the histogram from the sampled non null values of the column, null if there are none
+    public static ColumnHistogram build(List<Object> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        List<Object> sorted = new ArrayList<>(values);
+        sorted.sort(ColumnHistogram::compare);
+
+        // Runs of equal values, the ones seen more than once and more often than average are common
+        List<int[]> runs = new ArrayList<>(); // Start and length
+        for (int i = 0; i < sorted.size(); ) {
+            int end = i + 1;
+            while (end < sorted.size() && compare(sorted.get(i), sorted.get(end)) == 0) {
+                end++;
+            }
+            runs.add(new int[] { i, end - i });
+            i = end;
+        }
+        double average = (double) sorted.size() / runs.size();
+        List<int[]> common = new ArrayList<>();
+        for (int[] run : runs) {
+            if (run[1] > 1 && run[1] > average) {
+                common.add(run);
+            }
+        }
+        common.sort(Comparator.comparingInt((int[] run) -> run[1]).reversed());
+        common = common.subList(0, Math.min(MAX_COMMON_VALUES, common.size()));
+
+        Object[] commonValues = new Object[common.size()];
+        double[] commonFractions = new double[common.size()];
+        boolean[] isCommon = new boolean[sorted.size()];
+        for (int i = 0; i < common.size(); i++) {
+            int[] run = common.get(i);
+            commonValues[i] = sorted.get(run[0]);
+            commonFractions[i] = (double) run[1] / sorted.size();
+            Arrays.fill(isCommon, run[0], run[0] + run[1], true);
+        }
+
+        List<Object> others = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!isCommon[i]) {
+                others.add(sorted.get(i));
+            }
+        }
+        int buckets = Math.min(BUCKETS, others.size());
+        Object[] bounds = new Object[others.isEmpty() ? 0 : buckets + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = others.get((int) ((long) i * (others.size() - 1) / buckets));
+        }
+        return new ColumnHistogram(commonValues, commonFractions, (double) others.size() / sorted.size(), bounds);
+    }
+
+    // Fraction of the non null values v for which "v operator value" holds. distinct is the
+    // estimated number of distinct values of the column.
+    public double selectivity(String operator, Object value, long distinct) {
+        switch (operator) {
+            case "=":
+                return equal(value, distinct);
+            case "!=":
+                return 1 - equal(value, distinct);
+            case "<":
+                return less(value, false, distinct);
+            case "<=":
+                return less(value, true, distinct);
+            case ">":
+                return 1 - less(value, true, distinct);
+            case ">=":
+                return 1 - less(value, false, distinct);
+            default:
+                return 1;
+        }
+    }
+
+    private double equal(Object value, long distinct) {
+        for (int i = 0; i < commonValues.length; i++) {
+            if (compare(commonValues[i], value) == 0) {
+                return commonFractions[i];
+            }
+        }
+        return otherFraction / Math.max(1, distinct - commonValues.length); // Any other value, as often as each other
+    }
+
+    private double less(Object value, boolean orEqual, long distinct) {
+        double fraction = 0;
+        for (int i = 0; i < commonValues.length; i++) {
+            int order = compare(commonValues[i], value);
+            if (order < 0 || (orEqual && order == 0)) {
+                fraction += commonFractions[i];
+            }
+        }
+        fraction += otherFraction * fractionBelow(value);
+        if (orEqual && !isCommon(value)) { // Common values were counted above
+            fraction += equal(value, distinct);
+        }
+        return Math.min(1, fraction);
+    }
+
+    // Fraction of the other values below value, interpolated inside its bucket for numbers
+    private double fractionBelow(Object value) {
+        int buckets = bounds.length - 1;
+        if (buckets < 1) {
+            return bounds.length == 1 && compare(bounds[0], value) < 0 ? 1 : 0;
+        }
+        if (compare(value, bounds[0]) <= 0) {
+            return 0;
+        }
+        if (compare(value, bounds[buckets]) > 0) {
+            return 1;
+        }
+        int bucket = 0;
+        while (bucket < buckets - 1 && compare(value, bounds[bucket + 1]) > 0) {
+            bucket++;
+        }
+        double within = 0.5;
+        if (value instanceof Number number && bounds[bucket] instanceof Number low && bounds[bucket + 1] instanceof Number high) {
+            double width = high.doubleValue() - low.doubleValue();
+            within = width > 0 ? (number.doubleValue() - low.doubleValue()) / width : 1;
+        }
+        return (bucket + within) / buckets;
+    }
+
+    private boolean isCommon(Object value) {
+        for (Object common : commonValues) {
+            if (compare(common, value) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Numbers compare by value whatever their type, so an integer column can be compared with 2.5
+    private static int compare(Object a, Object b) {
+        if (a instanceof Number x && b instanceof Number y) return Double.compare(x.doubleValue(), y.doubleValue());
+        if (a instanceof Boolean x && b instanceof Boolean y) return Boolean.compare(x, y);
+        return a.toString().compareTo(b.toString());
+    }
+
+    public void writeToStream(DataOutputStream dos, Attribute attr) throws IOException {
+        dos.writeInt(commonValues.length);
+        for (int i = 0; i < commonValues.length; i++) {
+            ZoneMap.writeValue(dos, commonValues[i], attr);
+            dos.writeDouble(commonFractions[i]);
+        }
+        dos.writeDouble(otherFraction);
+        dos.writeInt(bounds.length);
+        for (Object bound : bounds) {
+            ZoneMap.writeValue(dos, bound, attr);
+        }
+    }
+
+    public static ColumnHistogram readFromStream(DataInputStream dis, Attribute attr) throws IOException {
+        int count = dis.readInt();
+        Object[] commonValues = new Object[count];
+        double[] commonFractions = new double[count];
+        for (int i = 0; i < count; i++) {
+            commonValues[i] = ZoneMap.readValue(dis, attr);
+            commonFractions[i] = dis.readDouble();
+        }
+        double otherFraction = dis.readDouble();
+        Object[] bounds = new Object[dis.readInt()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = ZoneMap.readValue(dis, attr);
+        }
+        return new ColumnHistogram(commonValues, commonFractions, otherFraction, bounds);
+    }
+}
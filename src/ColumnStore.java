@@ -0,0 +1,582 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+// Storage of a columnar table. Each attribute has its own file, and the rows are cut into
+// blocks of up to BLOCK_ROWS: a block stores every column in its column file, encoded on its
+// own with whichever of plain, run length, delta (integers) or dictionary (strings) comes out
+// smallest. A scan only reads the columns it needs, and skips blocks whose zone map rules out
+// the where tree.
+//
+// Column files are only appended to. A changed block is written again at the end of its files
+// and the directory, which lists the live blocks with where their columns are, is replaced
+// atomically. That replace commits the change on its own: a crash before it leaves only
+// unreferenced bytes at the end of the files, cut off when the table is next opened. A vacuum
+// writes the live blocks to a new generation of files to give back the space of dead ones.
+public class ColumnStore {
+    public static final int BLOCK_ROWS = 1024;
+
+    private static final byte PLAIN = 0;
+    private static final byte RUN_LENGTH = 1;
+    private static final byte DELTA = 2;      // Integers, as zigzag varint differences
+    private static final byte DICTIONARY = 3; // Strings, as varint codes into the distinct values
+
+    private final Table table;
+    private final Attribute[] attributes;
+    private int generation; // Column files in use are tables/<id>.<generation>.c<column>
+    private final List<Block> blocks = new ArrayList<>();
+    private long[] fileEnds; // Bytes of each column file used by the directory
+
+    // Where the columns of a block are in their files
+    private static class Block {
+        int rowCount;
+        long[] offsets;
+        int[] lengths;
+        ZoneMap zone;
+    }
+
+    private ColumnStore(Table table) {
+        this.table = table;
+        this.attributes = table.getAttributes();
+        this.fileEnds = new long[attributes.length];
+    }
+
+    // Opens the store of a table, empty if nothing was ever committed to it
+    public static ColumnStore open(Table table) {
+        ColumnStore store = new ColumnStore(table);
+        File directory = new File(getDirectoryPath(table.getTableID()));
+        if (directory.exists()) {
+            try (DataInputStream dis = new DataInputStream(new FileInputStream(directory))) {
+                store.readDirectory(dis);
+            } catch (IOException e) {
+                System.err.println("Error reading columns of table " + table.getName() + ": " + e.getMessage());
+            }
+        }
+        store.removeUncommitted();
+        return store;
+    }
+
+    // Deletes the files of a dropped table
+    public static void drop(int tableID) {
+        new File(getDirectoryPath(tableID)).delete();
+        File[] files = listColumnFiles(tableID);
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public int getRowCount() {
+        int rows = 0;
+        for (Block block : blocks) {
+            rows += block.rowCount;
+        }
+        return rows;
+    }
+
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    // The tuples that pass filter (all of them if it is null), reading only the flagged columns
+    // (all of them if columns is null). The other columns are null in the tuples. Blocks whose
+    // zone map rules out the where tree are not read.
+    public List<List<Object>> getRecords(boolean[] columns, Node where, List<String> columnNames,
+                                         Predicate<List<Object>> filter) {
+        List<List<Object>> tuples = new ArrayList<>();
+        try (ColumnFiles files = new ColumnFiles("r")) {
+            for (Block block : blocks) {
+                if (where != null && block.zone != null && !block.zone.mayMatch(where, columnNames)) {
+                    continue; // Nothing in this block can match, don't read it
+                }
+                for (List<Object> tuple : readBlock(files, block, columns)) {
+                    if (filter == null || filter.test(tuple)) {
+                        tuples.add(tuple);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading columns of table " + table.getName() + ": " + e.getMessage());
+        }
+        return tuples;
+    }
+
+    // Every value of one column, in row order
+    public List<Object> readColumn(int column) {
+        boolean[] columns = new boolean[attributes.length];
+        columns[column] = true;
+        List<Object> values = new ArrayList<>();
+        for (List<Object> tuple : getRecords(columns, null, null, null)) {
+            values.add(tuple.get(column));
+        }
+        return values;
+    }
+
+    // Appends records. A last block that isn't full is written again with the new rows, so
+    // every block but the last holds BLOCK_ROWS rows however small the inserts are.
+    public void append(List<Record> records) {
+        List<List<Object>> rows = new ArrayList<>();
+        try (ColumnFiles files = new ColumnFiles("rw")) {
+            if (!blocks.isEmpty() && blocks.get(blocks.size() - 1).rowCount < BLOCK_ROWS) {
+                rows.addAll(readBlock(files, blocks.remove(blocks.size() - 1), null));
+            }
+            for (Record record : records) {
+                rows.add(new ArrayList<>(record.getData()));
+            }
+            for (int start = 0; start < rows.size(); start += BLOCK_ROWS) {
+                blocks.add(writeBlock(files, rows.subList(start, Math.min(rows.size(), start + BLOCK_ROWS))));
+            }
+            files.force();
+            writeDirectory();
+        } catch (IOException e) {
+            System.err.println("Error writing columns of table " + table.getName() + ": " + e.getMessage());
+            reload();
+        }
+    }
+
+    // Applies change to every row that passes filter in the blocks the where tree may match.
+    // change returns the new row, or null to delete it. Changed blocks are written again,
+    // emptied ones dropped. Returns the number of rows changed or deleted.
+    public int rewrite(Node where, List<String> columnNames, Predicate<List<Object>> filter,
+                       UnaryOperator<List<Object>> change) {
+        int changed = 0;
+        try (ColumnFiles files = new ColumnFiles("rw")) {
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                if (where != null && block.zone != null && !block.zone.mayMatch(where, columnNames)) {
+                    continue;
+                }
+                List<List<Object>> rows = new ArrayList<>();
+                int changedInBlock = 0;
+                for (List<Object> row : readBlock(files, block, null)) {
+                    if (filter != null && !filter.test(row)) {
+                        rows.add(row);
+                        continue;
+                    }
+                    List<Object> newRow = change.apply(new ArrayList<>(row));
+                    if (newRow != null) {
+                        rows.add(newRow);
+                    }
+                    changedInBlock++;
+                }
+                if (changedInBlock == 0) {
+                    continue;
+                }
+                changed += changedInBlock;
+                if (rows.isEmpty()) {
+                    blocks.remove(i--);
+                } else {
+                    blocks.set(i, writeBlock(files, rows));
+                }
+            }
+            if (changed > 0) {
+                files.force();
+                writeDirectory();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing columns of table " + table.getName() + ": " + e.getMessage());
+            reload();
+            return 0;
+        }
+        return changed;
+    }
+
+    // Writes the rows again into full blocks in a new generation of files, dropping the space
+    // of replaced blocks and merging the blocks deletes left small
+    public void vacuum() {
+        List<List<Object>> rows = getRecords(null, null, null, null);
+        int oldGeneration = generation;
+        List<Block> oldBlocks = new ArrayList<>(blocks);
+        long[] oldEnds = fileEnds;
+
+        generation++;
+        blocks.clear();
+        fileEnds = new long[attributes.length];
+        try (ColumnFiles files = new ColumnFiles("rw")) {
+            for (int start = 0; start < rows.size(); start += BLOCK_ROWS) {
+                blocks.add(writeBlock(files, rows.subList(start, Math.min(rows.size(), start + BLOCK_ROWS))));
+            }
+            files.force();
+            writeDirectory();
+        } catch (IOException e) {
+            System.err.println("Error writing columns of table " + table.getName() + ": " + e.getMessage());
+            generation = oldGeneration;
+            blocks.clear();
+            blocks.addAll(oldBlocks);
+            fileEnds = oldEnds;
+        }
+        removeUncommitted();
+    }
+
+    // Drops every row: an empty directory is written for a new generation, then the column
+    // files of the old one are deleted
+    public void truncate() {
+        int oldGeneration = generation;
+        generation++;
+        blocks.clear();
+        fileEnds = new long[attributes.length];
+        try {
+            writeDirectory();
+        } catch (IOException e) {
+            System.err.println("Error writing columns of table " + table.getName() + ": " + e.getMessage());
+            generation = oldGeneration;
+            reload();
+        }
+        removeUncommitted();
+    }
+
+    // Throws away what the directory on disk doesn't describe
+    private void reload() {
+        blocks.clear();
+        fileEnds = new long[attributes.length];
+        File directory = new File(getDirectoryPath(table.getTableID()));
+        if (directory.exists()) {
+            try (DataInputStream dis = new DataInputStream(new FileInputStream(directory))) {
+                readDirectory(dis);
+            } catch (IOException e) {
+                System.err.println("Error reading columns of table " + table.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Cuts column files back to what the directory uses and deletes the files of other
+    // generations, left by a crash during a write or vacuum
+    private void removeUncommitted() {
+        File[] files = listColumnFiles(table.getTableID());
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(table.getTableID() + "." + generation + ".c")) {
+                file.delete();
+            }
+        }
+        for (int column = 0; column < attributes.length; column++) {
+            File file = new File(getColumnPath(column));
+            if (file.length() > fileEnds[column]) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(fileEnds[column]);
+                } catch (IOException e) {
+                    System.err.println("Error truncating " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // The column files of the current generation, open for one operation
+    private class ColumnFiles implements AutoCloseable {
+        private final RandomAccessFile[] files = new RandomAccessFile[attributes.length];
+        private final String mode;
+
+        ColumnFiles(String mode) {
+            this.mode = mode;
+        }
+
+        RandomAccessFile get(int column) throws IOException {
+            if (files[column] == null) {
+                files[column] = new RandomAccessFile(getColumnPath(column), mode);
+            }
+            return files[column];
+        }
+
+        void force() throws IOException {
+            for (RandomAccessFile file : files) {
+                if (file != null) {
+                    file.getFD().sync();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RandomAccessFile file : files) {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    private List<List<Object>> readBlock(ColumnFiles files, Block block, boolean[] columns) throws IOException {
+        List<List<Object>> rows = new ArrayList<>(block.rowCount);
+        for (int row = 0; row < block.rowCount; row++) {
+            rows.add(new ArrayList<>(Arrays.asList(new Object[attributes.length])));
+        }
+        for (int column = 0; column < attributes.length; column++) {
+            if (columns != null && (column >= columns.length || !columns[column])) {
+                continue;
+            }
+            byte[] data = new byte[block.lengths[column]];
+            RandomAccessFile file = files.get(column);
+            file.seek(block.offsets[column]);
+            file.readFully(data);
+            Object[] values = decode(data, attributes[column]);
+            for (int row = 0; row < block.rowCount; row++) {
+                rows.get(row).set(column, values[row]);
+            }
+        }
+        return rows;
+    }
+
+    private Block writeBlock(ColumnFiles files, List<List<Object>> rows) throws IOException {
+        Block block = new Block();
+        block.rowCount = rows.size();
+        block.offsets = new long[attributes.length];
+        block.lengths = new int[attributes.length];
+        block.zone = ZoneMap.fromTuples(rows, attributes);
+        for (int column = 0; column < attributes.length; column++) {
+            Object[] values = new Object[rows.size()];
+            for (int row = 0; row < rows.size(); row++) {
+                List<Object> tuple = rows.get(row);
+                values[row] = column < tuple.size() ? tuple.get(column) : null;
+            }
+            byte[] data = encode(values, attributes[column]);
+            RandomAccessFile file = files.get(column);
+            file.seek(fileEnds[column]);
+            file.write(data);
+            block.offsets[column] = fileEnds[column];
+            block.lengths[column] = data.length;
+            fileEnds[column] += data.length;
+        }
+        return block;
+    }
+
+    // Encodes a column of a block with each encoding that applies and keeps the smallest
+    private static byte[] encode(Object[] values, Attribute attr) throws IOException {
+        String type = attr.getType().toLowerCase();
+        byte[] best = encode(values, attr, PLAIN);
+        byte[] runLength = encode(values, attr, RUN_LENGTH);
+        if (runLength.length < best.length) best = runLength;
+        if (type.equals("integer")) {
+            byte[] delta = encode(values, attr, DELTA);
+            if (delta.length < best.length) best = delta;
+        } else if (type.equals("char") || type.equals("varchar")) {
+            byte[] dictionary = encode(values, attr, DICTIONARY);
+            if (dictionary.length < best.length) best = dictionary;
+        }
+        return best;
+    }
+
+    // [encoding][row count][null bitmap][non null values in the encoding]
+    private static byte[] encode(Object[] values, Attribute attr, byte encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeByte(encoding);
+        dos.writeInt(values.length);
+        byte[] nulls = new byte[(values.length + 7) / 8];
+        List<Object> present = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                nulls[i / 8] |= (byte) (1 << (i % 8));
+            } else {
+                present.add(values[i]);
+            }
+        }
+        dos.write(nulls);
+
+        switch (encoding) {
+            case PLAIN -> {
+                for (Object value : present) {
+                    ZoneMap.writeValue(dos, value, attr);
+                }
+            }
+            case RUN_LENGTH -> {
+                List<Object> runValues = new ArrayList<>();
+                List<Integer> runLengths = new ArrayList<>();
+                for (Object value : present) {
+                    int last = runValues.size() - 1;
+                    if (last >= 0 && runValues.get(last).equals(value)) {
+                        runLengths.set(last, runLengths.get(last) + 1);
+                    } else {
+                        runValues.add(value);
+                        runLengths.add(1);
+                    }
+                }
+                dos.writeInt(runValues.size());
+                for (int i = 0; i < runValues.size(); i++) {
+                    ZoneMap.writeValue(dos, runValues.get(i), attr);
+                    writeVarint(dos, runLengths.get(i));
+                }
+            }
+            case DELTA -> {
+                long previous = 0;
+                for (Object value : present) {
+                    long current = (Integer) value;
+                    long delta = current - previous;
+                    writeVarint(dos, (delta << 1) ^ (delta >> 63));
+                    previous = current;
+                }
+            }
+            case DICTIONARY -> {
+                Map<Object, Integer> codes = new HashMap<>();
+                List<Object> dictionary = new ArrayList<>();
+                for (Object value : present) {
+                    if (codes.putIfAbsent(value, dictionary.size()) == null) {
+                        dictionary.add(value);
+                    }
+                }
+                dos.writeInt(dictionary.size());
+                for (Object value : dictionary) {
+                    ZoneMap.writeValue(dos, value, attr);
+                }
+                for (Object value : present) {
+                    writeVarint(dos, codes.get(value));
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown column encoding: " + encoding);
+        }
+        dos.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object[] decode(byte[] data, Attribute attr) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        byte encoding = dis.readByte();
+        Object[] values = new Object[dis.readInt()];
+        byte[] nulls = new byte[(values.length + 7) / 8];
+        dis.readFully(nulls);
+        int presentCount = 0;
+        for (int i = 0; i < values.length; i++) {
+            if ((nulls[i / 8] & (1 << (i % 8))) == 0) presentCount++;
+        }
+
+        Object[] present = new Object[presentCount];
+        switch (encoding) {
+            case PLAIN -> {
+                for (int i = 0; i < presentCount; i++) {
+                    present[i] = ZoneMap.readValue(dis, attr);
+                }
+            }
+            case RUN_LENGTH -> {
+                int runs = dis.readInt();
+                int next = 0;
+                for (int run = 0; run < runs; run++) {
+                    Object value = ZoneMap.readValue(dis, attr);
+                    int length = (int) readVarint(dis);
+                    Arrays.fill(present, next, next + length, value);
+                    next += length;
+                }
+            }
+            case DELTA -> {
+                long previous = 0;
+                for (int i = 0; i < presentCount; i++) {
+                    long zigzag = readVarint(dis);
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    present[i] = (int) previous;
+                }
+            }
+            case DICTIONARY -> {
+                Object[] dictionary = new Object[dis.readInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = ZoneMap.readValue(dis, attr);
+                }
+                for (int i = 0; i < presentCount; i++) {
+                    present[i] = dictionary[(int) readVarint(dis)];
+                }
+            }
+            default -> throw new IOException("Unknown column encoding: " + encoding);
+        }
+
+        for (int i = 0, next = 0; i < values.length; i++) {
+            if ((nulls[i / 8] & (1 << (i % 8))) == 0) {
+                values[i] = present[next++];
+            }
+        }
+        return values;
+    }
+
+    private static void writeVarint(DataOutputStream dos, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            dos.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dos.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream dis) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = dis.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // Written next to the old directory and renamed over it, the rename commits the change
+    private void writeDirectory() throws IOException {
+        Path path = Path.of(getDirectoryPath(table.getTableID()));
+        Path tempPath = Path.of(path + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempPath.toFile());
+             DataOutputStream dos = new DataOutputStream(fos)) {
+            dos.writeInt(generation);
+            dos.writeInt(attributes.length);
+            dos.writeInt(blocks.size());
+            for (Block block : blocks) {
+                dos.writeInt(block.rowCount);
+                for (int column = 0; column < attributes.length; column++) {
+                    dos.writeLong(block.offsets[column]);
+                    dos.writeInt(block.lengths[column]);
+                }
+                block.zone.writeToStream(dos, attributes);
+            }
+            dos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readDirectory(DataInputStream dis) throws IOException {
+        generation = dis.readInt();
+        int columnCount = dis.readInt();
+        if (columnCount != attributes.length) {
+            throw new IOException("written for " + columnCount + " columns, table has " + attributes.length);
+        }
+        int blockCount = dis.readInt();
+        for (int i = 0; i < blockCount; i++) {
+            Block block = new Block();
+            block.rowCount = dis.readInt();
+            block.offsets = new long[columnCount];
+            block.lengths = new int[columnCount];
+            for (int column = 0; column < columnCount; column++) {
+                block.offsets[column] = dis.readLong();
+                block.lengths[column] = dis.readInt();
+                fileEnds[column] = Math.max(fileEnds[column], block.offsets[column] + block.lengths[column]);
+            }
+            block.zone = ZoneMap.readFromStream(dis, attributes);
+            blocks.add(block);
+        }
+    }
+
+    // Column files of every generation of a table
+    private static File[] listColumnFiles(int tableID) {
+        return new File(Main.getDBLocation() + "tables").listFiles(
+                (dir, name) -> name.matches(tableID + "\\.\\d+\\.c\\d+"));
+    }
+
+    private String getColumnPath(int column) {
+        return Main.getDBLocation() + "tables/" + table.getTableID() + "." + generation + ".c" + column;
+    }
+
+    private static String getDirectoryPath(int tableID) {
+        return Main.getDBLocation() + "tables/" + tableID + ".cols";
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Estimates the number of distinct values added to it in a fixed 1KB, with about 3% error.
+// Each value is hashed to 64 bits: the first bits pick a register and the register keeps the
+// longest run of leading zeros seen in the rest. A value can't be taken back out.
+public class HyperLogLog {
+    private static final int INDEX_BITS = 10;
+    private static final int REGISTERS = 1 << INDEX_BITS;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this.registers = new byte[REGISTERS];
+    }
+
+    public void add(Object value) {
+        long hash = hash(value instanceof OverflowValue ref ? ref.getValue() : value);
+        int register = (int) (hash >>> (Long.SIZE - INDEX_BITS));
+        int rank = Math.min(Long.numberOfLeadingZeros(hash << INDEX_BITS) + 1, Long.SIZE - INDEX_BITS + 1);
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int empty = 0;
+        for (byte rank : registers) {
+            sum += 1.0 / (1L << rank);
+            if (rank == 0) empty++;
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && empty > 0) { // Few values, count the empty registers instead
+            estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+        }
+        return Math.round(estimate);
+    }
+
+    // Spreads the 32 bit hash code over 64 bits (the finalizer of MurmurHash3)
+    private static long hash(Object value) {
+        long hash = value.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void writeToStream(DataOutputStream dos) throws IOException {
+        dos.write(registers);
+    }
+
+    public static HyperLogLog readFromStream(DataInputStream dis) throws IOException {
+        HyperLogLog sketch = new HyperLogLog();
+        dis.readFully(sketch.registers);
+        return sketch;
+    }
+}
@@ -3,11 +3,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Set;
 
 public class Main {
     private static Catalog catalog;
     private static PageBuffer buffer;
     private static StorageManager storageManager;
+    private static WriteAheadLog wal;
+    private static Checkpointer checkpointer;
     private static String dbLocation;
     private static int pageSize;
     private static int bufferSize;
@@ -16,8 +19,9 @@ public class Main {
     private static ArrayList<BPlusTree> bPlusTrees;
 
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Usage: java Main <db location> <page size> <buffer size> <indexing>");
+        if (args.length != 4 && args.length != 5) {
+            System.out.println("Usage: java Main <db location> <page size> <buffer size> <indexing> [durability]");
+            System.out.println("    durability: per-commit (default), periodic(ms) or none");
             return;
         }
     
@@ -65,50 +69,76 @@ public class Main {
             System.exit(1);
         }
 
-        // Load BPlus tree roots from file
+        // Take back the writes of a statement cut off by a crash and replay the statements
+        // committed after the last checkpoint
+        Set<Integer> recoveredTables = null;
+        try {
+            wal = new WriteAheadLog(dbLocation);
+            checkpointer = new Checkpointer(wal, buffer);
+            recoveredTables = wal.recover(catalog);
+            if (args.length == 5 && !wal.setDurability(args[4])) {
+                System.err.println("Unknown durability " + args[4] + ", using " + wal.getDurability());
+            }
+            System.out.println("Durability: " + wal.getDurability());
+        } catch (IOException e) {
+            System.err.println("Failed to recover from the write-ahead log: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // Open the BPlus trees, their nodes are read as they are used. A tree that is missing or
+        // was changed after the last checkpoint is rebuilt from its table.
         if (indexing) {
-            System.out.println("READING TREE");
-            try {
-                File indexDir = new File(dbLocation + "/BPIndex");
-                if (indexDir.exists()) {
-                    System.out.println("EXISTS?!");
-                    for (Table table : catalog.getTables()) {
-                        System.out.println(table);
-                        Attribute primaryKey = null;
-                        for (Attribute attribute : table.getAttributes()) {
-                            System.out.println(attribute);
-                            if (attribute.isPrimaryKey()) {
-                                primaryKey = attribute;
-                                break;
-                            }
-                        }
-        
-                        System.out.println("TEST");
-                        System.out.println(primaryKey);
-
-                        if (primaryKey == null) {
-                            System.err.println("No primary key found for table: " + table.getName());
-                            continue; // Skip this table
-                        }
-        
-                        BPlusTree tree = BPlusTree.fromFile(table.getTableID(), primaryKey);
-                        if (tree != null) {
-                            // Use ensureCapacity if bPlusTrees is indexed by tableID
-                            while (bPlusTrees.size() <= table.getTableID()) {
-                                bPlusTrees.add(null);
-                            }
-                            bPlusTrees.set(table.getTableID(), tree);
-                        } else {
-                            System.err.println("Failed to load index for table: " + table.getName());
-                        }
+            for (Table table : catalog.getTables()) {
+                Attribute primaryKey = null;
+                for (Attribute attribute : table.getAttributes()) {
+                    if (attribute.isPrimaryKey()) {
+                        primaryKey = attribute;
+                        break;
                     }
-                    System.out.println("\nBPlus trees loaded successfully.");
                 }
-            } catch (Exception e) {
-                System.err.println("\nFailed to load BPlus Tree: " + e.getMessage());
-                e.printStackTrace();
+                if (primaryKey == null) {
+                    System.err.println("No primary key found for table: " + table.getName());
+                    continue; // Skip this table
+                }
+
+                while (bPlusTrees.size() <= table.getTableID()) {
+                    bPlusTrees.add(null);
+                }
+                BPlusTree tree = BPlusTree.fromFile(table.getTableID(), primaryKey);
+                if (tree != null) {
+                    bPlusTrees.set(table.getTableID(), tree);
+                } else if (table.isColumnar()) {
+                    bPlusTrees.set(table.getTableID(), new BPlusTree(primaryKey, table.getTableID()));
+                } else {
+                    System.out.println("Rebuilding index for table: " + table.getName());
+                    storageManager.rebuildIndex(table);
+                }
             }
-        }        
+        }
+
+        if (recoveredTables != null) {
+            finishRecovery(recoveredTables);
+        }
+    }
+
+    // The zone maps, unique indexes, statistics and trees saved at the last checkpoint don't describe the
+    // replayed or rolled back pages, so they are dropped or rebuilt before the recovered state is checkpointed
+    private static void finishRecovery(Set<Integer> recoveredTables) {
+        for (Table table : catalog.getTables()) {
+            if (!recoveredTables.contains(table.getTableID())) {
+                continue;
+            }
+            table.clearZoneMaps();
+            table.invalidateUniqueIndexes();
+            table.invalidateStats();
+            if (indexing && !table.isColumnar() && table.hasPrimaryKey(table)) {
+                while (bPlusTrees.size() <= table.getTableID()) {
+                    bPlusTrees.add(null);
+                }
+                storageManager.rebuildIndex(table);
+            }
+        }
+        checkpoint();
     }
     
     private static void runCommandLoop() {
@@ -148,20 +178,17 @@ public class Main {
     private static void shutdownDatabase() {
         System.out.println("\nSafely shutting down the database...");
         System.out.println("Purging page buffer...");
-        buffer.writeBuffer();
-        try {
-            System.out.println("Saving catalog...\n");
-            catalog.writeCatalog(dbLocation + "catalog.bin");
-        } catch (IOException e) {
-            System.err.println("Error saving catalog: " + e.getMessage());
-        }
-        for (BPlusTree tree : bPlusTrees) {
-            tree.writeToFile();
-            System.out.println("Indexes saved");
-        }
+        System.out.println("Saving catalog...\n");
+        checkpoint();
         System.out.println("Exiting the database...\n");
     }    
 
+    // Writes everything still only in the buffer or the log out to the table files, catalog
+    // and indexes, so the next start has nothing to replay
+    public static void checkpoint() {
+        checkpointer.checkpointNow();
+    }
+
     public static String getDBLocation() {
         return dbLocation;
     }
@@ -182,6 +209,14 @@ public class Main {
         return pageSize;
     }
 
+    public static WriteAheadLog getWal() {
+        return wal;
+    }
+
+    public static Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
     public static Boolean getIndexing() {
         return indexing;
     }
@@ -190,6 +225,14 @@ public class Main {
         return bPlusTrees;
     }
 
+    // Index of a table, null if indexing is off or the table has none
+    public static BPlusTree getBPlusTree(int tableID) {
+        if (!indexing || bPlusTrees == null || tableID < 0 || tableID >= bPlusTrees.size()) {
+            return null;
+        }
+        return bPlusTrees.get(tableID);
+    }
+
     public static void writeBuffer() {
         buffer.writeBuffer();
     }
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Stores large varchar values out of line so a record always fits inside one page.
+// Each table gets its own overflow file (tables/<tableId>.ovf) made of fixed size pages:
+//   page 0    -> header: int head of the free page list (-1 if empty)
+//   page 1..n -> int nextPageID (-1 at the end of a chain), int bytes used, value bytes
+// A record only keeps a small stub (negated length + first page of the chain).
+// A statement's changes to the file, chains written and freed alike, are kept in memory,
+// logged with the statement and only written once its commit is on disk.
+public class OverflowManager {
+    public static final int STUB_SIZE = 2 * Integer.BYTES;
+    private static final int PAGE_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int NO_PAGE = -1;
+
+    // Pages changed by the running statement by table and page, and the tables whose file it
+    // dropped. Reads see them, the files only get them in writeChanges after the commit.
+    private static final Map<Integer, Map<Integer, byte[]>> changedPages = new HashMap<>();
+    private static final Set<Integer> droppedTables = new HashSet<>();
+    private static final List<int[]> freedChains = new ArrayList<>(); // Table id and first page of the chains it freed
+
+    // Values whose inline encoding takes more than a quarter of a page are moved out of line
+    public static boolean needsOverflow(String value) {
+        return inlineSize(value) > Main.getPageSize() / 4;
+    }
+
+    // Number of bytes a varchar value takes inside its record
+    public static int varcharSize(Object value) {
+        if (value instanceof OverflowValue) {
+            return STUB_SIZE;
+        }
+        String stringValue = (String) value;
+        return needsOverflow(stringValue) ? STUB_SIZE : inlineSize(stringValue);
+    }
+
+    private static int inlineSize(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length + Integer.BYTES;
+    }
+
+    static String getFileName(int tableId) {
+        return Main.getDBLocation() + "tables/" + tableId + ".ovf";
+    }
+
+    // Writes the value into a new overflow chain and returns a reference to it
+    public static OverflowValue write(int tableId, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int pageSize = Main.getPageSize();
+        int chunkSize = pageSize - PAGE_HEADER_SIZE;
+        int chainLength = Math.max(1, (bytes.length + chunkSize - 1) / chunkSize);
+
+        try {
+            int[] chain = new int[chainLength];
+            for (int i = 0; i < chainLength; i++) {
+                chain[i] = allocatePage(tableId);
+            }
+
+            for (int i = 0; i < chainLength; i++) {
+                int offset = i * chunkSize;
+                int used = Math.min(chunkSize, bytes.length - offset);
+                ByteBuffer page = ByteBuffer.wrap(changePage(tableId, chain[i]));
+                page.putInt(i + 1 < chainLength ? chain[i + 1] : NO_PAGE);
+                page.putInt(used);
+                page.put(bytes, offset, used);
+            }
+            return new OverflowValue(tableId, chain[0], bytes.length, value);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing overflow value for table " + tableId, e);
+        }
+    }
+
+    // Follows the chain starting at firstPage and rebuilds the value
+    public static String read(int tableId, int firstPage, int length) {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+
+        try {
+            int pageId = firstPage;
+            while (pageId != NO_PAGE && offset < length) {
+                ByteBuffer page = ByteBuffer.wrap(readPage(tableId, pageId));
+                pageId = page.getInt();
+                int used = Math.min(page.getInt(), length - offset);
+                page.get(bytes, offset, used);
+                offset += used;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading overflow value for table " + tableId, e);
+        }
+        return new String(bytes, 0, offset, StandardCharsets.UTF_8);
+    }
+
+    // Returns every page of the chain to the free list when the statement commits. Until then
+    // the chain stays as it is, so a value the statement still reads from it is intact and no
+    // chain the statement writes takes its pages.
+    public static void free(int tableId, int firstPage) {
+        freedChains.add(new int[] { tableId, firstPage });
+    }
+
+    private static void freeChain(int tableId, int firstPage) {
+        try {
+            int pageId = firstPage;
+            while (pageId != NO_PAGE) {
+                ByteBuffer page = ByteBuffer.wrap(changePage(tableId, pageId));
+                int next = page.getInt(0);
+                ByteBuffer header = ByteBuffer.wrap(changePage(tableId, 0));
+                page.putInt(0, header.getInt(0));
+                header.putInt(0, pageId);
+                pageId = next;
+            }
+        } catch (IOException e) {
+            System.err.println("Error freeing overflow chain " + firstPage + " for table " + tableId);
+        }
+    }
+
+    // Logs the overflow pages changed by the running statement, and the files it dropped,
+    // right before its commit record. Redo rebuilds them if the files never got them.
+    public static void logChanges(WriteAheadLog wal) {
+        for (int[] chain : freedChains) {
+            freeChain(chain[0], chain[1]);
+        }
+        freedChains.clear();
+        for (int tableId : droppedTables) {
+            wal.logOverflowDrop(tableId);
+        }
+        for (Map.Entry<Integer, Map<Integer, byte[]>> table : changedPages.entrySet()) {
+            for (Map.Entry<Integer, byte[]> page : table.getValue().entrySet()) {
+                wal.logOverflowPage(table.getKey(), page.getKey(), page.getValue());
+            }
+        }
+    }
+
+    // Writes the overflow pages changed by the statement that just committed to their files.
+    // Until then they are only kept here, so a statement cut off by a crash leaves the files
+    // as they were, the same as the table slots it wrote.
+    public static void writeChanges(WriteAheadLog wal) {
+        if (droppedTables.isEmpty() && changedPages.isEmpty()) {
+            return;
+        }
+        wal.forceUpTo(wal.getCommitLsn()); // The log has to hold the pages before the files do
+        int pageSize = Main.getPageSize();
+        for (int tableId : droppedTables) {
+            File file = new File(getFileName(tableId));
+            if (file.exists() && !file.delete()) {
+                System.err.println("Could not delete overflow file: " + file.getPath());
+            }
+        }
+        for (Map.Entry<Integer, Map<Integer, byte[]>> table : changedPages.entrySet()) {
+            try (RandomAccessFile file = new RandomAccessFile(getFileName(table.getKey()), "rw")) {
+                for (Map.Entry<Integer, byte[]> page : table.getValue().entrySet()) {
+                    file.seek((long) page.getKey() * pageSize);
+                    file.write(page.getValue());
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing overflow file for table " + table.getKey());
+            }
+        }
+        droppedTables.clear();
+        changedPages.clear();
+    }
+
+    // Removes the overflow file of a dropped or emptied table once the statement commits
+    public static void dropTable(int tableId) {
+        changedPages.remove(tableId);
+        freedChains.removeIf(chain -> chain[0] == tableId);
+        droppedTables.add(tableId);
+    }
+
+    // A page as the running statement sees it: its own change if it made one, else the file's.
+    // The header of a table without a file yet has an empty free list.
+    private static byte[] readPage(int tableId, int pageId) throws IOException {
+        Map<Integer, byte[]> changed = changedPages.get(tableId);
+        if (changed != null && changed.containsKey(pageId)) {
+            return changed.get(pageId);
+        }
+        int pageSize = Main.getPageSize();
+        byte[] data = new byte[pageSize];
+        File fileName = new File(getFileName(tableId));
+        if (!droppedTables.contains(tableId) && fileName.length() >= (long) (pageId + 1) * pageSize) {
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+                file.seek((long) pageId * pageSize);
+                file.readFully(data);
+            }
+        } else if (pageId == 0) {
+            ByteBuffer.wrap(data).putInt(NO_PAGE);
+        }
+        return data;
+    }
+
+    // The running statement's copy of a page, made on its first change
+    private static byte[] changePage(int tableId, int pageId) throws IOException {
+        Map<Integer, byte[]> changed = changedPages.computeIfAbsent(tableId, id -> new HashMap<>());
+        byte[] page = changed.get(pageId);
+        if (page == null) {
+            page = readPage(tableId, pageId).clone();
+            changed.put(pageId, page);
+        }
+        return page;
+    }
+
+    // Pages of the overflow file, counting the ones the running statement added and the header
+    private static int getPageCount(int tableId) {
+        int pageCount = droppedTables.contains(tableId) ? 1
+                : (int) Math.max(1, new File(getFileName(tableId)).length() / Main.getPageSize());
+        Map<Integer, byte[]> changed = changedPages.get(tableId);
+        if (changed != null) {
+            for (int pageId : changed.keySet()) {
+                pageCount = Math.max(pageCount, pageId + 1);
+            }
+        }
+        return pageCount;
+    }
+
+    // Takes a page from the free list, or grows the file by one page
+    private static int allocatePage(int tableId) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(readPage(tableId, 0));
+        int freeHead = header.getInt(0);
+        if (freeHead != NO_PAGE) {
+            int next = ByteBuffer.wrap(readPage(tableId, freeHead)).getInt(0);
+            ByteBuffer.wrap(changePage(tableId, 0)).putInt(0, next);
+            return freeHead;
+        }
+        changePage(tableId, 0); // A new file gets its header with the page
+        int pageId = getPageCount(tableId);
+        changePage(tableId, pageId);
+        return pageId;
+    }
+}
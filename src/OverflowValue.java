@@ -0,0 +1,44 @@
+// Reference to a varchar value that is stored out of line in a table's overflow chain.
+// The value itself is only read from disk the first time it is asked for.
+public class OverflowValue {
+    private final int tableId;
+    private final int firstPage; // First page of the chain in tables/<tableId>.ovf
+    private final int length;    // Length of the value in bytes
+    private String value;
+
+    public OverflowValue(int tableId, int firstPage, int length, String value) {
+        this.tableId = tableId;
+        this.firstPage = firstPage;
+        this.length = length;
+        this.value = value;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public int getFirstPage() {
+        return firstPage;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isLoaded() {
+        return value != null;
+    }
+
+    // Loads the value from the overflow chain if it has not been read yet
+    public String getValue() {
+        if (value == null) {
+            value = OverflowManager.read(tableId, firstPage, length);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return getValue();
+    }
+}
@@ -4,19 +4,30 @@
 // Tables can span multiple pages
 // Pages can have different number of records based on size of each record
 // Varchars cause records to have different sizes
+// Large varchars are stored out of line (see OverflowManager) so a record always fits in a page
+// Each record has a slot id that stays the same while it is in the page, however the records
+// around it move. The B+ tree points at records by (table file slot, record slot), so an insert
+// or delete in the middle of a page changes no other entry of the tree.
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Page {
-    private int size;
+    public static final int HEADER_SIZE = 2 * Integer.BYTES; // record count + nextPageID
+    public static final int SLOT_SIZE = Integer.BYTES; // Slot id stored in front of each record, counted in size
+
+    private int size; // Bytes used by records, not counting the header
     private int pageId;
     private int tableId;
     private List<Record> records;
     private int recordCount;
     private boolean updated;
+    private boolean unlogged; // Changed since its image was last written to the write-ahead log
+    private int pinCount; // Scans using the page, a pinned page is never evicted
     private int nextPageID;
+    private int nextSlot; // Above every slot id in the page
 
     public Page(int pageId, int tableId, boolean updated) {
         this.pageId = pageId;
@@ -24,21 +35,73 @@ public class Page {
         this.records = new ArrayList<>();
         this.recordCount = 0;
         this.updated = updated;
+        this.unlogged = updated;
         this.nextPageID = 0; //IMPLEMENT
     }
 
     public void addRecord(Record record) {
+        record.setSlot(nextSlot++);
         this.records.add(record);
         this.recordCount++;
-        this.size += record.getSize();
+        this.size += record.getSize() + SLOT_SIZE;
         this.updated = true;
+        this.unlogged = true;
     }
 
     public void deleteRecord(Record record, int index) {
+        Table table = Main.getCatalog().getTable(tableId);
+        if (table != null) {
+            table.recordDeleted(record); // Before the overflow chains are freed
+        }
+        record.releaseOverflow();
         this.records.remove(index);
         this.recordCount--;
-        this.size -= record.getSize();
+        this.size -= record.getSize() + SLOT_SIZE;
+        this.updated = true;
+        this.unlogged = true;
+    }
+
+    // Deletes the flagged records in one pass, the others keep their order
+    public void deleteRecords(boolean[] deleted) {
+        Table table = Main.getCatalog().getTable(tableId);
+        for (int i = 0; i < records.size(); i++) {
+            if (deleted[i]) {
+                if (table != null) {
+                    table.recordDeleted(records.get(i)); // Before the overflow chains are freed
+                }
+                records.get(i).releaseOverflow();
+            }
+        }
+        removeRecords(deleted);
+    }
+
+    // Takes the flagged records out of the page as they are, to be placed elsewhere. The others keep their order.
+    public void removeRecords(boolean[] removed) {
+        List<Record> kept = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            if (removed[i]) {
+                this.size -= records.get(i).getSize() + SLOT_SIZE;
+            } else {
+                kept.add(records.get(i));
+            }
+        }
+        this.records = kept;
+        this.recordCount = kept.size();
         this.updated = true;
+        this.unlogged = true;
+    }
+
+    // Deletes the record at index by moving the last record of the page into its place. Used by
+    // heap tables, whose records are in no order. Returns the record that moved, null if the
+    // deleted one was last; it keeps its slot.
+    public Record swapDeleteRecord(int index) {
+        int last = records.size() - 1;
+        Record moved = index < last ? records.get(last) : null;
+        deleteRecord(records.get(index), index);
+        if (moved != null) {
+            records.add(index, records.remove(last - 1));
+        }
+        return moved;
     }
 
     public void shiftRecordsAndAdd(Record rec, int startingIndex) {
@@ -60,11 +123,13 @@ public class Page {
             }
         }
     
-        // Insert record at startingIndex, shifting others right
+        // Insert record at startingIndex, shifting others right. Their slots stay as they are.
+        rec.setSlot(nextSlot++);
         records.add(startingIndex, rec);
         recordCount++;
-        size += rec.getSize();
+        size += rec.getSize() + SLOT_SIZE;
         updated = true;
+        unlogged = true;
     
         // // Debug logging
         // System.out.println("shiftRecordsAndAdd: pageId=" + getPageId() +
@@ -77,9 +142,26 @@ public class Page {
         return records;
     }
 
+    // Replaces the records of the page, they keep the slots they had in the page they came from
     public void setRecords(List<Record> records) {
         this.records = records;
+        this.recordCount = records.size();
+        reCalcPageSize();
+        for (Record record : records) {
+            nextSlot = Math.max(nextSlot, record.getSlot() + 1);
+        }
         this.updated = true;
+        this.unlogged = true;
+    }
+
+    // Position of the record with the given slot, -1 if it is not in the page
+    public int indexOfSlot(int slot) {
+        for (int i = 0; i < records.size(); i++) {
+            if (records.get(i).getSlot() == slot) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public int getRecordCount() {
@@ -116,27 +198,49 @@ public class Page {
 
     public void setUpdated(boolean updated) {
         this.updated = updated;
+        this.unlogged |= updated;
+    }
+
+    public void pin() {
+        this.pinCount++;
+    }
+
+    public void unpin() {
+        this.pinCount--;
+    }
+
+    public boolean isPinned() {
+        return pinCount > 0;
+    }
+
+    public boolean isUnlogged() {
+        return unlogged;
+    }
+
+    public void setLogged() {
+        this.unlogged = false;
     }
 
     public boolean isOverfull() {
-        return getSize() > Main.getPageSize();
+        return HEADER_SIZE + getSize() > Main.getPageSize();
     }
 
     public void reCalcPageSize(){
         int size = 0;
         for(Record record: records){
-            size = size + record.getSize();
+            size = size + record.getSize() + SLOT_SIZE;
         }
 
         this.size = size;
     }
 
     public byte[] toBinary(Table table) {
-        ByteBuffer buffer = ByteBuffer.allocate(Main.getPageSize() + 8);
+        ByteBuffer buffer = ByteBuffer.allocate(Main.getPageSize());
         buffer.putInt(getRecordCount());
 
         for (Record record : records) {
-            byte[] recordBytes = record.toBinary(table.getAttributes());
+            buffer.putInt(record.getSlot());
+            byte[] recordBytes = record.toBinary(table);
             buffer.put(recordBytes);
         }
         buffer.putInt(this.nextPageID);
@@ -154,6 +258,7 @@ public class Page {
 
         // Populate page with records from binary data
         for (int i = 0; i < numRecords; i++) {
+            int slot = buffer.getInt();
             int recordSize = 0;
             List<Object> attrValues = new ArrayList<>(table.getAttributesCount());
             List<Byte> nullBitMap = readNullBitmap(buffer, table.getAttributesCount());
@@ -165,16 +270,20 @@ public class Page {
                 }
 
                 Attribute attr = attributes[j];
-                Object parsedValue = parseAttributeValue(buffer, attr);
+                Object parsedValue = parseAttributeValue(buffer, attr, tableNumber);
                 recordSize += getAttributeSize(parsedValue, attr);
                 attrValues.add(parsedValue);
             }
 
             Record record = new Record(recordSize, attrValues, nullBitMap);
             page.addRecord(record);
-            page.size += recordSize;
+            record.setSlot(slot);
+            page.nextSlot = Math.max(page.nextSlot, slot + 1);
         }
 
+        page.nextPageID = buffer.getInt();
+        page.updated = false;
+        page.unlogged = false;
         return page;
     }
 
@@ -190,13 +299,17 @@ public class Page {
     }
 
     // Parses an attribute value from the ByteBuffer based on its type
-    private static Object parseAttributeValue(ByteBuffer buffer, Attribute attr) {
+    private static Object parseAttributeValue(ByteBuffer buffer, Attribute attr, int tableNumber) {
         switch (attr.getType().toLowerCase()) {
             case "varchar":
                 int strLength = buffer.getInt();
+                if (strLength < 0) { // Stub for a value stored out of line, loaded lazily
+                    int firstPage = buffer.getInt();
+                    return new OverflowValue(tableNumber, firstPage, -strLength, null);
+                }
                 byte[] strBytes = new byte[strLength];
                 buffer.get(strBytes);
-                return new String(strBytes);
+                return new String(strBytes, StandardCharsets.UTF_8);
             case "char":
                 byte[] charBytes = new byte[attr.getSize()];
                 buffer.get(charBytes);
@@ -219,7 +332,7 @@ public class Page {
 
         switch (attr.getType().toLowerCase()) {
             case "varchar":
-                return ((String) value).length() + Integer.BYTES;
+                return OverflowManager.varcharSize(value);
             case "char":
                 return attr.getSize();
             case "integer":
@@ -1,7 +1,10 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.OptionalInt;
 import java.util.stream.IntStream;
@@ -9,23 +12,55 @@ import java.util.stream.IntStream;
 public class PageBuffer {
     private final int capacity;
     private final LinkedHashMap<PageKey, Page> pages;
+    // B+ tree nodes, keyed by table and page of the index file. They have an LRU of their own
+    // with the same capacity, so a scan streaming table pages can't push the upper levels of the
+    // trees out, and they are written to their index file when they are evicted.
+    private final LinkedHashMap<PageKey, BPlusNode> nodes;
 
     public PageBuffer(int capacity) {
         this.capacity = capacity;
         this.pages = new LinkedHashMap<>() { // LRU cache -- called automatically when something is added
             @Override
             protected boolean removeEldestEntry(Map.Entry<PageKey, Page> eldest) {
-                if (size() > PageBuffer.this.capacity) {
+                if (size() <= PageBuffer.this.capacity) {
+                    return false;
+                }
+                if (!eldest.getValue().isPinned()) {
                     writePage(eldest.getValue());
                     return true;
                 }
+
+                // Evict the oldest page no scan is using instead, if every page is pinned
+                // the buffer goes over capacity until one is released
+                Iterator<Page> candidates = values().iterator();
+                while (candidates.hasNext()) {
+                    Page page = candidates.next();
+                    if (!page.isPinned()) {
+                        writePage(page);
+                        candidates.remove();
+                        break;
+                    }
+                }
                 return false;
             }
         };
+        this.nodes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageKey, BPlusNode> eldest) {
+                if (size() <= PageBuffer.this.capacity) {
+                    return false;
+                }
+                if (eldest.getValue().isUpdated()) {
+                    eldest.getValue().write();
+                }
+                return true;
+            }
+        };
     }
 
     public void addPage(int pageNumber, Page page) {
         pages.put(new PageKey(page.getTableId(), pageNumber), page);
+        dropPendingRead(page.getTableId(), pageNumber);
     }
 
     public Page getPage(int tableID, int pageNumber) {
@@ -66,10 +101,21 @@ public class PageBuffer {
         }
 
         int address = Integer.BYTES + (indexOpt.getAsInt() * Main.getPageSize()); // Compute file offset
-
+        WriteAheadLog wal = Main.getWal();
         try (RandomAccessFile fileOut = new RandomAccessFile(fileName, "rw")) {
+            if (page.isUnlogged()) { // Changed by the running statement, which may not commit
+                wal.logUndo(table.getTableID(), indexOpt.getAsInt(), fileOut);
+                wal.logPage(table.getTableID(), indexOpt.getAsInt(), data);
+                page.setLogged();
+                wal.forceUpTo(wal.getNextLsn());
+            } else { // The log already has this image for this slot
+                wal.forceUpTo(wal.getCommitLsn());
+            }
             fileOut.seek(address);
             fileOut.write(data);
+            dropPendingRead(page.getTableId(), page.getPageId());
+            page.setUpdated(false); // Clean until changed again
+            table.setZoneMap(indexOpt.getAsInt(), ZoneMap.fromPage(page, table.getAttributes()));
             // System.out.println("Page " + page.getPageId() + " written successfully to " + fileName);
         } catch (IOException e) {
             System.err.println("Error writing page " + page.getPageId() + " to file: " + fileName);
@@ -77,6 +123,14 @@ public class PageBuffer {
         }
     }
 
+    // A read of the page started before it was buffered or written would return an old image
+    private static void dropPendingRead(int tableID, int pageNumber) {
+        StorageManager storageManager = Main.getStorageManager();
+        if (storageManager != null) {
+            storageManager.dropPendingRead(tableID, pageNumber);
+        }
+    }
+
     public void writeBuffer() {
         // Call the storage manager to write all pages in the buffer to hardware
 
@@ -115,6 +169,28 @@ public class PageBuffer {
         }
     }
 
+    // Pages changed since they were last written to their table file
+    public List<Page> getDirtyPages() {
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : pages.values()) {
+            if (page.isUpdated()) {
+                dirty.add(page);
+            }
+        }
+        return dirty;
+    }
+
+    // Pages changed since their image was last written to the write-ahead log
+    public List<Page> getUnloggedPages() {
+        List<Page> unlogged = new ArrayList<>();
+        for (Page page : pages.values()) {
+            if (page.isUnlogged()) {
+                unlogged.add(page);
+            }
+        }
+        return unlogged;
+    }
+
     public void updatePage(Page targetPage) {
         pages.put(new PageKey(targetPage.getTableId(), targetPage.getPageId()), targetPage);
     }
@@ -135,12 +211,52 @@ public class PageBuffer {
         }
     }
 
+    // Removes a page without writing it, used when the page is dropped from its table
+    public void removePage(int tableID, int pageNumber) {
+        pages.remove(new PageKey(tableID, pageNumber));
+    }
+
+    // Renumbers the buffered pages of a table whose id is at least fromPageId
+    public void shiftPageIds(int tableID, int fromPageId, int delta) {
+        List<Page> shifted = new ArrayList<>();
+        pages.entrySet().removeIf(entry -> {
+            if (entry.getKey().tableID() == tableID && entry.getKey().pageID() >= fromPageId) {
+                shifted.add(entry.getValue());
+                return true;
+            }
+            return false;
+        });
+
+        for (Page page : shifted) {
+            page.setPageId(page.getPageId() + delta);
+            pages.put(new PageKey(tableID, page.getPageId()), page);
+        }
+    }
+
     public void purgeTablePages(int tableID) {
         pages.entrySet().removeIf(entry -> entry.getKey().tableID() == tableID);
-    
-        System.gc();
+    }
+
+    public BPlusNode getNode(int tableID, int pageNumber) {
+        return nodes.get(new PageKey(tableID, pageNumber));
+    }
+
+    public void addNode(BPlusNode node) {
+        nodes.put(new PageKey(node.getTableID(), node.getPageNumber()), node);
+    }
+
+    // Writes the changed nodes of a table's tree to its index file
+    public void writeNodes(int tableID) {
+        for (BPlusNode node : nodes.values()) {
+            if (node.getTableID() == tableID && node.isUpdated()) {
+                node.write();
+            }
+        }
+    }
+
+    // Removes the nodes of a table's tree without writing them, used when the tree is replaced or dropped
+    public void purgeTableNodes(int tableID) {
+        nodes.entrySet().removeIf(entry -> entry.getKey().tableID() == tableID);
     }
     
 }
-
-record PageKey(int tableID, int pageID) {}
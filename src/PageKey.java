@@ -0,0 +1,2 @@
+// Identifies a page of a table file, or a node of a table's index file, in the page buffer
+public record PageKey(int tableID, int pageID) {}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+// Filtered scan of a large table on all cores. The pages to read are picked on the calling
+// thread (zone maps rule pages out, pages in the buffer are taken from it since they may be
+// newer than the file). They are then split into ranges that a ForkJoinPool reads straight from
+// the table file, decodes and filters, each range on its own thread. The rows of the ranges are
+// joined back in page order. Pages read this way don't go through the buffer, so a big scan
+// doesn't push the pages other statements use out of it.
+public class ParallelScan {
+    public static final int MIN_PAGES = 64; // Smaller scans stay on the calling thread
+    private static final int PAGES_PER_TASK = 16;
+
+    private final Table table;
+    private final Catalog catalog;
+    private final boolean[] columns;
+    private final Predicate<List<Object>> filter;
+    private final List<Integer> pageIds = new ArrayList<>(); // Pages to read, in order
+    private final List<Page> buffered = new ArrayList<>();   // Page from the buffer, or null to read slot
+    private final List<Integer> slots = new ArrayList<>();
+    private FileChannel file;
+
+    private ParallelScan(Table table, Catalog catalog, boolean[] columns, Predicate<List<Object>> filter) {
+        this.table = table;
+        this.catalog = catalog;
+        this.columns = columns;
+        this.filter = filter;
+    }
+
+    // Whether a scan is worth splitting up
+    public static boolean isWorthIt(Table table) {
+        return table.getPageCount() >= MIN_PAGES && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    // The tuples of the table that pass filter (all of them if it is null), in page order.
+    // Pages whose zone map rules out the where tree are not read.
+    public static List<List<Object>> getRecords(Table table, Catalog catalog, PageBuffer buffer, boolean[] columns,
+                                                Node where, List<String> columnNames, Predicate<List<Object>> filter) {
+        ParallelScan scan = new ParallelScan(table, catalog, columns, filter);
+        for (int pageId = 0; pageId < table.getPageCount(); pageId++) {
+            Page page = buffer.getPage(table.getTableID(), pageId);
+            if (page == null && where != null) {
+                ZoneMap zone = table.getZoneMap(pageId);
+                if (zone != null && !zone.mayMatch(where, columnNames)) {
+                    continue; // Nothing on this page can match, don't read it
+                }
+            }
+            scan.pageIds.add(pageId);
+            scan.buffered.add(page);
+            scan.slots.add(page == null ? table.getSlot(pageId) : -1);
+        }
+
+        Path fileName = Path.of(Main.getDBLocation() + "tables/" + table.getTableID() + ".bin");
+        try (FileChannel file = FileChannel.open(fileName, StandardOpenOption.READ)) {
+            scan.file = file;
+            return ForkJoinPool.commonPool().invoke(scan.new RangeTask(0, scan.pageIds.size()));
+        } catch (IOException e) {
+            System.err.println("Error opening table file: " + fileName);
+            return new ArrayList<>();
+        }
+    }
+
+    // Reads, decodes and filters the pages from index start (inclusive) to end (exclusive)
+    private class RangeTask extends RecursiveTask<List<List<Object>>> {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+
+        RangeTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<List<Object>> compute() {
+            if (end - start > PAGES_PER_TASK) {
+                int mid = (start + end) >>> 1;
+                RangeTask left = new RangeTask(start, mid);
+                left.fork();
+                List<List<Object>> right = new RangeTask(mid, end).compute();
+                List<List<Object>> tuples = left.join();
+                tuples.addAll(right);
+                return tuples;
+            }
+
+            List<List<Object>> tuples = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                Page page = buffered.get(i) != null ? buffered.get(i) : readPage(pageIds.get(i), slots.get(i));
+                if (page == null) {
+                    continue;
+                }
+                for (Record record : page.getRecords()) {
+                    List<Object> tuple = record.getData(columns);
+                    if (filter == null || filter.test(tuple)) {
+                        tuples.add(tuple);
+                    }
+                }
+            }
+            return tuples;
+        }
+    }
+
+    private Page readPage(int pageId, int slot) {
+        ByteBuffer data = ByteBuffer.allocate(Main.getPageSize());
+        long position = Integer.BYTES + ((long) slot * Main.getPageSize());
+        try {
+            while (data.hasRemaining()) {
+                int read = file.read(data, position + data.position());
+                if (read < 0) {
+                    throw new IOException("End of file");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading page " + pageId + " of table " + table.getTableID());
+            return null;
+        }
+        return Page.fromBinary(data.array(), table.getTableID(), pageId, catalog);
+    }
+}
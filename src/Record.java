@@ -1,12 +1,19 @@
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Record {
+    public static final boolean[] NO_COLUMNS = new boolean[0]; // getData() without loading any overflow value
     private int size;
     private List<Object> data;
     private List<Byte> nullBitMap; // Tracks attribute null status
+    private Map<Integer, OverflowValue> overflow = new HashMap<>(); // Out of line varchars by attribute index
+    private int slot; // Slot id in its page, see Page
+    private boolean overflowReleased; // Deleted, the chains of values never read are no longer its own
 
     public Record(int size, List<Object> data, List<Byte> nullBitMap) {
         this.data = new ArrayList<>(data); // Defensive copy
@@ -47,8 +54,9 @@ public class Record {
         }
     
         // Remove the value and shift remaining values left
-        this.data.remove(index);
+        Object value = this.data.remove(index);
         this.nullBitMap.remove(index);
+        removeOverflowIndex(index, value);
     }
     
     
@@ -59,6 +67,7 @@ public class Record {
 
         Object value = this.data.remove(index);
         this.nullBitMap.remove(index);
+        removeOverflowIndex(index, value);
 
         int sizeLost = Byte.BYTES; // 1 byte for null bitmap
         if (value != null) {
@@ -69,13 +78,48 @@ public class Record {
         return sizeLost;
     }
     
+    // Frees the overflow chain of a removed attribute and shifts the ones after it left
+    private void removeOverflowIndex(int index, Object removed) {
+        if (removed instanceof OverflowValue unloaded && !overflowReleased) {
+            OverflowManager.free(unloaded.getTableId(), unloaded.getFirstPage());
+        }
+        Map<Integer, OverflowValue> shifted = new HashMap<>();
+        for (Map.Entry<Integer, OverflowValue> entry : overflow.entrySet()) {
+            OverflowValue ref = entry.getValue();
+            if (entry.getKey() == index) {
+                OverflowManager.free(ref.getTableId(), ref.getFirstPage());
+            } else {
+                shifted.put(entry.getKey() > index ? entry.getKey() - 1 : entry.getKey(), ref);
+            }
+        }
+        overflow = shifted;
+    }
+
     // Calculates the size of an attribute dynamically
     private int getAttributeSize(Object value, Attribute attr) {
         return attr.getType().equalsIgnoreCase("varchar") 
-            ? ((String) value).length() + Integer.BYTES 
+            ? OverflowManager.varcharSize(value)
             : attr.getSize();
     }
 
+    // Replaces one value, keeping the null bitmap and the size in step. An out of line value set
+    // to null, or never read, frees its chain here, a non null value replaces it when the record
+    // is written. Returns the change in size.
+    public int setValue(int index, Object value, Attribute attr) {
+        Object oldValue = this.data.get(index);
+        int sizeDiff = (value == null ? 0 : getAttributeSize(value, attr)) - (oldValue == null ? 0 : getAttributeSize(oldValue, attr));
+        if (oldValue instanceof OverflowValue unloaded && !overflowReleased) {
+            OverflowManager.free(unloaded.getTableId(), unloaded.getFirstPage());
+        } else if (value == null && overflow.containsKey(index)) {
+            OverflowValue ref = overflow.remove(index);
+            OverflowManager.free(ref.getTableId(), ref.getFirstPage());
+        }
+        this.data.set(index, value);
+        this.nullBitMap.set(index, (byte) (value == null ? 1 : 0));
+        this.size += sizeDiff;
+        return sizeDiff;
+    }
+
     public void setBitMapValue(int index, int isNull) {
         if (index >= this.nullBitMap.size()) {
             this.nullBitMap.add((byte) isNull);
@@ -86,13 +130,59 @@ public class Record {
     }
     
     public List<Object> getData() {
+        return getData(null);
+    }
+
+    // Returns the data with only the flagged columns guaranteed to be loaded (null loads all).
+    // Unflagged out of line varchars stay as OverflowValue so their chains are never read.
+    public List<Object> getData(boolean[] columns) {
+        for (int i = 0; i < this.data.size(); i++) {
+            if (this.data.get(i) instanceof OverflowValue ref && (columns == null || (i < columns.length && columns[i]))) {
+                overflow.put(i, ref);
+                this.data.set(i, ref.getValue());
+            }
+        }
         return this.data;
     }
 
+    // Returns one value, loading it first if it is stored out of line
+    public Object getValue(int index) {
+        if (this.data.get(index) instanceof OverflowValue ref) {
+            overflow.put(index, ref);
+            this.data.set(index, ref.getValue());
+        }
+        return this.data.get(index);
+    }
+
+    // Frees every overflow chain owned by this record, used when the record is deleted. Values
+    // are not read for it, the stubs know their chains. If the record is reinserted its values
+    // are spilled again: loaded ones from memory, the others read first, which works until the
+    // statement commits and the chains are actually freed.
+    public void releaseOverflow() {
+        for (Object value : this.data) {
+            if (value instanceof OverflowValue unloaded && !overflowReleased) {
+                OverflowManager.free(unloaded.getTableId(), unloaded.getFirstPage());
+            }
+        }
+        for (OverflowValue ref : overflow.values()) {
+            OverflowManager.free(ref.getTableId(), ref.getFirstPage());
+        }
+        overflow.clear();
+        overflowReleased = true;
+    }
+
     public int getSize() {
         return this.size;
     }
 
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
     public byte getBitMapValue(int index) {
         if (index < 0 || index >= nullBitMap.size()) {
             throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for nullBitMap with size " + nullBitMap.size());
@@ -100,7 +190,8 @@ public class Record {
         return nullBitMap.get(index);
     }
 
-    public byte[] toBinary(Attribute[] attributes) {
+    public byte[] toBinary(Table table) {
+        Attribute[] attributes = table.getAttributes();
         ByteBuffer recData = ByteBuffer.allocate(this.size);
         
         // Write null bitmap
@@ -114,7 +205,11 @@ public class Record {
             }
 
             Object value = this.data.get(index);
-            writeAttributeToBuffer(recData, value, attr);
+            if (attr.getType().equalsIgnoreCase("varchar")) {
+                writeVarcharToBuffer(recData, value, index, table.getTableID());
+            } else {
+                writeAttributeToBuffer(recData, value, attr);
+            }
             index++;
         }
         return recData.array();
@@ -129,14 +224,46 @@ public class Record {
         return bitMap;
     }
 
+    // Writes a varchar either inline or as a stub pointing to its overflow chain.
+    // A chain is only written once; it is replaced when the value changes.
+    private void writeVarcharToBuffer(ByteBuffer buffer, Object value, int index, int tableId) {
+        if (value instanceof OverflowValue unloaded) {
+            if (!overflowReleased) { // Never read, so the stored chain is still current
+                buffer.putInt(-unloaded.getLength());
+                buffer.putInt(unloaded.getFirstPage());
+                return;
+            }
+            value = unloaded.getValue(); // Its chain was released, it gets a new one
+            this.data.set(index, value);
+        }
+
+        String varcharValue = (String) value;
+        OverflowValue ref = overflow.get(index);
+        if (ref != null && ref.getValue() != varcharValue) {
+            // Value was changed since the chain was written
+            OverflowManager.free(ref.getTableId(), ref.getFirstPage());
+            overflow.remove(index);
+            ref = null;
+        }
+
+        if (ref == null && OverflowManager.needsOverflow(varcharValue)) {
+            ref = OverflowManager.write(tableId, varcharValue);
+            overflow.put(index, ref);
+        }
+
+        if (ref != null) {
+            buffer.putInt(-ref.getLength());
+            buffer.putInt(ref.getFirstPage());
+        } else {
+            byte[] varcharBytes = varcharValue.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(varcharBytes.length);
+            buffer.put(varcharBytes);
+        }
+    }
+
     // Writes attribute value to ByteBuffer based on its type
     private void writeAttributeToBuffer(ByteBuffer buffer, Object value, Attribute attr) {
         switch (attr.getType().toLowerCase()) {
-            case "varchar":
-                String varcharValue = (String) value;
-                buffer.putInt(varcharValue.length());
-                buffer.put(varcharValue.getBytes());
-                break;
             case "char":
                 String charValue = (String) value;
                 byte[] charBytes = charValue.getBytes();
@@ -166,7 +293,8 @@ public class Record {
                     System.err.println("Error: Attribute index out of bounds. Attribute: " + AttributeName);
                     return null;
                 }
-                return data.get(i);
+                Object value = data.get(i);
+                return value instanceof OverflowValue ref ? ref.getValue() : value;
             }
         }
     
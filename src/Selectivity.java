@@ -0,0 +1,138 @@
+import java.util.List;
+
+// Estimates the fraction of rows a where tree keeps, from the statistics of the tables it reads
+// (see TableStats). columnNames are the columns of the tables one after the other, as in the rows
+// of their cartesian product. Comparisons with a literal use the column's histogram if the
+// table was analyzed; the others fall back on distinct counts and fixed guesses.
+public class Selectivity {
+    private static final double DEFAULT_RANGE = 1.0 / 3; // A range comparison nothing is known about
+
+    public static double estimate(Node where, List<String> columnNames, List<Table> tables) {
+        if (where == null) {
+            return 1;
+        }
+        switch (where.getValue()) {
+            case "and":
+                return estimate(where.getLeftLeaf(), columnNames, tables) * estimate(where.getRightLeaf(), columnNames, tables);
+            case "or": {
+                double left = estimate(where.getLeftLeaf(), columnNames, tables);
+                double right = estimate(where.getRightLeaf(), columnNames, tables);
+                return left + right - left * right;
+            }
+            case "=":
+            case "!=":
+            case ">":
+            case "<":
+            case ">=":
+            case "<=":
+                return comparison(where, columnNames, tables);
+            default:
+                return 1;
+        }
+    }
+
+    private static double comparison(Node comparison, List<String> columnNames, List<Table> tables) {
+        String operator = comparison.getValue();
+        Column left = Column.find(comparison.getLeftLeaf().getValue(), columnNames, tables);
+        Column right = Column.find(comparison.getRightLeaf().getValue(), columnNames, tables);
+
+        if (left != null && right != null) { // Two columns, a join when they are in different tables
+            double matching = left.nonNullFraction() * right.nonNullFraction();
+            double equal = 1.0 / Math.max(1, Math.max(left.distinct(), right.distinct()));
+            switch (operator) {
+                case "=":
+                    return matching * equal;
+                case "!=":
+                    return matching * (1 - equal);
+                default:
+                    return matching * DEFAULT_RANGE;
+            }
+        }
+
+        String literal;
+        if (left != null) {
+            literal = comparison.getRightLeaf().getValue();
+        } else if (right != null) { // Literal on the left side, mirror the operator
+            left = right;
+            literal = comparison.getLeftLeaf().getValue();
+            operator = flip(operator);
+        } else {
+            return 1; // Two literals, or a column that isn't there and will be reported when evaluated
+        }
+
+        if (literal.equals("null")) {
+            double nulls = 1 - left.nonNullFraction();
+            return operator.equals("!=") ? 1 - nulls : operator.equals("=") ? nulls : 0;
+        }
+        long distinct = left.distinct();
+        if (distinct == 0) {
+            return 0; // Every value is null
+        }
+        Object value = parseLiteral(literal, left.attribute());
+        ColumnHistogram histogram = left.stats().getHistogram(left.index());
+        double fraction;
+        if (histogram != null && value != null) {
+            fraction = histogram.selectivity(operator, value, distinct);
+        } else if (operator.equals("=")) {
+            fraction = 1.0 / distinct;
+        } else if (operator.equals("!=")) {
+            fraction = 1 - 1.0 / distinct;
+        } else {
+            fraction = DEFAULT_RANGE;
+        }
+        return left.nonNullFraction() * fraction;
+    }
+
+    private static String flip(String operator) {
+        switch (operator) {
+            case ">": return "<";
+            case "<": return ">";
+            case ">=": return "<=";
+            case "<=": return ">=";
+            default: return operator;
+        }
+    }
+
+    // The literal as a value of the column's type, null if it isn't one
+    private static Object parseLiteral(String literal, Attribute attr) {
+        switch (attr.getType().toLowerCase()) {
+            case "integer":
+            case "double":
+                try {
+                    return Double.parseDouble(literal);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            case "boolean":
+                return literal.equals("true") || literal.equals("false") ? Boolean.parseBoolean(literal) : null;
+            default:
+                String[] parts = literal.split("\"");
+                return parts.length == 2 ? parts[1] : null;
+        }
+    }
+
+    // A column of one of the tables, with the statistics of its table
+    private record Column(TableStats stats, int index, Attribute attribute) {
+        // Same name resolution as the where tree: qualified names match exactly, plain names by column
+        static Column find(String name, List<String> columnNames, List<Table> tables) {
+            int column = 0;
+            for (Table table : tables) {
+                for (int i = 0; i < table.getAttributesCount(); i++, column++) {
+                    String columnName = columnNames.get(column);
+                    if (columnName.equals(name) || columnName.substring(columnName.indexOf('.') + 1).equals(name)) {
+                        return new Column(table.getStats(), i, table.getAttributes()[i]);
+                    }
+                }
+            }
+            return null;
+        }
+
+        double nonNullFraction() {
+            return 1 - stats.getNullFraction(index);
+        }
+
+        long distinct() {
+            return stats.getDistinctCount(index, attribute);
+        }
+    }
+}
@@ -1,8 +1,16 @@
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.stream.IntStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -10,36 +18,121 @@ import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 
 public class StorageManager {
+    public static final double BULK_LOAD_FILL_FACTOR = 0.9; // Leaves room for later inserts without splitting
+    private static final int BULK_LOAD_MIN_RECORDS = 64; // Smaller inserts into a non empty table go row by row
+    private static final int MAX_PENDING_READS = 64; // Reads started ahead of getPage, the oldest are dropped
+
     private Catalog catalog;
     private PageBuffer buffer;
+    private AsyncPageReader pageReader;
+    private Map<PageKey, PendingRead> pendingReads; // Started by readPageAsync, not yet taken by getPage
+    private Map<Integer, List<byte[]>> rewrittenTables; // New page images of the tables replaced by the running statement
 
     public StorageManager(Catalog catalog, PageBuffer buffer) {
         this.catalog = catalog;
         this.buffer = buffer;
+        this.pageReader = new AsyncPageReader(catalog);
+        this.rewrittenTables = new LinkedHashMap<>();
+        this.pendingReads = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageKey, PendingRead> eldest) {
+                return size() > MAX_PENDING_READS;
+            }
+        };
     }
 
     // Returns a list of tuples (each tuple is a list of objects)
     public List<List<Object>> getRecords(int tableNumber) {
-        List<Page> pages = loadPages(tableNumber);
-        List<List<Object>> tuples = new ArrayList<>();
+        return getRecords(tableNumber, null);
+    }
 
-        for (Page page : pages) {
+    // Same as above, but only loads out of line varchars for the flagged columns
+    public List<List<Object>> getRecords(int tableNumber, boolean[] columns) {
+        return getRecords(tableNumber, columns, null, null);
+    }
+
+    // Same as above, but skips pages whose zone map rules out the where tree
+    public List<List<Object>> getRecords(int tableNumber, boolean[] columns, Node where, List<String> columnNames) {
+        return getRecords(tableNumber, columns, where, columnNames, null);
+    }
+
+    // Same as above, but only keeps the tuples accepted by filter (all of them if it is null).
+    // Pages are read one at a time, so only the tuples kept are held in memory. Large tables
+    // are read and filtered on all cores, see ParallelScan. Columnar tables only read the
+    // flagged columns, see ColumnStore.
+    public List<List<Object>> getRecords(int tableNumber, boolean[] columns, Node where, List<String> columnNames,
+                                         Predicate<List<Object>> filter) {
+        Table table = catalog.getTable(tableNumber);
+        if (table.isColumnar()) {
+            return table.getColumnStore().getRecords(columns, where, columnNames, filter);
+        }
+        if (ParallelScan.isWorthIt(table)) {
+            return ParallelScan.getRecords(table, catalog, buffer, columns, where, columnNames, filter);
+        }
+
+        List<List<Object>> tuples = new ArrayList<>();
+        for (Page page : scan(tableNumber, where, columnNames)) {
             for (Record record : page.getRecords()) {
-                tuples.add(record.getData());
+                List<Object> tuple = record.getData(columns);
+                if (filter == null || filter.test(tuple)) {
+                    tuples.add(tuple);
+                }
+            }
+        }
+        return tuples;
+    }
+
+    // The tuples of an indexed table whose primary key is between low and high (null for no
+    // bound), in key order, read through the B+ tree (see BPlusTree.rangeScan) instead of a scan.
+    // Only the flagged out of line varchars are loaded and only the tuples accepted by filter
+    // (all of them if it is null) are kept.
+    public List<List<Object>> getRecordsByKey(Table table, boolean[] columns, Object low, boolean lowInclusive,
+                                              Object high, boolean highInclusive, Predicate<List<Object>> filter) {
+        int tableNumber = table.getTableID();
+        BPlusTree tree = Main.getBPlusTree(tableNumber);
+        List<List<Object>> tuples = new ArrayList<>();
+        Page page = null;
+        int index = -1;
+        for (BPlusNode.Pair<Integer, Integer> recordId : tree.rangeScan(low, lowInclusive, high, highInclusive)) {
+            int pageId = table.getPageLocations()[recordId.getPageNumber()];
+            if (page == null || page.getPageId() != pageId) {
+                page = getPage(tableNumber, pageId);
+                index = -1;
+            }
+            // Keys next to each other are mostly next to each other in their page
+            List<Record> records = page.getRecords();
+            if (index + 1 < records.size() && records.get(index + 1).getSlot() == recordId.getIndex()) {
+                index++;
+            } else {
+                index = page.indexOfSlot(recordId.getIndex());
+            }
+            List<Object> tuple = records.get(index).getData(columns);
+            if (filter == null || filter.test(tuple)) {
+                tuples.add(tuple);
             }
         }
         return tuples;
     }
 
-    // Returns all pages for a given table number
-    public List<Page> getPages(int tableNumber) {
-        return loadPages(tableNumber);
+    // Scans all pages of a table in page order (primary key order unless it is a heap), see TableScan
+    public TableScan scan(int tableNumber) {
+        return scan(tableNumber, null, null);
+    }
+
+    // Scans the pages of a table that may hold a record matching the where tree. Pages already
+    // in the buffer are always returned; the others are only read if their zone map allows a match.
+    public TableScan scan(int tableNumber, Node where, List<String> columnNames) {
+        return new TableScan(this, buffer, catalog.getTable(tableNumber), where, columnNames);
     }
 
-    // Retrieves a page: checks buffer first, then loads from disk if missing
+    // Retrieves a page: checks buffer first, then a read started by readPageAsync, then loads
+    // from disk if missing
     public Page getPage(int tableNumber, int pageNumber) {
         Page page = buffer.getPage(tableNumber, pageNumber);
 
+        if (page == null) {
+            page = takePendingRead(tableNumber, pageNumber);
+        }
         if (page == null) { // Page not in buffer, load from disk
             page = loadPageFromDisk(tableNumber, pageNumber);
         }
@@ -47,6 +140,72 @@ public class StorageManager {
         return page;
     }
 
+    // Starts reading a page in the background and returns at once. The page is only added to
+    // the buffer when getPage asks for it, so a caller that changes it must go through getPage.
+    // Reads started for the same page are shared, and a read whose table changed its page
+    // layout since it started is thrown away by getPage instead of being used.
+    public CompletableFuture<Page> readPageAsync(int tableNumber, int pageNumber) {
+        Page page = buffer.getPage(tableNumber, pageNumber);
+        if (page != null) {
+            return CompletableFuture.completedFuture(page);
+        }
+
+        Table table = catalog.getTable(tableNumber);
+        PageKey key = new PageKey(tableNumber, pageNumber);
+        PendingRead pending = pendingReads.get(key);
+        if (pending != null && pending.isCurrent(table)) {
+            return pending.page();
+        }
+
+        int slot = table.getSlot(pageNumber);
+        if (slot < 0) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Page " + pageNumber + " not found in table " + tableNumber));
+        }
+        CompletableFuture<Page> read = pageReader.read(table, pageNumber, slot);
+        pendingReads.put(key, new PendingRead(table, table.getLayoutVersion(), read));
+        return read;
+    }
+
+    // Starts reading the first pages a scan of the table would need, so they are on their way
+    // while other work runs. Columnar tables and tables read by ParallelScan have their own reads.
+    public void prefetch(int tableNumber, Node where, List<String> columnNames) {
+        Table table = catalog.getTable(tableNumber);
+        if (!table.isColumnar() && !ParallelScan.isWorthIt(table)) {
+            scan(tableNumber, where, columnNames).readAhead();
+        }
+    }
+
+    // Forgets the reads started for a table and closes its file, used when it is dropped
+    public void dropPendingReads(int tableNumber) {
+        pendingReads.keySet().removeIf(key -> key.tableID() == tableNumber);
+        pageReader.close(tableNumber);
+    }
+
+    // Forgets the read started for one page, used when the page enters the buffer or is written,
+    // so getPage can't later be handed an image older than the one now in the buffer or on disk
+    public void dropPendingRead(int tableNumber, int pageNumber) {
+        pendingReads.remove(new PageKey(tableNumber, pageNumber));
+    }
+
+    // The page of a read started by readPageAsync, added to the buffer. Null if there was none
+    // or it can't be used, in which case the page is read again.
+    private Page takePendingRead(int tableNumber, int pageNumber) {
+        PendingRead pending = pendingReads.remove(new PageKey(tableNumber, pageNumber));
+        if (pending == null || !pending.isCurrent(catalog.getTable(tableNumber))) {
+            return null;
+        }
+        Page page;
+        try {
+            page = pending.page().join();
+        } catch (CompletionException e) {
+            return null;
+        }
+        buffer.addPage(pageNumber, page);
+        page.setUpdated(false);
+        return page;
+    }
+
     private Page loadPageFromDisk(int tableNumber, int pageNumber) {
         String fileName = Main.getDBLocation() + "/tables/" + tableNumber + ".bin";
         Table table = catalog.getTable(tableNumber);
@@ -80,17 +239,6 @@ public class StorageManager {
         }
     }
 
-    // Helper method to load pages from buffer or file
-    private List<Page> loadPages(int tableNumber) {
-        Table table = catalog.getTable(tableNumber);
-        List<Page> pages = new ArrayList<>();
-
-        for (int i = 0; i < table.getPageCount(); i++) {
-            pages.add(buffer.isPageInBuffer(tableNumber, i) ? buffer.getPage(tableNumber, i) : getPage(tableNumber, i));
-        }
-        return pages;
-    }
-
     private int findPrimaryKeyIndex(Attribute[] attrs) {
         for (int i = 0; i < attrs.length; i++) {
             if (attrs[i].isPrimaryKey()) return i;
@@ -100,84 +248,137 @@ public class StorageManager {
 
     // Splits a page into two when it exceeds capacity
     public SplitResult splitPage(Page page) {
+        return splitPage(page, false);
+    }
+
+    // Splits a page into two when it exceeds capacity. When the overflow comes from appending
+    // past the largest key of the last page (auto increasing keys), the page keeps every record
+    // but the new one, which starts a new page. A 50/50 split would leave every left half
+    // half empty forever, since no later key lands there.
+    public SplitResult splitPage(Page page, boolean append) {
         List<Record> allRecords = page.getRecords();
         Table table = catalog.getTable(page.getTableId());
+        if (table.isHeap()) {
+            return splitHeapPage(table, page);
+        }
         Attribute[] attrs = table.getAttributes();
-    
-        // Find primary key index and attribute
-        int pkIndex = -1;
-        Attribute pkAttr = null;
-        for (int i = 0; i < attrs.length; i++) {
-            if (attrs[i].getPrimaryKey()) {
-                pkIndex = i;
-                pkAttr = attrs[i];
+        int pkIndex = findPrimaryKeyIndex(attrs);
+        Attribute pkAttr = attrs[pkIndex];
+
+        // Records are normally kept in order already, only sort if they are not
+        Comparator<Record> byKey = (r1, r2) -> compareValues(pkAttr, r1.getValue(pkIndex), r2.getValue(pkIndex));
+        for (int i = 1; i < allRecords.size(); i++) {
+            if (byKey.compare(allRecords.get(i - 1), allRecords.get(i)) > 0) {
+                allRecords.sort(byKey);
                 break;
             }
         }
-        if (pkIndex == -1 || pkAttr == null) {
-            throw new IllegalStateException("No primary key found for table " + table.getName());
-        }
-    
-        // Use final local variables for lambda
-        final int finalPkIndex = pkIndex;
-        final Attribute finalPkAttr = pkAttr;
-    
-        // Sort records by primary key
-        allRecords.sort((r1, r2) -> {
-            Object val1 = r1.getData().get(finalPkIndex);
-            Object val2 = r2.getData().get(finalPkIndex);
-            switch (finalPkAttr.getType().toLowerCase()) {
-                case "integer":
-                    return Integer.compare((Integer) val1, (Integer) val2);
-                case "double":
-                    return Double.compare((Double) val1, (Double) val2);
-                case "varchar":
-                case "char":
-                    return ((String) val1).compareTo((String) val2);
-                case "boolean":
-                    return Boolean.compare((Boolean) val1, (Boolean) val2);
-                default:
-                    throw new UnsupportedOperationException("Unsupported primary key type: " + finalPkAttr.getType());
-            }
-        });
     
         int totalRecords = allRecords.size();
-        int midIndex = totalRecords / 2;
+        boolean rightmost = append && page.getPageId() == table.getPageCount() - 1 && totalRecords > 1;
+        int midIndex = rightmost ? totalRecords - 1 : totalRecords / 2;
     
         List<Record> firstHalf = new ArrayList<>(allRecords.subList(0, midIndex));
         List<Record> secondHalf = new ArrayList<>(allRecords.subList(midIndex, totalRecords));
     
         Record firstRecInNewPage = secondHalf.get(0);
     
-        int firstPageSize = 4 + firstHalf.stream().mapToInt(Record::getSize).sum();
-        int secondPageSize = 4 + secondHalf.stream().mapToInt(Record::getSize).sum();
-    
-        // Use getPageCount as the new page ID
-        int newPageId = table.getPageCount();
+        // New page goes right after the split page so page ids stay in primary key order. The
+        // records keep their slots.
+        int newPageId = page.getPageId() + 1;
         Page newPage = new Page(newPageId, page.getTableId(), true);
         newPage.setRecords(new ArrayList<>(secondHalf));
-        newPage.setRecordCount(secondHalf.size());
-        newPage.setSize(secondPageSize);
     
         page.setRecords(new ArrayList<>(firstHalf));
-        page.setRecordCount(firstHalf.size());
-        page.setSize(firstPageSize);
     
-        // Add new page to catalog (increments pageCount)
+        // Add new page to catalog (increments pageCount, shifts the ids of the pages after it)
         table.addPage(newPage);
         buffer.updatePage(page);
         buffer.addPage(newPage.getPageId(), newPage);
         writePage(newPage);
+
+        BPlusTree tree = Main.getBPlusTree(table.getTableID());
+        if (tree != null) { // Only the records that moved change page, the tree points at pages by slot
+            int newSlot = table.getSlot(newPageId);
+            for (Record record : secondHalf) {
+                tree.setEntry(record.getValue(pkIndex), new BPlusNode.Pair<>(newSlot, record.getSlot()));
+            }
+        }
     
         // Debug logging
         System.out.println("splitPage: pageId=" + page.getPageId() + ", records=" + firstHalf.size() +
                           ", newPageId=" + newPageId + ", newRecords=" + secondHalf.size() +
-                          ", firstRecInNewPage=" + firstRecInNewPage.getData());
+                          ", firstRecInNewPage=" + firstRecInNewPage.getData(Record.NO_COLUMNS));
     
         return new SplitResult(firstRecInNewPage, newPageId, 0);
     }
 
-    
+
+    // A heap page that outgrew its size (an update made a record longer) moves records from its
+    // end to a new last page until it fits. No other page id changes, the B+ tree is pointed
+    // at the records that moved.
+    private SplitResult splitHeapPage(Table table, Page page) {
+        List<Record> records = page.getRecords();
+        List<Record> moved = new ArrayList<>();
+        int movedSize = 0;
+        while (records.size() > 1 && Page.HEADER_SIZE + page.getSize() - movedSize > Main.getPageSize()) {
+            Record record = records.remove(records.size() - 1);
+            moved.add(0, record);
+            movedSize += record.getSize() + Page.SLOT_SIZE;
+        }
+        page.setRecords(records);
+
+        Page newPage = new Page(table.getPageCount(), table.getTableID(), true);
+        for (Record record : moved) {
+            newPage.addRecord(record);
+        }
+        table.addPage(newPage);
+        buffer.updatePage(page);
+
+        BPlusTree tree = Main.getBPlusTree(table.getTableID());
+        if (tree != null) {
+            int pkIndex = findPrimaryKeyIndex(table.getAttributes());
+            int newSlot = table.getSlot(newPage.getPageId());
+            for (Record record : moved) {
+                tree.setEntry(record.getValue(pkIndex), new BPlusNode.Pair<>(newSlot, record.getSlot()));
+            }
+        }
+        return new SplitResult(moved.get(0), newPage.getPageId(), 0);
+    }
+
+    // Frees a page slot in the table file by moving the last slot into it and shrinking the
+    // file, so the file stays contiguous. Returns false if nothing had to be moved.
+    public boolean removePageSlot(int tableNumber, int slot, int slotCount) {
+        String fileName = Main.getDBLocation() + "tables/" + tableNumber + ".bin";
+        int pageSize = Main.getPageSize();
+        int lastSlot = slotCount - 1;
+        boolean moved = false;
+        WriteAheadLog wal = Main.getWal();
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            long lastAddress = Integer.BYTES + ((long) lastSlot * pageSize);
+            if (slot != lastSlot && file.length() >= lastAddress + pageSize) {
+                byte[] data = new byte[pageSize];
+                file.seek(lastAddress);
+                file.readFully(data);
+                wal.logUndo(tableNumber, slot, file);
+                wal.logPage(tableNumber, slot, data);
+                wal.forceUpTo(wal.getNextLsn());
+                file.seek(Integer.BYTES + ((long) slot * pageSize));
+                file.write(data);
+                moved = true;
+            }
+            if (file.length() > lastAddress) {
+                wal.logUndo(tableNumber, lastSlot, file);
+                wal.logTruncate(tableNumber, lastSlot);
+                wal.forceUpTo(wal.getNextLsn());
+                file.setLength(lastAddress);
+            }
+        } catch (IOException e) {
+            System.err.println("Error removing page slot " + slot + " from file: " + fileName);
+        }
+        return moved;
+    }
 
     // Simply appends page to end of file
     public void appendPageToFile(Page page) {
@@ -220,224 +421,710 @@ public class StorageManager {
                 return;
             }
 
+            WriteAheadLog wal = Main.getWal();
+            if (page.isUnlogged()) { // Changed by the running statement, which may not commit
+                wal.logUndo(table.getTableID(), index, fileOut);
+                wal.logPage(table.getTableID(), index, data);
+                page.setLogged();
+                wal.forceUpTo(wal.getNextLsn());
+            } else { // The log already has this image for this slot
+                wal.forceUpTo(wal.getCommitLsn());
+            }
             fileOut.seek(Integer.BYTES + (index * Main.getPageSize())); // Seek to the page location
             fileOut.write(data); // Write the page data
+            dropPendingRead(page.getTableId(), page.getPageId());
+            page.setUpdated(false);
+            table.setZoneMap(index, ZoneMap.fromPage(page, table.getAttributes()));
             System.out.println("Page data saved in binary format at " + fileOut);
         } catch (IOException e) {
             // e.printStackTrace();
         }
     }
 
-    // Might not work... but maybe works now - Gian
+    // Inserts a record in primary key order. Pages are kept sorted by primary key, so the
+    // target page is found with a binary search over the pages' first keys and the slot with
+    // a binary search inside that page. Key and unique columns are checked against their UniqueIndex.
     public boolean addRecord(Catalog catalog, Record record, int tableNumber) {
         Table table = catalog.getTable(tableNumber);
         Attribute[] attributes = table.getAttributes();
-    
-        boolean maintainConstraints = false;
-        boolean indexFound = false;
-        int pageIndex = -1, recIndex = -1;
-    
-        // Iterate through pages to find the insertion point
-        for (int i = 0; i < table.getPageCount(); i++) {
-            if (indexFound && !maintainConstraints) break;
-            
-            Page page = getPage(table.getTableID(), i);
-            List<Record> existingRecords = page.getRecords();
-    
-            for (int j = 0; j < page.getRecordCount(); j++) {
-                if (indexFound && !maintainConstraints) break;
-                
-                Record existingRecord = existingRecords.get(j);
-                if (checkConstraints(attributes, record, existingRecord, i, j, maintainConstraints)) {
-                    return false; // Constraint violation
-                }                
-    
-                if (!indexFound && shouldInsertBefore(record, existingRecord, attributes)) {
-                    indexFound = true;
-                    pageIndex = i;
-                    recIndex = j;
-                }
+        int pkIndex = findPrimaryKeyIndex(attributes);
+        Object key = record.getValue(pkIndex);
+
+        if (violatesUniqueConstraints(table, record)) {
+            return false;
+        }
+
+        if (table.isHeap()) {
+            BPlusNode.Pair<Integer, Integer> recordId = addToHeap(table, record);
+            BPlusTree tree = Main.getBPlusTree(tableNumber);
+            if (tree != null) {
+                tree.insertEntry(key, recordId);
             }
+            table.recordInserted(record);
+            return true;
         }
-    
-        insertRecord(table, record, tableNumber, indexFound, pageIndex, recIndex);
+
+        int pageIndex = 0, recIndex = 0;
+        if (table.getPageCount() > 0) {
+            pageIndex = findPageForKey(table, pkIndex, key);
+            recIndex = findSlotForKey(getPage(tableNumber, pageIndex), pkIndex, attributes[pkIndex], key);
+            if (recIndex < 0) {
+                System.err.println("row (" + key + "): Duplicate primarykey for row (" + key + ")");
+                System.out.println("ERROR\n");
+                return false;
+            }
+        }
+
+        insertRecord(table, record, tableNumber, pageIndex, recIndex);
+        table.recordInserted(record);
         return true;
     }
-    
-    // Checks constraints like primary key and uniqueness
-    private boolean checkConstraints(Attribute[] attributes, Record record, Record existingRecord, int pageIndex, int recIndex, boolean maintainConstraints) {
-        for (int i = 0; i < attributes.length; i++) {
-            Attribute attr = attributes[i];
-    
-            if (attr.isUnique() || attr.isnonNull()) maintainConstraints = true;
-    
-            if (attr.isPrimaryKey() || attr.isUnique()) {
-                int comparison = compare(attr, record, existingRecord, i);
-                if (comparison == 0) {
-                    if(attr.isPrimaryKey()){
-                        System.err.println("row (" + record.getData().get(i) + "): Duplicate primarykey for row (" + record.getData().get(i) + ")");
-                        System.out.println("ERROR\n");
+
+    // Deletes the record of a key through the table's B+ tree, the records after it in its page
+    // move down by one and keep their slots. Returns the record, null if there is no record
+    // with that key.
+    public Record deleteByKey(Table table, Object key) {
+        if (table.isHeap()) {
+            return deleteFromHeap(table, key);
+        }
+        BPlusTree tree = Main.getBPlusTree(table.getTableID());
+        BPlusNode.Pair<Integer, Integer> recordId = tree.findEntry(key);
+        if (recordId == null) {
+            return null;
+        }
+        Page page = getPage(table.getTableID(), table.getPageLocations()[recordId.getPageNumber()]);
+        int index = page.indexOfSlot(recordId.getIndex());
+        Record record = page.getRecords().get(index);
+        boolean[] deleted = new boolean[page.getRecordCount()];
+        deleted[index] = true;
+        tree.removeEntry(key);
+        page.deleteRecords(deleted);
+        if (page.getRecordCount() == 0) {
+            table.dropPage(page.getPageId());
+        } else {
+            buffer.updatePage(page);
+        }
+        return record;
+    }
+
+    // Appends a record to a heap table: on the last page if it fits there, else on a page deletes
+    // freed up room on, else on a new last page. No record moves and no page id changes, so the
+    // B+ tree only gets the new key. Returns the (table file slot, record slot) of the record.
+    private BPlusNode.Pair<Integer, Integer> addToHeap(Table table, Record record) {
+        int tableNumber = table.getTableID();
+        Page page = null;
+        if (table.getPageCount() > 0) {
+            page = getPage(tableNumber, table.getPageCount() - 1);
+            if (!hasRoomFor(page, record)) {
+                Integer freePageId = table.getFreePage();
+                page = freePageId != null ? getPage(tableNumber, freePageId) : null;
+                if (page != null && !hasRoomFor(page, record)) {
+                    table.removeFreePage(freePageId); // Too full for this record, don't try it again
+                    page = null;
+                }
+            }
+        }
+
+        if (page == null) {
+            page = new Page(table.getPageCount(), tableNumber, true);
+            page.addRecord(record);
+            table.addPage(page);
+        } else {
+            page.addRecord(record);
+            buffer.updatePage(page);
+        }
+        if (page.getSize() >= (Main.getPageSize() - Page.HEADER_SIZE) / 2) {
+            table.removeFreePage(page.getPageId());
+        }
+        return new BPlusNode.Pair<>(table.getSlot(page.getPageId()), record.getSlot());
+    }
+
+    private boolean hasRoomFor(Page page, Record record) {
+        return Page.HEADER_SIZE + page.getSize() + record.getSize() + Page.SLOT_SIZE <= Main.getPageSize();
+    }
+
+    // Deletes the record of a key from a heap table through its B+ tree. Returns the record,
+    // null if there is no record with that key.
+    public Record deleteFromHeap(Table table, Object key) {
+        BPlusNode.Pair<Integer, Integer> recordId = Main.getBPlusTree(table.getTableID()).findEntry(key);
+        if (recordId == null) {
+            return null;
+        }
+        Page page = getPage(table.getTableID(), table.getPageLocations()[recordId.getPageNumber()]);
+        int index = page.indexOfSlot(recordId.getIndex());
+        Record record = page.getRecords().get(index);
+        deleteFromHeap(table, page, index);
+        return record;
+    }
+
+    // Deletes a record of a heap table, the last record of the page takes its place and keeps
+    // its slot. The page is kept even when it gets empty, so no page id changes; pages less than
+    // half full are used again by later inserts.
+    public void deleteFromHeap(Table table, Page page, int index) {
+        int pkIndex = findPrimaryKeyIndex(table.getAttributes());
+        Object key = page.getRecords().get(index).getValue(pkIndex);
+        page.swapDeleteRecord(index);
+
+        BPlusTree tree = Main.getBPlusTree(table.getTableID());
+        if (tree != null) {
+            tree.removeEntry(key);
+        }
+        if (page.getSize() < (Main.getPageSize() - Page.HEADER_SIZE) / 2) {
+            table.addFreePage(page.getPageId());
+        }
+        buffer.updatePage(page);
+    }
+
+    // Deletes the records accepted by filter in one pass over the pages the where tree may
+    // match, reading only the flagged columns of out of line varchars (all if columns is null).
+    // Each page is compacted once however many of its records go: the others keep their order
+    // and their slots. Emptied pages are dropped, except in a heap
+    // where they stay for later inserts. Returns the number of records deleted.
+    public int deleteWhere(Table table, Node where, List<String> columnNames, boolean[] columns,
+                           Predicate<List<Object>> filter) {
+        int tableNumber = table.getTableID();
+        int pkIndex = findPrimaryKeyIndex(table.getAttributes());
+        BPlusTree tree = Main.getBPlusTree(tableNumber);
+        int deleted = 0;
+        for (Page page : scan(tableNumber, where, columnNames)) {
+            List<Record> records = page.getRecords();
+            boolean[] matching = new boolean[records.size()];
+            int removed = 0;
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                matching[i] = filter == null || filter.test(record.getData(columns));
+                if (matching[i]) {
+                    removed++;
+                    if (tree != null) {
+                        tree.removeEntry(record.getValue(pkIndex));
                     }
-                    else{
-                        System.err.println("row (" + record.getData().get(i) + "): Duplicate unique value for row (" + record.getData().get(i) + ")");
-                        System.out.println("ERROR\n");
+                }
+            }
+            if (removed == 0) {
+                continue;
+            }
+            deleted += removed;
+            page.deleteRecords(matching);
+
+            if (page.getRecordCount() == 0 && !table.isHeap()) {
+                table.dropPage(page.getPageId());
+                continue;
+            }
+            if (table.isHeap() && page.getSize() < (Main.getPageSize() - Page.HEADER_SIZE) / 2) {
+                table.addFreePage(page.getPageId());
+            }
+            buffer.updatePage(page);
+        }
+        return deleted;
+    }
+
+    // Changes the records accepted by filter in one pass over the pages the where tree may match,
+    // reading only the flagged columns of out of line varchars (all if columns is null). change
+    // gets the values of a record and returns the new ones; only the values that differ are
+    // written, each through Table.valueUpdated. Records are changed in place, and a page that
+    // outgrows its size is split. A record of an ordered table whose primary key changed is taken
+    // out of its page and returned: the caller inserts those again once the scan is done, a
+    // record put back in a page the scan has yet to reach would be changed twice.
+    public List<Record> updateWhere(Table table, Node where, List<String> columnNames, boolean[] columns,
+                                    Predicate<List<Object>> filter, UnaryOperator<List<Object>> change) {
+        int tableNumber = table.getTableID();
+        Attribute[] attributes = table.getAttributes();
+        int pkIndex = findPrimaryKeyIndex(attributes);
+        BPlusTree tree = Main.getBPlusTree(tableNumber);
+        List<Record> moved = new ArrayList<>();
+        try (TableScan scan = scan(tableNumber, where, columnNames)) {
+            for (Page page : scan) {
+                List<Record> records = page.getRecords();
+                boolean[] keyChanged = new boolean[records.size()];
+                boolean changed = false, anyKeyChanged = false;
+                for (int i = 0; i < records.size(); i++) {
+                    Record record = records.get(i);
+                    List<Object> row = record.getData(columns);
+                    if (filter != null && !filter.test(row)) {
+                        continue;
+                    }
+                    List<Object> newRow = change.apply(new ArrayList<>(row));
+                    for (int c = 0; c < attributes.length; c++) {
+                        Object oldValue = row.get(c);
+                        Object newValue = newRow.get(c);
+                        if (oldValue == newValue || (oldValue != null && oldValue.equals(newValue))) {
+                            continue;
+                        }
+                        table.valueUpdated(c, oldValue, newValue);
+                        page.setSize(page.getSize() + record.setValue(c, newValue, attributes[c]));
+                        changed = true;
+                        if (c != pkIndex || (tree == null && table.isHeap())) {
+                            continue;
+                        }
+                        if (table.isHeap()) { // A heap record stays where it is, only its key moves in the tree
+                            tree.insertEntry(newValue, tree.removeEntry(oldValue));
+                        } else {
+                            keyChanged[i] = true;
+                            anyKeyChanged = true;
+                            if (tree != null) {
+                                tree.removeEntry(oldValue);
+                            }
+                        }
                     }
-                    return true; // Constraint violation
                 }
+                if (!changed) {
+                    continue;
+                }
+                page.setUpdated(true);
+
+                if (anyKeyChanged) {
+                    for (int i = 0; i < records.size(); i++) {
+                        if (keyChanged[i]) {
+                            table.recordDeleted(records.get(i)); // Counted again when it is inserted
+                            moved.add(records.get(i));
+                        }
+                    }
+                    page.removeRecords(keyChanged);
+                    if (page.getRecordCount() == 0) {
+                        table.dropPage(page.getPageId());
+                        continue;
+                    }
+                }
+                splitToFit(table, page);
+                buffer.updatePage(page);
             }
         }
-        return false;
+        return moved;
     }
-    
-    // Determines whether record should be inserted before another record
-    private boolean shouldInsertBefore(Record record, Record existingRecord, Attribute[] attributes) {
+
+    // Splits an overfull page until it and the pages split off it fit
+    private void splitToFit(Table table, Page page) {
+        while (page.isOverfull() && page.getRecordCount() > 1) {
+            SplitResult split = splitPage(page);
+            splitToFit(table, getPage(table.getTableID(), split.newPageId));
+        }
+    }
+
+    // Returns the position of the first record that repeats a primary key or unique value, either
+    // of the table or of an earlier record in the list, or records.size() if there is none.
+    // Prints the same error as a row at a time insert would.
+    public int findFirstDuplicate(Table table, List<Record> records) {
+        Attribute[] attributes = table.getAttributes();
+        List<Integer> columns = new ArrayList<>();
         for (int i = 0; i < attributes.length; i++) {
-            if (attributes[i].isPrimaryKey() && compare(attributes[i], record, existingRecord, i) < 0) {
-                return true;
+            if (attributes[i].isUnique() || attributes[i].isPrimaryKey()) columns.add(i);
+        }
+
+        List<HashSet<Object>> seen = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            seen.add(new HashSet<>());
+        }
+
+        for (int row = 0; row < records.size(); row++) {
+            for (int i = 0; i < columns.size(); i++) {
+                int column = columns.get(i);
+                Object value = records.get(row).getValue(column);
+                if (value == null) continue;
+                if (table.getUniqueIndex(column).contains(value) || !seen.get(i).add(value)) {
+                    String kind = attributes[column].isPrimaryKey() ? "primarykey" : "unique value";
+                    System.err.println("row (" + value + "): Duplicate " + kind + " for row (" + value + ")");
+                    System.out.println("ERROR\n");
+                    return row;
+                }
             }
         }
-        return false;
+        return records.size();
     }
-    
-    // Inserts a record into the correct page
-    private void insertRecord(Table table, Record record, int tableNumber, boolean indexFound, int pageIndex, int recIndex) {
-        Page targetPage;
 
+    // A bulk load rewrites the whole table, so it is only worth it when the table is empty or when
+    // a large insert holds more records than the table. Counts come from the buffer or the zone maps.
+    public boolean prefersBulkLoad(Table table, int recordCount) {
         if (table.getPageCount() == 0) {
-            targetPage = new Page(0, tableNumber, true);
-            targetPage.addRecord(record);
-            table.addPage(targetPage);
-            buffer.addPage(0, targetPage); // Explicitly add to buffer
-            System.out.println("DEBUG: First page created and record added.");
-        } else {
-            pageIndex = indexFound ? pageIndex : table.getPageCount() - 1;
-            targetPage = getPage(tableNumber, pageIndex);
+            return true;
+        }
+        if (recordCount < BULK_LOAD_MIN_RECORDS) {
+            return false;
+        }
+        int existing = 0;
+        for (int i = 0; i < table.getPageCount() && existing <= recordCount; i++) {
+            Page page = buffer.getPage(table.getTableID(), i);
+            ZoneMap zone = page == null ? table.getZoneMap(i) : null;
+            existing += page != null ? page.getRecordCount()
+                      : zone != null ? zone.getRecordCount()
+                      : getPage(table.getTableID(), i).getRecordCount();
+        }
+        return existing <= recordCount;
+    }
 
-            if (indexFound) {
-                System.out.println("DEBUG: Shifting and adding at page " + pageIndex + ", index " + recIndex);
-                targetPage.shiftRecordsAndAdd(record, recIndex);
-            } else {
-                System.out.println("DEBUG: Appending to end of page " + pageIndex);
-                targetPage.addRecord(record);
+    // Inserts records that passed findFirstDuplicate by rebuilding the table bottom up: the new
+    // records are sorted by primary key, merged with the existing ones (already in order), packed
+    // into pages up to BULK_LOAD_FILL_FACTOR and written out with rewriteTable.
+    public void bulkLoad(Table table, List<Record> records) {
+        int tableNumber = table.getTableID();
+        Attribute[] attributes = table.getAttributes();
+        int pkIndex = findPrimaryKeyIndex(attributes);
+        Attribute pkAttr = attributes[pkIndex];
+        Comparator<Record> byKey = (r1, r2) -> compareValues(pkAttr, r1.getValue(pkIndex), r2.getValue(pkIndex));
+
+        List<Record> sorted = new ArrayList<>(records);
+        sorted.sort(byKey);
+
+        List<Record> all = new ArrayList<>(sorted.size());
+        int next = 0;
+        for (Page page : scan(tableNumber)) {
+            for (Record record : page.getRecords()) {
+                while (next < sorted.size() && byKey.compare(sorted.get(next), record) < 0) {
+                    all.add(sorted.get(next++));
+                }
+                all.add(record);
             }
         }
+        all.addAll(sorted.subList(next, sorted.size()));
 
-        // Evict stale page to avoid duplicates or corrupt state
-        buffer.evictPage(targetPage.getPageId(), targetPage.getTableId());
-
-        if (targetPage.isOverfull()) {
-            System.out.println("DEBUG: Page " + targetPage.getPageId() + " is overfull. Splitting...");
-            splitPage(targetPage);
-        } else {
-            buffer.addPage(targetPage.getPageId(), targetPage); // Re-add only once, cleanly
+        rewriteTable(table, packPages(all));
+        for (Record record : records) {
+            table.recordInserted(record);
         }
     }
 
-    
-    // Compares attribute values
-    private int compare(Attribute attr, Record record, Record existingRecord, int index) {
-        Object value1 = record.getData().get(index);
-        Object value2 = existingRecord.getData().get(index);
-    
-        switch (attr.getType().toLowerCase()) {
-            case "varchar":
-            case "char":
-                return ((String) value1).compareTo((String) value2);
-            case "integer":
-                return Integer.compare((int) value1, (int) value2);
-            case "double":
-                return Double.compare((double) value1, (double) value2);
-            case "boolean":
-                return Boolean.compare((boolean) value1, (boolean) value2);
-            default:
-                throw new IllegalArgumentException("Unsupported attribute type: " + attr.getType());
+    // Replaces the records of a table with the given ones, already in primary key order, packed
+    // into pages as by bulkLoad. Used by alter table, whose records are read with the column
+    // list the pages were written with and only then changed to the new one.
+    public void rewriteRecords(Table table, List<Record> records) {
+        rewriteTable(table, packPages(records));
+    }
+
+    // Packs records into pages up to BULK_LOAD_FILL_FACTOR, a record bigger than the fill limit
+    // still gets a page of its own
+    private List<List<Record>> packPages(List<Record> records) {
+        int fillLimit = (int) ((Main.getPageSize() - Page.HEADER_SIZE) * BULK_LOAD_FILL_FACTOR);
+        List<List<Record>> pages = new ArrayList<>();
+        List<Record> pageRecords = null;
+        int pageSize = 0;
+        for (Record record : records) {
+            if (pageRecords == null || (!pageRecords.isEmpty() && pageSize + record.getSize() + Page.SLOT_SIZE > fillLimit)) {
+                pageRecords = new ArrayList<>();
+                pages.add(pageRecords);
+                pageSize = 0;
+            }
+            pageRecords.add(record);
+            pageSize += record.getSize() + Page.SLOT_SIZE;
         }
+        return pages;
     }
 
+    // Compacts a table: adjacent pages are merged when one of them is less than half full and
+    // their records fit in one page, and the pages are written back in order to a file holding
+    // no other slots. Full pages keep their records. The B+ tree is rebuilt over the new pages.
+    // Returns the number of pages freed.
+    public int vacuum(Table table) {
+        int capacity = Main.getPageSize() - Page.HEADER_SIZE;
+        List<List<Record>> pages = new ArrayList<>();
+        List<Record> current = null;
+        int currentSize = 0;
+        for (Page page : scan(table.getTableID())) {
+            if (page.getRecordCount() == 0) continue;
+            boolean underfilled = currentSize < capacity / 2 || page.getSize() < capacity / 2;
+            if (current == null || !underfilled || currentSize + page.getSize() > capacity) {
+                current = new ArrayList<>();
+                pages.add(current);
+                currentSize = 0;
+            }
+            current.addAll(page.getRecords());
+            currentSize += page.getSize();
+        }
 
-    // insert record using index
-    public boolean insertUsingIndex(Record record, int tableID, BPlusTree tree) {
-        Table table = catalog.getTable(tableID);
-        Attribute[] attrs = table.getAttributes();
+        int freed = table.getPageCount() - pages.size();
+        boolean inOrder = true;
+        for (int i = 0; i < table.getPageCount(); i++) {
+            inOrder &= table.getPageLocations()[i] == i;
+        }
+        if (freed > 0 || !inOrder) {
+            rewriteTable(table, pages);
+        } else if (Main.getIndexing()) {
+            rebuildIndex(table, scan(table.getTableID())); // Pages stay, the tree is still made compact
+        }
+        return freed;
+    }
 
-        // get primary key + value
-        int pkIndex = -1;
-        Object pkValue = null;
-        for (int i = 0; i < attrs.length; i++) {
-            if (attrs[i].isPrimaryKey()) {
-                pkIndex = i;
-                pkValue = record.getData().get(i);
-                break;
+    // Replaces the whole table with the given pages of records, in primary key order. The
+    // table file is rewritten in one pass with page i in slot i once the statement commits,
+    // and when indexing is on the B+ tree is rebuilt from the leaves up. A rewrite is the last
+    // change its statement makes to the table.
+    private void rewriteTable(Table table, List<List<Record>> pageRecords) {
+        int tableNumber = table.getTableID();
+        Attribute[] attributes = table.getAttributes();
+
+        List<Page> pages = new ArrayList<>(pageRecords.size());
+        for (List<Record> records : pageRecords) {
+            Page page = new Page(pages.size(), tableNumber, true);
+            for (Record record : records) {
+                page.addRecord(record);
             }
+            pages.add(page);
         }
-        if (pkIndex == -1 || pkValue == null) {
-            System.err.println("Primary key is missing or null.");
-            return false;
+
+        for (int i = 0; i < table.getPageCount(); i++) {
+            buffer.removePage(tableNumber, i);
         }
+        List<byte[]> images = new ArrayList<>(pages.size());
+        WriteAheadLog wal = Main.getWal();
+        for (Page page : pages) {
+            byte[] image = page.toBinary(table);
+            wal.logPage(tableNumber, images.size(), image);
+            page.setUpdated(false);
+            page.setLogged();
+            images.add(image);
+        }
+        wal.logTruncate(tableNumber, pages.size());
+        rewrittenTables.put(tableNumber, images);
 
-        // search index
-        BPlusNode targetLeaf = tree.search(pkValue);
-        if (targetLeaf != null && targetLeaf.getKeys().contains(pkValue)) {
-            System.err.println("Duplicate primary key: " + pkValue);
-            return false;
+        table.resetPages(pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            table.setZoneMap(i, ZoneMap.fromPage(pages.get(i), attributes));
         }
 
-        // determine where to insert
-        int pageNum = 0;
-        int insertIndex = -1;
+        if (Main.getIndexing()) {
+            rebuildIndex(table, pages);
+        }
+    }
 
-        if (targetLeaf != null) {
-            List<Object> keys = targetLeaf.getKeys();
-            List<BPlusNode.Pair<Integer, Integer>> pointers = targetLeaf.getPointers();
+    // Empties a table without reading it: its pages leave the buffer, the table file is cut
+    // back to its header and the B+ tree starts over, so the cost doesn't grow with the table.
+    // Out of line varchars go with the overflow file.
+    public void truncate(Table table) {
+        int tableNumber = table.getTableID();
+        buffer.purgeTablePages(tableNumber);
+        dropPendingReads(tableNumber);
+        OverflowManager.dropTable(tableNumber);
+        if (table.isColumnar()) {
+            table.getColumnStore().truncate();
+            table.rowsCleared();
+            return;
+        }
 
-            for (int i = 0; i < keys.size(); i++) {
-                if (tree.compare(pkValue, keys.get(i)) < 0) {
-                    pageNum = pointers.get(i).getPageNumber();
-                    insertIndex = pointers.get(i).getIndex();
-                    break;
+        Main.getWal().logTruncate(tableNumber, 0);
+        rewrittenTables.put(tableNumber, new ArrayList<>()); // Cut back to its header at commit
+        table.resetPages(0);
+        table.rowsCleared();
+
+        if (Main.getBPlusTree(tableNumber) != null) {
+            Attribute pkAttr = table.getAttributes()[findPrimaryKeyIndex(table.getAttributes())];
+            Main.getBPlusTrees().set(tableNumber, new BPlusTree(pkAttr, tableNumber));
+        }
+    }
+
+    // Logs the pages and page layouts changed by the statement that just ran and waits until
+    // the log is on disk. Pages written out during the statement were logged when they were
+    // written, the ones still in the buffer are logged here. Schema changes log the catalog.
+    // Tables replaced by rewriteTable or truncate, and overflow pages, are written after the commit.
+    public void commit(boolean schemaChanged) {
+        WriteAheadLog wal = Main.getWal();
+        for (Page page : buffer.getUnloggedPages()) {
+            Table table = catalog.getTable(page.getTableId());
+            int slot = table == null ? -1 : table.getSlot(page.getPageId());
+            if (slot >= 0) {
+                wal.logPage(table.getTableID(), slot, page.toBinary(table));
+            }
+            page.setLogged(); // Pages of dropped tables have nothing to log
+        }
+
+        if (schemaChanged) {
+            wal.logCatalog(catalog); // Holds the page layouts as well
+        } else {
+            for (Table table : catalog.getTables()) {
+                if (table.isLayoutChanged()) {
+                    wal.logTableLayout(table);
                 }
             }
+        }
+        for (Table table : catalog.getTables()) {
+            table.setLayoutLogged();
+        }
+        OverflowManager.logChanges(wal); // After the pages, whose images may spill values
+        wal.commit();
+        writeRewrittenTables(wal);
+        OverflowManager.writeChanges(wal);
+        Main.getCheckpointer().afterCommit();
+    }
 
-            // If pkValue is largest, use last pointer
-            if (insertIndex == -1 && !pointers.isEmpty()) {
-                BPlusNode.Pair<Integer, Integer> lastPtr = pointers.get(pointers.size() - 1);
-                pageNum = lastPtr.getPageNumber();
-                insertIndex = lastPtr.getIndex();
+    // Writes the table files replaced by the statement that just committed. The log has no undo
+    // for them, so it has to be on disk up to the commit first; a crash before the files are
+    // written is repaired by replaying the statement.
+    private void writeRewrittenTables(WriteAheadLog wal) {
+        if (rewrittenTables.isEmpty()) {
+            return;
+        }
+        wal.forceUpTo(wal.getCommitLsn());
+        for (Map.Entry<Integer, List<byte[]>> entry : rewrittenTables.entrySet()) {
+            String fileName = Main.getDBLocation() + "tables/" + entry.getKey() + ".bin";
+            List<byte[]> images = entry.getValue();
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                file.setLength(Integer.BYTES + ((long) images.size() * Main.getPageSize()));
+                file.seek(0);
+                file.writeInt(images.size());
+                for (byte[] image : images) {
+                    file.write(image);
+                }
+            } catch (IOException e) {
+                System.err.println("Error rewriting table " + entry.getKey() + " into file: " + fileName);
             }
         }
+        rewrittenTables.clear();
+    }
 
-        // Use existing page or create new page
-        Page targetPage = getPage(tableID, pageNum);
-        if (targetPage == null) {
-            targetPage = new Page(0, tableID, true);
-            table.addPage(targetPage);
-            pageNum = targetPage.getPageId();
-            insertIndex = 0;
-            buffer.addPage(pageNum, targetPage); // Add new page to buffer
+    // Rebuilds the table's B+ tree from its pages, used when the tree on disk can't be trusted
+    public void rebuildIndex(Table table) {
+        rebuildIndex(table, scan(table.getTableID()));
+    }
+
+    // Replaces the table's B+ tree with one built from the leaves up over the given pages
+    private void rebuildIndex(Table table, Iterable<Page> pages) {
+        Attribute[] attributes = table.getAttributes();
+        int pkIndex = findPrimaryKeyIndex(attributes);
+        List<Object> keys = new ArrayList<>();
+        List<BPlusNode.Pair<Integer, Integer>> pointers = new ArrayList<>();
+        for (Page page : pages) {
+            int slot = table.getSlot(page.getPageId());
+            for (Record record : page.getRecords()) {
+                keys.add(record.getValue(pkIndex));
+                pointers.add(new BPlusNode.Pair<>(slot, record.getSlot()));
+            }
         }
 
-        // Insert the record
-        if (insertIndex >= 0 && insertIndex < targetPage.getRecordCount()) {
-            targetPage.shiftRecordsAndAdd(record, insertIndex);
-        } else {
+        if (table.isHeap()) { // Records are in no key order, the leaves need them sorted
+            Attribute pkAttr = attributes[pkIndex];
+            List<Object> heapKeys = keys;
+            List<Integer> order = new ArrayList<>(IntStream.range(0, keys.size()).boxed().toList());
+            order.sort((a, b) -> compareValues(pkAttr, heapKeys.get(a), heapKeys.get(b)));
+            List<Object> sortedKeys = new ArrayList<>(keys.size());
+            List<BPlusNode.Pair<Integer, Integer>> sortedPointers = new ArrayList<>(keys.size());
+            for (int i : order) {
+                sortedKeys.add(keys.get(i));
+                sortedPointers.add(pointers.get(i));
+            }
+            keys = sortedKeys;
+            pointers = sortedPointers;
+        }
+
+        BPlusTree tree = new BPlusTree(attributes[pkIndex], table.getTableID());
+        tree.bulkLoad(keys, pointers, BULK_LOAD_FILL_FACTOR);
+        Main.getBPlusTrees().set(table.getTableID(), tree);
+    }
+
+    // Binary search for the last page whose first key is not greater than the key (page 0 if none)
+    private int findPageForKey(Table table, int pkIndex, Object key) {
+        Attribute pkAttr = table.getAttributes()[pkIndex];
+        int low = 0, high = table.getPageCount() - 1, target = 0;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Object firstKey = getFirstKey(table, mid, pkIndex);
+            if (firstKey == null || compareValues(pkAttr, firstKey, key) <= 0) {
+                target = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return target;
+    }
+
+    // First key of a page, from the buffer or the page's zone map before reading it from disk
+    private Object getFirstKey(Table table, int pageId, int pkIndex) {
+        Page page = buffer.getPage(table.getTableID(), pageId);
+        if (page == null) {
+            ZoneMap zone = table.getZoneMap(pageId);
+            Object min = zone != null ? zone.getMin(pkIndex) : null;
+            if (min != null) {
+                return min;
+            }
+            page = getPage(table.getTableID(), pageId);
+        }
+        return page.getRecordCount() > 0 ? page.getRecords().get(0).getValue(pkIndex) : null;
+    }
+
+    // Binary search for the insert position inside a page, -(position + 1) if the key already exists
+    private int findSlotForKey(Page page, int pkIndex, Attribute pkAttr, Object key) {
+        List<Record> records = page.getRecords();
+        int low = 0, high = page.getRecordCount() - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareValues(pkAttr, records.get(mid).getValue(pkIndex), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return -(mid + 1);
+            }
+        }
+        return low;
+    }
+
+    // Checks the primary key and unique columns against their hash indexes
+    public boolean violatesUniqueConstraints(Table table, Record record) {
+        Attribute[] attributes = table.getAttributes();
+        for (int i = 0; i < attributes.length; i++) {
+            if (!attributes[i].isUnique() && !attributes[i].isPrimaryKey()) continue;
+
+            Object value = record.getValue(i);
+            if (value != null && table.getUniqueIndex(i).contains(value)) {
+                String kind = attributes[i].isPrimaryKey() ? "primarykey" : "unique value";
+                System.err.println("row (" + value + "): Duplicate " + kind + " for row (" + value + ")");
+                System.out.println("ERROR\n");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Inserts a record into the given page at the given position. The records after it move up
+    // by one but keep their slots, so the B+ tree only gets the new key.
+    private void insertRecord(Table table, Record record, int tableNumber, int pageIndex, int recIndex) {
+        Page targetPage;
+
+        if (table.getPageCount() == 0) {
+            targetPage = new Page(0, tableNumber, true);
             targetPage.addRecord(record);
-            insertIndex = targetPage.getRecordCount() - 1;
+            table.addPage(targetPage);
+            recIndex = 0;
+        } else {
+            targetPage = getPage(tableNumber, pageIndex);
+            targetPage.shiftRecordsAndAdd(record, recIndex);
         }
 
-        // Update buffer after modification
-        buffer.updatePage(targetPage);
+        BPlusTree tree = Main.getBPlusTree(tableNumber);
+        if (tree != null) {
+            Object key = record.getValue(findPrimaryKeyIndex(table.getAttributes()));
+            tree.insertEntry(key, new BPlusNode.Pair<>(table.getSlot(targetPage.getPageId()), record.getSlot()));
+        }
 
+        // Split before the page can be written, an overfull page does not fit in its slot
         if (targetPage.isOverfull()) {
-            SplitResult split = splitPage(targetPage);
-            if (split != null && split.firstRecord == record) {
-                pageNum = split.newPageId;
-                insertIndex = split.firstIndex;
-            }
+            splitPage(targetPage, recIndex == targetPage.getRecordCount() - 1);
         }
+        buffer.updatePage(targetPage);
+    }
 
-        // Insert new key and pointer into B+Tree
-        return tree.insert(record, pkValue, 0, tableID); // actual (page, index) pair is stored inside node
+    // Compares two values of an attribute
+    private int compareValues(Attribute attr, Object value1, Object value2) {
+        switch (attr.getType().toLowerCase()) {
+            case "varchar":
+            case "char":
+                return ((String) value1).compareTo((String) value2);
+            case "integer":
+                return Integer.compare((int) value1, (int) value2);
+            case "double":
+                return Double.compare((double) value1, (double) value2);
+            case "boolean":
+                return Boolean.compare((boolean) value1, (boolean) value2);
+            default:
+                throw new IllegalArgumentException("Unsupported attribute type: " + attr.getType());
+        }
     }
-    
 
+
+    // A read started by readPageAsync and the table layout it was started under
+    private record PendingRead(Table table, long layoutVersion, CompletableFuture<Page> page) {
+        boolean isCurrent(Table current) {
+            return table == current && layoutVersion == current.getLayoutVersion();
+        }
+    }
 }
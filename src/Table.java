@@ -1,7 +1,9 @@
 // Table = collection of pages
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -12,10 +14,20 @@ public class Table {
     private int tableId;
     private Attribute[] attributes;
     private int attributesCount; 
+    public static final byte ORDERED = 0;  // Records in pages kept in primary key order
+    public static final byte HEAP = 1;     // Records in pages in insertion order
+    public static final byte COLUMNAR = 2; // Each column in its own file, see ColumnStore
+
+    private byte storage;
+    private ColumnStore columnStore; // Opened on first use
+    private TreeSet<Integer> freePages; // Heap pages deletes left less than half full, lowest first
     private int pageCount;
     private int[] pageLocations; // pageId
-    private int numNodes; // Number of nodes in tree
-    private ArrayList<Integer> freeSpaces; // Open spaces in index file for nodes, due to deleted nodes
+    private boolean layoutChanged; // pageLocations changed since they were last written to the write-ahead log
+    private long layoutVersion; // Bumped when pages move between slots or ids or the record format changes
+    private ArrayList<ZoneMap> zoneMaps; // Zone map of each page slot on disk, null if unknown
+    private HashMap<Integer, UniqueIndex> uniqueIndexes; // Unique and primary key columns by attribute index, built on first use
+    private TableStats stats; // Null if unknown, computed on first use
 
     public Table(String name, int tableID, int attributesCount, Attribute[] attributes){
         this.name = name;
@@ -26,15 +38,24 @@ public class Table {
         this.pageCount = 0;
         this.pageLocations = new int[0];
 
-        this.numNodes = 0;
-        this.freeSpaces = new ArrayList<>();
+        this.freePages = new TreeSet<>();
+        this.zoneMaps = new ArrayList<>();
+        this.uniqueIndexes = new HashMap<>();
+        this.stats = new TableStats(attributesCount);
     }
 
+    // Adds a page to the table. Page ids are positions in primary key order, so a page added
+    // in the middle pushes the ids of the pages after it up by one. The page gets a new slot
+    // at the end of the table file.
     public void addPage(Page page){
+        shiftPageIds(page.getPageId(), 1);
         PageBuffer buffer = Main.getBuffer();
         buffer.addPage(page.getPageId(), page);
         this.pageCount++;
         updatePageLocations(page.getPageId());
+        this.layoutChanged = true;
+        this.layoutVersion++;
+        setZoneMap(pageCount - 1, null); // New slot has nothing on disk yet
     }
 
     private void updatePageLocations(int newPageId) {
@@ -44,15 +65,13 @@ public class Table {
         }
     
         int[] updatedLocations = Arrays.copyOf(pageLocations, pageCount);
-        
-        for (int i = 0; i < pageCount - 1; i++) {
-            if (updatedLocations[i] >= newPageId) updatedLocations[i]++;
-        }
-    
         updatedLocations[pageCount - 1] = newPageId;
         pageLocations = updatedLocations;
     }    
 
+    // Removes a page from the table. Its slot is filled with the last slot of the file so the
+    // file stays contiguous, and the ids of the pages after it move down by one. The B+ tree
+    // points at pages by slot, only the records of the page that changed slot are followed.
     public void dropPage(int pageNum) {
         int indexToRemove = -1;
         for (int i = 0; i < pageCount; i++) {
@@ -62,38 +81,158 @@ public class Table {
             }
         }
 
-        if (indexToRemove != -1) {
-            int[] newArray = new int[pageCount - 1];
-            for (int i = 0, j = 0; i < pageCount; i++) {
-                if (i != indexToRemove) {
-                    newArray[j] = pageLocations[i] > pageNum ? pageLocations[i] - 1 : pageLocations[i];
-                    if (pageLocations[i] > pageNum) {
-                        Page page = Main.getStorageManager().getPage(tableId, pageLocations[i]);
-                        page.setPageId(page.getPageId() - 1);
-                        Main.getBuffer().updatePage(page);
-                    }
-                    j++;
-                }
-            }
-            pageLocations = newArray;
-            pageCount--;
-        } else {
+        if (indexToRemove == -1) {
             System.out.println("Page not found: " + pageNum);
+            return;
+        }
+
+        Main.getBuffer().removePage(tableId, pageNum);
+        int lastSlot = pageCount - 1;
+        Main.getStorageManager().removePageSlot(tableId, indexToRemove, pageCount);
+        if (indexToRemove != lastSlot) {
+            pageLocations[indexToRemove] = pageLocations[lastSlot];
+            Page moved = Main.getBuffer().getPage(tableId, pageLocations[indexToRemove]);
+            if (moved != null && moved.isUpdated()) {
+                moved.setUpdated(true); // The log needs its buffered image at the new slot
+            }
+            setZoneMap(indexToRemove, lastSlot < zoneMaps.size() ? zoneMaps.get(lastSlot) : null);
+        }
+        if (lastSlot < zoneMaps.size()) {
+            zoneMaps.remove(lastSlot);
+        }
+        pageLocations = Arrays.copyOf(pageLocations, lastSlot);
+        pageCount--;
+        layoutChanged = true;
+        layoutVersion++;
+        freePages.clear(); // Ids after it move, they are found again as records get deleted
+
+        shiftPageIds(pageNum + 1, -1);
+
+        BPlusTree tree = Main.getBPlusTree(tableId);
+        if (tree != null && indexToRemove != lastSlot) {
+            Page moved = Main.getStorageManager().getPage(tableId, pageLocations[indexToRemove]);
+            int pkIndex = 0;
+            while (!attributes[pkIndex].isPrimaryKey()) {
+                pkIndex++;
+            }
+            for (Record record : moved.getRecords()) {
+                tree.setEntry(record.getValue(pkIndex), new BPlusNode.Pair<>(indexToRemove, record.getSlot()));
+            }
+        }
+    }
+
+    // Moves every page id at or after fromPageId by delta, in the slot map and the buffer
+    private void shiftPageIds(int fromPageId, int delta) {
+        boolean shifted = false;
+        for (int i = 0; i < pageCount; i++) {
+            if (pageLocations[i] >= fromPageId) {
+                pageLocations[i] += delta;
+                shifted = true;
+            }
+        }
+        if (!shifted) {
+            return; // Nothing after it
+        }
+        layoutChanged = true;
+        layoutVersion++;
+        Main.getBuffer().shiftPageIds(tableId, fromPageId, delta);
+    }
+
+    // Replaces the pages of the table with pageCount pages stored in order in the table file,
+    // used after a bulk load has rewritten the file
+    public void resetPages(int pageCount) {
+        this.pageCount = pageCount;
+        this.pageLocations = new int[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            this.pageLocations[i] = i;
+        }
+        this.layoutChanged = true;
+        this.layoutVersion++;
+        this.freePages.clear();
+        clearZoneMaps();
+    }
+
+    // Restores the page layout logged by a committed statement, used by crash recovery
+    public void setLayout(int pageCount, int[] pageLocations) {
+        this.pageCount = pageCount;
+        this.pageLocations = pageLocations;
+        this.layoutChanged = false;
+        this.layoutVersion++;
+    }
+
+    public boolean isHeap() {
+        return this.storage == HEAP;
+    }
+
+    public boolean isColumnar() {
+        return this.storage == COLUMNAR;
+    }
+
+    public void setStorage(byte storage) {
+        this.storage = storage;
+    }
+
+    public ColumnStore getColumnStore() {
+        if (columnStore == null) {
+            columnStore = ColumnStore.open(this);
         }
+        return columnStore;
+    }
+
+    // Heap page with room for more records, null if there is none
+    public Integer getFreePage() {
+        return freePages.isEmpty() ? null : freePages.first();
+    }
+
+    public void addFreePage(int pageId) {
+        freePages.add(pageId);
+    }
+
+    public void removeFreePage(int pageId) {
+        freePages.remove(pageId);
+    }
+
+    public boolean isLayoutChanged() {
+        return this.layoutChanged;
+    }
+
+    // Page images read before the version changed may be stale, see StorageManager.readPageAsync
+    public long getLayoutVersion() {
+        return this.layoutVersion;
+    }
+
+    public void setLayoutLogged() {
+        this.layoutChanged = false;
     }
 
     public void addAttribute(Attribute newAttr) {
         this.attributes = Arrays.copyOf(this.attributes, this.attributes.length + 1);
         this.attributes[this.attributes.length - 1] = newAttr;
         this.attributesCount++;
+        if (stats != null) {
+            stats.addColumn();
+        }
+        clearZoneMaps(); // Column layout changed
+        layoutVersion++;
         System.out.println("Attribute " + newAttr.getName() + " added to table " + this.name);
     }
 
     public void dropAttribute(String attrName) {
+        for (int i = 0; i < this.attributes.length; i++) {
+            if (this.attributes[i].getName().equals(attrName)) {
+                dropUniqueIndexColumn(i);
+                if (stats != null) {
+                    stats.dropColumn(i);
+                }
+                break;
+            }
+        }
         this.attributes = Arrays.stream(this.attributes)
                                 .filter(attr -> !attr.getName().equals(attrName))
                                 .toArray(Attribute[]::new);
         this.attributesCount--;
+        clearZoneMaps(); // Column layout changed
+        layoutVersion++;
         System.out.println("Attribute " + attrName + " removed from table " + this.name);
     }
 
@@ -134,28 +273,171 @@ public class Table {
         return this.pageLocations;
     }
 
-    public void addTreeNode() {
-        this.numNodes++;
+    // Records the zone map of what was just written to a page slot
+    public void setZoneMap(int slot, ZoneMap zone) {
+        while (zoneMaps.size() <= slot) {
+            zoneMaps.add(null);
+        }
+        zoneMaps.set(slot, zone);
+    }
+
+    // Slot of the table file that holds a page, -1 if the page is not part of the table
+    public int getSlot(int pageId) {
+        for (int i = 0; i < pageCount; i++) {
+            if (pageLocations[i] == pageId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Zone map of the page as it is stored on disk, null if it is unknown
+    public ZoneMap getZoneMap(int pageId) {
+        for (int i = 0; i < pageCount && i < zoneMaps.size(); i++) {
+            if (pageLocations[i] == pageId) {
+                return zoneMaps.get(i);
+            }
+        }
+        return null;
+    }
+
+    // Forgets every zone map, used when the schema changes
+    public void clearZoneMaps() {
+        this.zoneMaps.clear();
     }
 
-    public void deleteTreeNode() {
-        this.numNodes--;
+    public void writeZoneMaps(DataOutputStream dos) throws IOException {
+        dos.writeInt(this.attributesCount);
+        dos.writeInt(this.zoneMaps.size());
+        for (ZoneMap zone : this.zoneMaps) {
+            dos.writeBoolean(zone != null);
+            if (zone != null) {
+                zone.writeToStream(dos, this.attributes);
+            }
+        }
     }
 
-    public int getNumNodes() {
-        return this.numNodes;
+    public void readZoneMaps(DataInputStream dis) throws IOException {
+        this.zoneMaps.clear();
+        if (dis.readInt() != this.attributesCount) {
+            return; // Written for another schema, pages will be summarized again when written
+        }
+        int slots = dis.readInt();
+        for (int i = 0; i < slots; i++) {
+            this.zoneMaps.add(dis.readBoolean() ? ZoneMap.readFromStream(dis, this.attributes) : null);
+        }
     }
 
-    public void setNumNodes(int numNodes) {
-        this.numNodes = numNodes;
+    // Unique index of a column, built with a table scan the first time it is needed
+    public UniqueIndex getUniqueIndex(int column) {
+        return uniqueIndexes.computeIfAbsent(column, c -> UniqueIndex.build(this, c));
     }
 
-    private void setFreeSpaces(ArrayList<Integer> freeSpacesList) {
-        this.freeSpaces = freeSpacesList;
+    // Adds the values of a newly inserted record to the unique indexes already built and to the statistics
+    public void recordInserted(Record record) {
+        for (UniqueIndex index : uniqueIndexes.values()) {
+            index.add(record.getValue(index.getColumn()));
+        }
+        if (stats != null) {
+            stats.add(record.getData(Record.NO_COLUMNS), attributes);
+        }
     }
-    
-    public ArrayList<Integer> getFreeSpaces() {
-        return freeSpaces;
+
+    // Removes the values of a deleted record from the unique indexes already built and from the statistics
+    public void recordDeleted(Record record) {
+        for (UniqueIndex index : uniqueIndexes.values()) {
+            index.remove(record.getValue(index.getColumn()));
+        }
+        if (stats != null) {
+            stats.remove(record.getData(Record.NO_COLUMNS), attributes);
+        }
+    }
+
+    // Same as above, for a row of a columnar table
+    public void recordDeleted(List<Object> row) {
+        for (UniqueIndex index : uniqueIndexes.values()) {
+            index.remove(row.get(index.getColumn()));
+        }
+        if (stats != null) {
+            stats.remove(row, attributes);
+        }
+    }
+
+    // Moves one value of an updated record to its new value
+    public void valueUpdated(int column, Object oldValue, Object newValue) {
+        UniqueIndex index = uniqueIndexes.get(column);
+        if (index != null) {
+            index.remove(oldValue);
+            index.add(newValue);
+        }
+        if (stats != null) {
+            stats.update(column, oldValue, newValue, attributes[column]);
+        }
+    }
+
+    // Forgets the index of a dropped column, the columns after it move down by one
+    private void dropUniqueIndexColumn(int column) {
+        HashMap<Integer, UniqueIndex> remaining = new HashMap<>();
+        for (UniqueIndex index : uniqueIndexes.values()) {
+            if (index.getColumn() == column) continue;
+            if (index.getColumn() > column) {
+                index.setColumn(index.getColumn() - 1);
+            }
+            remaining.put(index.getColumn(), index);
+        }
+        uniqueIndexes = remaining;
+    }
+
+    // The table was emptied, its unique indexes and statistics start over with no rows
+    public void rowsCleared() {
+        uniqueIndexes.clear();
+        stats = new TableStats(attributesCount);
+    }
+
+    // Drops the unique indexes, they are rebuilt on next use
+    public void invalidateUniqueIndexes() {
+        uniqueIndexes.clear();
+    }
+
+    // Statistics of the table, computed with a scan the first time they are needed
+    public TableStats getStats() {
+        if (stats == null) {
+            stats = TableStats.compute(this);
+        }
+        return stats;
+    }
+
+    // Drops the statistics, they are computed again on next use
+    public void invalidateStats() {
+        stats = null;
+    }
+
+    public void writeStats(DataOutputStream dos) throws IOException {
+        getStats().writeToStream(dos, this.attributes);
+    }
+
+    public void readStats(DataInputStream dis) throws IOException {
+        this.stats = TableStats.readFromStream(dis, this.attributes);
+    }
+
+    public void writeUniqueIndexes(DataOutputStream dos) throws IOException {
+        dos.writeInt(this.attributesCount);
+        dos.writeInt(this.uniqueIndexes.size());
+        for (UniqueIndex index : this.uniqueIndexes.values()) {
+            index.writeToStream(dos, this.attributes[index.getColumn()]);
+        }
+    }
+
+    public void readUniqueIndexes(DataInputStream dis) throws IOException {
+        this.uniqueIndexes.clear();
+        if (dis.readInt() != this.attributesCount) {
+            return; // Written for another schema, rebuilt on next use
+        }
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            UniqueIndex index = UniqueIndex.readFromStream(dis, this.attributes);
+            this.uniqueIndexes.put(index.getColumn(), index);
+        }
     }
 
     public void displayTable(){
@@ -170,6 +452,9 @@ public class Table {
             );
         }
 
+        if (storage != ORDERED) {
+            System.out.println("Storage: " + (storage == HEAP ? "heap" : "columnar"));
+        }
         System.out.printf("Pages: %d%nRecords: %s%n%n", getPageCount(), getRecordCount());
     }
 
@@ -184,26 +469,7 @@ public class Table {
         for (int location : this.pageLocations) {
             dos.writeInt(location);
         }
-
-        for (int pageLocation : this.pageLocations) {
-        Page page = getPageByNumber(pageLocation);
-        if (page != null) {
-            for (Record record : page.getRecords()) {
-                List<Object> data = record.getData();
-                Attribute[] attributes = getAttributes();
-
-                // Pad data with nulls for missing attributes
-                while (data.size() < attributes.length) {
-                    data.add(null);
-                }
-
-                record.setData(data);
-            }
-        }
-    }
-
-
-
+        dos.writeByte(this.storage);
     }
 
     public static Table readFromStream(DataInputStream dis) throws IOException {
@@ -221,6 +487,8 @@ public class Table {
         for (int i = 0; i < numPages; i++) {
             table.pageLocations[i] = dis.readInt();
         }
+        table.storage = dis.readByte();
+        table.stats = null; // Read from its own file, see Catalog.readCatalog
         return table;
     }
 
@@ -245,16 +513,9 @@ public class Table {
         return page;
     }
 
+    // Kept by the statistics, no page is read
     public String getRecordCount() {
-        int totalRecords = 0;
-        for (int pageLocation : this.pageLocations) {
-            Page page = getPageByNumber(pageLocation);
-            if (page != null) {
-                totalRecords += page.getRecordCount(); 
-            }
-        }
-        
-        return String.valueOf(totalRecords);
+        return String.valueOf(getStats().getRowCount());
     }
 
 }
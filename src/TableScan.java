@@ -0,0 +1,120 @@
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Scan over the pages of a table in page order, read one at a time as the scan gets to
+// them. Only the page last returned by next() is pinned in the buffer, so a scan needs a single
+// buffer frame however large the table is, and the page can be changed in place without being
+// evicted under the caller. With a where tree, pages not in the buffer whose zone map rules it
+// out are skipped without being read. The READ_AHEAD pages after the current one are read in
+// the background (see StorageManager.readPageAsync), so they are usually there by the time the
+// caller is done with the current page.
+//
+// The current page may be split or dropped while the scan is on it: the scan continues with the
+// page that followed it when it was returned, so pages split off the current one are not visited.
+// A heap puts the pages it splits off at its end, the scan stops before them.
+public class TableScan implements Iterator<Page>, Iterable<Page>, AutoCloseable {
+    private static final int READ_AHEAD = 8;
+
+    private final StorageManager storageManager;
+    private final PageBuffer buffer;
+    private final Table table;
+    private final Node where;
+    private final List<String> columnNames;
+
+    private Page current;      // Pinned until the scan moves on
+    private int pagesAfter;    // Pages after the current one when it was returned
+    private int nextPageId = -1; // Next page to return, -1 if not looked for yet
+    private int readAheadEnd;    // Pages before it have had their read started
+    private final int heapPageCount; // Pages of a heap when the scan started
+
+    public TableScan(StorageManager storageManager, PageBuffer buffer, Table table, Node where, List<String> columnNames) {
+        this.storageManager = storageManager;
+        this.buffer = buffer;
+        this.table = table;
+        this.where = where;
+        this.columnNames = columnNames;
+        this.pagesAfter = table.getPageCount();
+        this.heapPageCount = table.getPageCount();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPageId < 0) {
+            nextPageId = findNextPage(pageCount() - pagesAfter);
+        }
+        if (nextPageId >= pageCount()) {
+            release(); // Done, a loop over the scan needs no close()
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Page next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        release();
+        Page page = storageManager.getPage(table.getTableID(), nextPageId);
+        page.pin();
+        current = page;
+        pagesAfter = pageCount() - 1 - nextPageId;
+        nextPageId = -1;
+        readAhead();
+        return page;
+    }
+
+    // Starts reading the pages after the current one (the first ones before the scan starts)
+    // that it may return, up to READ_AHEAD of them
+    public void readAhead() {
+        int start = pageCount() - pagesAfter;
+        int end = Math.min(pageCount(), start + READ_AHEAD);
+        for (int pageId = Math.max(start, readAheadEnd); pageId < end; pageId++) {
+            if (mayMatch(pageId)) {
+                storageManager.readPageAsync(table.getTableID(), pageId);
+            }
+        }
+        readAheadEnd = Math.max(readAheadEnd, end);
+    }
+
+    // First page from pageId on that may match the where tree
+    private int findNextPage(int pageId) {
+        while (pageId < pageCount() && !mayMatch(pageId)) {
+            pageId++; // Nothing on this page can match, don't read it
+        }
+        return pageId;
+    }
+
+    // Pages the scan covers, the records on pages a heap split off during the scan were already seen
+    private int pageCount() {
+        return table.isHeap() ? Math.min(table.getPageCount(), heapPageCount) : table.getPageCount();
+    }
+
+    // False if the page is not in the buffer and its zone map rules out the where tree
+    private boolean mayMatch(int pageId) {
+        if (where == null || buffer.isPageInBuffer(table.getTableID(), pageId)) {
+            return true;
+        }
+        ZoneMap zone = table.getZoneMap(pageId);
+        return zone == null || zone.mayMatch(where, columnNames);
+    }
+
+    private void release() {
+        if (current != null) {
+            current.unpin();
+            current = null;
+        }
+    }
+
+    @Override
+    public Iterator<Page> iterator() {
+        return this;
+    }
+
+    // Unpins the current page, needed when a scan is left before its end
+    @Override
+    public void close() {
+        release();
+    }
+}
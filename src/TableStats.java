@@ -0,0 +1,241 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// Statistics of a table: its row count, and per column the number of nulls, the bytes its
+// values take in the records and an estimate of its distinct values. Kept up to date as rows
+// are inserted, deleted and updated (see Table.recordInserted), so none of them needs a scan,
+// and saved next to the catalog (tables/<id>.stats).
+//
+// Distinct values are estimated with a HyperLogLog sketch, which can't forget a value: after
+// deletes and updates it still counts values that are gone, up to the number of non null values.
+// analyze adds a histogram per column (see ColumnHistogram) built from a sample of the pages;
+// histograms are not kept up to date, they describe the table as it was when it was analyzed.
+public class TableStats {
+    private static final int SAMPLE_ROWS = 10000; // About how many rows analyze reads
+    private static final int READ_BATCH = 32;     // Sampled pages read at once
+    private static final int MAX_STRING_LENGTH = 255; // Longer strings are left out of the histograms
+
+    private long rowCount;
+    private List<ColumnStats> columns;
+
+    private static class ColumnStats {
+        long nullCount;
+        long bytes; // Size of the non null values as stored in the records
+        HyperLogLog distinct = new HyperLogLog();
+        ColumnHistogram histogram; // Null until the table is analyzed
+    }
+
+    public TableStats(int attributeCount) {
+        this.rowCount = 0;
+        this.columns = new ArrayList<>(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            this.columns.add(new ColumnStats());
+        }
+    }
+
+    // Computes the statistics with one scan over the table
+    public static TableStats compute(Table table) {
+        TableStats stats = new TableStats(table.getAttributesCount());
+        Attribute[] attributes = table.getAttributes();
+        if (table.isColumnar()) {
+            for (List<Object> row : table.getColumnStore().getRecords(null, null, null, null)) {
+                stats.add(row, attributes);
+            }
+            return stats;
+        }
+        for (Page page : Main.getStorageManager().scan(table.getTableID())) {
+            for (Record record : page.getRecords()) {
+                stats.add(record.getData(Record.NO_COLUMNS), attributes);
+            }
+        }
+        return stats;
+    }
+
+    // Builds the histograms from a sample of about SAMPLE_ROWS rows, read from randomly chosen
+    // pages (all of them for a small table, columnar tables are always read whole). When every
+    // row was read the distinct sketches are built again as well, forgetting deleted values.
+    // Returns the number of rows sampled.
+    public int analyze(Table table) {
+        List<List<Object>> sample = new ArrayList<>();
+        boolean wholeTable;
+        if (table.isColumnar()) {
+            sample = table.getColumnStore().getRecords(null, null, null, null);
+            wholeTable = true;
+        } else {
+            List<Integer> pageIds = new ArrayList<>();
+            for (int i = 0; i < table.getPageCount(); i++) {
+                pageIds.add(i);
+            }
+            int pages = (int) Math.min(pageIds.size(), Math.max(1, (long) SAMPLE_ROWS * pageIds.size() / Math.max(1, rowCount)));
+            wholeTable = pages == pageIds.size();
+            if (!wholeTable) {
+                Collections.shuffle(pageIds, new Random());
+                pageIds = new ArrayList<>(pageIds.subList(0, pages));
+                Collections.sort(pageIds);
+            }
+
+            // The next batch of pages is read in the background while one is being sampled
+            StorageManager storageManager = Main.getStorageManager();
+            for (int i = 0; i < pageIds.size(); i++) {
+                if (i % READ_BATCH == 0) {
+                    for (int j = i; j < Math.min(i + READ_BATCH, pageIds.size()); j++) {
+                        storageManager.readPageAsync(table.getTableID(), pageIds.get(j));
+                    }
+                }
+                Page page = storageManager.getPage(table.getTableID(), pageIds.get(i));
+                for (Record record : page.getRecords()) {
+                    sample.add(record.getData(Record.NO_COLUMNS));
+                }
+            }
+        }
+
+        for (int column = 0; column < columns.size(); column++) {
+            List<Object> values = new ArrayList<>(sample.size());
+            HyperLogLog distinct = new HyperLogLog();
+            for (List<Object> row : sample) {
+                Object value = row.get(column);
+                if (value instanceof OverflowValue ref) {
+                    value = ref.getValue();
+                }
+                if (value == null) {
+                    continue;
+                }
+                distinct.add(value);
+                if (!(value instanceof String string) || string.length() <= MAX_STRING_LENGTH) {
+                    values.add(value);
+                }
+            }
+            columns.get(column).histogram = ColumnHistogram.build(values);
+            if (wholeTable) {
+                columns.get(column).distinct = distinct;
+            }
+        }
+        return sample.size();
+    }
+
+    public void add(List<Object> row, Attribute[] attributes) {
+        rowCount++;
+        for (int i = 0; i < columns.size(); i++) {
+            addValue(columns.get(i), row.get(i), attributes[i]);
+        }
+    }
+
+    public void remove(List<Object> row, Attribute[] attributes) {
+        rowCount--;
+        for (int i = 0; i < columns.size(); i++) {
+            removeValue(columns.get(i), row.get(i), attributes[i]);
+        }
+    }
+
+    public void update(int column, Object oldValue, Object newValue, Attribute attr) {
+        removeValue(columns.get(column), oldValue, attr);
+        addValue(columns.get(column), newValue, attr);
+    }
+
+    // A column added by alter table starts out null in every row
+    public void addColumn() {
+        ColumnStats column = new ColumnStats();
+        column.nullCount = rowCount;
+        columns.add(column);
+    }
+
+    public void dropColumn(int column) {
+        columns.remove(column);
+    }
+
+    private static void addValue(ColumnStats column, Object value, Attribute attr) {
+        if (value == null) {
+            column.nullCount++;
+        } else {
+            column.bytes += valueSize(value, attr);
+            column.distinct.add(value);
+        }
+    }
+
+    private static void removeValue(ColumnStats column, Object value, Attribute attr) {
+        if (value == null) {
+            column.nullCount--;
+        } else {
+            column.bytes -= valueSize(value, attr);
+        }
+    }
+
+    // Bytes a value takes in a record, out of line varchars only count their stub
+    private static int valueSize(Object value, Attribute attr) {
+        return attr.getType().equalsIgnoreCase("varchar") ? OverflowManager.varcharSize(value) : attr.getSize();
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    // Average bytes of a record, counting its null bitmap
+    public double getAverageRecordSize() {
+        if (rowCount == 0) {
+            return 0;
+        }
+        long bytes = 0;
+        for (ColumnStats column : columns) {
+            bytes += column.bytes;
+        }
+        return columns.size() + (double) bytes / rowCount;
+    }
+
+    public double getNullFraction(int column) {
+        return rowCount == 0 ? 0 : (double) columns.get(column).nullCount / rowCount;
+    }
+
+    // Estimated number of distinct non null values, exact for primary key and unique columns
+    public long getDistinctCount(int column, Attribute attr) {
+        long nonNull = rowCount - columns.get(column).nullCount;
+        if (attr.isPrimaryKey() || attr.isUnique()) {
+            return nonNull;
+        }
+        return Math.min(columns.get(column).distinct.estimate(), nonNull);
+    }
+
+    // Histogram of a column, null if the table was not analyzed since the column was added
+    public ColumnHistogram getHistogram(int column) {
+        return columns.get(column).histogram;
+    }
+
+    public void writeToStream(DataOutputStream dos, Attribute[] attributes) throws IOException {
+        dos.writeInt(columns.size());
+        dos.writeLong(rowCount);
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnStats column = columns.get(i);
+            dos.writeLong(column.nullCount);
+            dos.writeLong(column.bytes);
+            column.distinct.writeToStream(dos);
+            dos.writeBoolean(column.histogram != null);
+            if (column.histogram != null) {
+                column.histogram.writeToStream(dos, attributes[i]);
+            }
+        }
+    }
+
+    // Null if the statistics were written for another schema
+    public static TableStats readFromStream(DataInputStream dis, Attribute[] attributes) throws IOException {
+        if (dis.readInt() != attributes.length) {
+            return null;
+        }
+        TableStats stats = new TableStats(0);
+        stats.rowCount = dis.readLong();
+        for (Attribute attr : attributes) {
+            ColumnStats column = new ColumnStats();
+            column.nullCount = dis.readLong();
+            column.bytes = dis.readLong();
+            column.distinct = HyperLogLog.readFromStream(dis);
+            if (dis.readBoolean()) {
+                column.histogram = ColumnHistogram.readFromStream(dis, attr);
+            }
+            stats.columns.add(column);
+        }
+        return stats;
+    }
+}
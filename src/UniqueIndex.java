@@ -0,0 +1,77 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+
+// Hash set of the values of one unique or primary key column, so constraint checks on
+// insert and update don't have to compare against every record of the table. Kept up to
+// date on every insert, update and delete, and saved next to the catalog (tables/<id>.uix).
+public class UniqueIndex {
+    private int column;
+    private final HashSet<Object> values;
+
+    public UniqueIndex(int column) {
+        this.column = column;
+        this.values = new HashSet<>();
+    }
+
+    // Builds the index with one scan over the table
+    public static UniqueIndex build(Table table, int column) {
+        UniqueIndex index = new UniqueIndex(column);
+        if (table.isColumnar()) { // Only the one column is read
+            for (Object value : table.getColumnStore().readColumn(column)) {
+                index.add(value);
+            }
+            return index;
+        }
+        for (Page page : Main.getStorageManager().scan(table.getTableID())) {
+            for (Record record : page.getRecords()) {
+                index.add(record.getValue(column));
+            }
+        }
+        return index;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    // Used when a column before this one is dropped
+    public void setColumn(int column) {
+        this.column = column;
+    }
+
+    public boolean contains(Object value) {
+        return value != null && values.contains(value);
+    }
+
+    // Nulls are never indexed, they don't collide with each other
+    public void add(Object value) {
+        if (value != null) {
+            values.add(value);
+        }
+    }
+
+    public void remove(Object value) {
+        if (value != null) {
+            values.remove(value);
+        }
+    }
+
+    public void writeToStream(DataOutputStream dos, Attribute attr) throws IOException {
+        dos.writeInt(this.column);
+        dos.writeInt(this.values.size());
+        for (Object value : this.values) {
+            ZoneMap.writeValue(dos, value, attr);
+        }
+    }
+
+    public static UniqueIndex readFromStream(DataInputStream dis, Attribute[] attributes) throws IOException {
+        UniqueIndex index = new UniqueIndex(dis.readInt());
+        int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            index.values.add(ZoneMap.readValue(dis, attributes[index.column]));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,502 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// Sequential log of the database (<db>/wal/). Every write to a table file is logged first as
+// the after image of the page slot, and at the end of each statement the pages it changed that
+// are still in the buffer are logged too, followed by a commit record. Only the log has to
+// reach the disk when a statement commits; the table files are caught up by the buffer and by
+// checkpoints, and replayed from the log after a crash.
+//
+// A statement may write table files before it commits (pages evicted from the buffer, page
+// slots moved or cut off), so the first write of each slot also logs the slot's image from
+// before the statement, and the log is on disk up to a write's records before the write is
+// made. Recovery takes back the writes of a statement that never committed before replaying
+// the committed ones. Overflow files are only written after the commit (see OverflowManager),
+// so they just have after images, logged with the statement's other records.
+//
+// The log is split in segments named after the LSN they start at. A checkpoint starts a new
+// segment, and once it is done records that start as the redo LSN and deletes the older ones.
+//
+// Record layout: byte type, int payload length, payload, int CRC32 of type + payload.
+// The LSN of a record is its byte offset in the whole log.
+public class WriteAheadLog {
+    private static final byte PAGE = 1;         // int tableId, int slot, page bytes
+    private static final byte TRUNCATE = 2;     // int tableId, int slotCount
+    private static final byte TABLE_LAYOUT = 3; // int tableId, int pageCount, int pageLocations[]
+    private static final byte CATALOG = 4;      // catalog image, as written by Catalog.writeTables
+    private static final byte COMMIT = 5;       // empty
+    private static final byte UNDO = 6;         // int tableId, long fileLength, int slot, page bytes (none past the end)
+    private static final byte OVERFLOW_PAGE = 7; // int tableId, int pageId, page bytes of the table's overflow file
+    private static final byte OVERFLOW_DROP = 8; // int tableId, the table's overflow file is deleted
+    private static final int RECORD_OVERHEAD = 1 + Integer.BYTES + Integer.BYTES;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // When a commit reaches the disk. PER_COMMIT forces the log before the statement returns,
+    // PERIODIC writes it to the OS and forces it every periodMs, NONE never forces it (commits
+    // survive the process dying but not the machine).
+    public enum Durability { NONE, PERIODIC, PER_COMMIT }
+
+    private final Path logDir;
+    private FileChannel channel;           // Segment being appended to
+    private long redoLsn;                  // Recovery starts here, everything before is checkpointed
+    private ByteArrayOutputStream pending; // Records appended but not written to the log file yet
+    private long nextLsn;                  // LSN the next record gets
+    private long writtenLsn;               // Every record before this LSN is written to the OS
+    private long durableLsn;               // Every record before this LSN is on disk
+    private long commitLsn;                // End of the last commit record
+    private final Set<Long> undoLogged = new HashSet<>(); // Table file slots the running statement has an undo for
+    private final Object flushLock = new Object();
+    private volatile Durability durability = Durability.PER_COMMIT;
+    private long periodMs;
+    private ScheduledExecutorService periodicForce;
+
+    public WriteAheadLog(String dbLocation) throws IOException {
+        this.logDir = Path.of(dbLocation + "wal");
+        Files.createDirectories(logDir);
+        Path redoFile = logDir.resolve("redo");
+        this.redoLsn = Files.exists(redoFile) ? Long.parseLong(Files.readString(redoFile).trim()) : 0;
+
+        long end = redoLsn;
+        for (long start : listSegments()) {
+            end = Math.max(end, start + Files.size(getSegmentPath(start)));
+        }
+        this.pending = new ByteArrayOutputStream();
+        this.nextLsn = end;
+        this.writtenLsn = end;
+        this.durableLsn = end;
+        this.commitLsn = end;
+        this.channel = openSegment(end);
+    }
+
+    public long logPage(int tableId, int slot, byte[] image) {
+        ByteBuffer payload = ByteBuffer.allocate(2 * Integer.BYTES + image.length);
+        payload.putInt(tableId).putInt(slot).put(image);
+        return append(PAGE, payload.array());
+    }
+
+    // Logs the image a table file slot had before the running statement first writes it, with
+    // the file's length then, so recovery can take the statement's writes back if it never
+    // commits. Later writes of the slot by the same statement need no undo of their own.
+    public void logUndo(int tableId, int slot, RandomAccessFile file) throws IOException {
+        if (!undoLogged.add(((long) tableId << 32) | slot)) {
+            return;
+        }
+        int pageSize = Main.getPageSize();
+        long address = Integer.BYTES + ((long) slot * pageSize);
+        long fileLength = file.length();
+        byte[] image = new byte[(int) Math.max(0, Math.min(pageSize, fileLength - address))];
+        if (image.length > 0) {
+            file.seek(address);
+            file.readFully(image);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES + image.length);
+        payload.putInt(tableId).putLong(fileLength).putInt(slot).put(image);
+        append(UNDO, payload.array());
+    }
+
+    public long logTruncate(int tableId, int slotCount) {
+        return append(TRUNCATE, ByteBuffer.allocate(2 * Integer.BYTES).putInt(tableId).putInt(slotCount).array());
+    }
+
+    public long logOverflowPage(int tableId, int pageId, byte[] image) {
+        ByteBuffer payload = ByteBuffer.allocate(2 * Integer.BYTES + image.length);
+        payload.putInt(tableId).putInt(pageId).put(image);
+        return append(OVERFLOW_PAGE, payload.array());
+    }
+
+    public long logOverflowDrop(int tableId) {
+        return append(OVERFLOW_DROP, ByteBuffer.allocate(Integer.BYTES).putInt(tableId).array());
+    }
+
+    public long logTableLayout(Table table) {
+        int[] locations = table.getPageLocations();
+        ByteBuffer payload = ByteBuffer.allocate((2 + table.getPageCount()) * Integer.BYTES);
+        payload.putInt(table.getTableID()).putInt(table.getPageCount());
+        for (int i = 0; i < table.getPageCount(); i++) {
+            payload.putInt(locations[i]);
+        }
+        return append(TABLE_LAYOUT, payload.array());
+    }
+
+    public long logCatalog(Catalog catalog) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            catalog.writeTables(dos);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error logging catalog", e);
+        }
+        return append(CATALOG, bytes.toByteArray());
+    }
+
+    // Appends a commit record and returns once the durability policy is met. A statement that
+    // commits while another one is forcing the log waits for it and is then usually already
+    // covered, or forces every record appended in the meantime in one go (group commit).
+    public void commit() {
+        long lsn = append(COMMIT, new byte[0]);
+        undoLogged.clear();
+        commitLsn = lsn + RECORD_OVERHEAD;
+        flush(commitLsn, durability == Durability.PER_COMMIT);
+    }
+
+    // Writes the log up to lsn before a table file write that relies on it: a write must never
+    // reach the disk before the records that can redo or undo it. Under the none policy the log
+    // is only written to the OS, as for commits.
+    public void forceUpTo(long lsn) {
+        flush(lsn, durability != Durability.NONE);
+    }
+
+    // Parses none, per-commit or periodic(ms) (also periodic ms) and switches to it.
+    // Returns false if the policy is not recognized.
+    public boolean setDurability(String spec) {
+        String policy = spec.trim().toLowerCase();
+        if (policy.equals("none")) {
+            setDurability(Durability.NONE, 0);
+        } else if (policy.equals("per-commit")) {
+            setDurability(Durability.PER_COMMIT, 0);
+        } else {
+            Matcher periodic = Pattern.compile("periodic\\s*\\(?\\s*(\\d+)\\s*\\)?").matcher(policy);
+            if (!periodic.matches() || Long.parseLong(periodic.group(1)) <= 0) {
+                return false;
+            }
+            setDurability(Durability.PERIODIC, Long.parseLong(periodic.group(1)));
+        }
+        return true;
+    }
+
+    private void setDurability(Durability durability, long periodMs) {
+        if (periodicForce != null) {
+            periodicForce.shutdownNow();
+            periodicForce = null;
+        }
+        flush(getNextLsn(), true); // What was committed under the old policy is durable from here on
+        this.durability = durability;
+        this.periodMs = periodMs;
+        if (durability == Durability.PERIODIC) {
+            periodicForce = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-force");
+                thread.setDaemon(true);
+                return thread;
+            });
+            periodicForce.scheduleAtFixedRate(this::forceWritten, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public String getDurability() {
+        return durability == Durability.PERIODIC ? "periodic(" + periodMs + ")"
+                : durability.name().toLowerCase().replace('_', '-');
+    }
+
+    // Forces what commits already wrote to the OS, run every periodMs under the periodic policy
+    private void forceWritten() {
+        synchronized (flushLock) {
+            if (durableLsn >= writtenLsn) {
+                return;
+            }
+            try {
+                channel.force(false);
+                durableLsn = writtenLsn;
+            } catch (IOException e) {
+                System.err.println("Error forcing the write-ahead log: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized long append(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        long lsn = nextLsn;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+        record.put(type).putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        pending.writeBytes(record.array());
+        nextLsn += record.capacity();
+        return lsn;
+    }
+
+    // Writes the log up to at least upToLsn to the OS, and forces it to disk if force is set
+    private void flush(long upToLsn, boolean force) {
+        synchronized (flushLock) {
+            if ((force ? durableLsn : writtenLsn) >= upToLsn) {
+                return; // Covered by an earlier group
+            }
+            try {
+                if (writtenLsn < upToLsn) {
+                    byte[] batch;
+                    long batchEnd;
+                    synchronized (this) {
+                        batch = pending.toByteArray();
+                        batchEnd = nextLsn;
+                        pending = new ByteArrayOutputStream();
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(batch);
+                    long position = channel.size(); // Segments only ever grow at the end
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                    writtenLsn = batchEnd;
+                }
+                if (force) {
+                    channel.force(false);
+                    durableLsn = writtenLsn;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Error writing the write-ahead log", e);
+            }
+        }
+    }
+
+    // Closes the current segment and starts a new one at the next LSN, which is returned. Called
+    // between statements when a checkpoint begins, so no statement spans two segments.
+    public long startSegment() {
+        synchronized (flushLock) {
+            flush(getNextLsn(), true);
+            synchronized (this) {
+                try {
+                    channel.close();
+                    channel = openSegment(nextLsn);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Error starting a write-ahead log segment", e);
+                }
+                return nextLsn;
+            }
+        }
+    }
+
+    // Records that recovery can start at lsn, once a checkpoint has made the table files and
+    // catalog hold everything logged before it, and deletes the segments before it
+    public void setRedoLsn(long lsn) {
+        try {
+            Path tempFile = logDir.resolve("redo.tmp");
+            try (FileChannel file = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                file.write(ByteBuffer.wrap(Long.toString(lsn).getBytes()));
+                file.force(true);
+            }
+            Files.move(tempFile, logDir.resolve("redo"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.redoLsn = lsn;
+
+            for (long start : listSegments()) {
+                if (start < lsn) {
+                    Files.delete(getSegmentPath(start));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error recording the write-ahead log checkpoint: " + e.getMessage());
+        }
+    }
+
+    public synchronized long getNextLsn() {
+        return nextLsn;
+    }
+
+    public synchronized long getCommitLsn() {
+        return commitLsn;
+    }
+
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    private FileChannel openSegment(long start) throws IOException {
+        return FileChannel.open(getSegmentPath(start), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private Path getSegmentPath(long start) {
+        return logDir.resolve(start + SEGMENT_SUFFIX);
+    }
+
+    // Start LSNs of the segments on disk, in order
+    private List<Long> listSegments() throws IOException {
+        List<Long> starts = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                starts.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    // Replays the committed records of the segments after the last checkpoint onto the catalog
+    // and table files. The writes of a statement cut off by the crash are taken back first,
+    // newest first, so each slot and file length ends up as it was before the statement; a torn
+    // record at the end is skipped. Returns the ids of the tables whose files the log touched,
+    // or null if the log had no records after the checkpoint.
+    public Set<Integer> recover(Catalog catalog) throws IOException {
+        List<List<byte[]>> committed = new ArrayList<>(); // Records of each committed statement, type first
+        List<byte[]> unfinished = new ArrayList<>();      // Records of statements that never committed
+        for (long start : listSegments()) {
+            if (start < redoLsn) {
+                continue; // Checkpointed, left behind by a crash before it was deleted
+            }
+            readSegment(Files.readAllBytes(getSegmentPath(start)), committed, unfinished);
+        }
+        if (committed.isEmpty() && unfinished.isEmpty()) {
+            return null;
+        }
+
+        Set<Integer> changed = new HashSet<>();
+        for (int i = unfinished.size() - 1; i >= 0; i--) {
+            byte[] record = unfinished.get(i);
+            undo(record[0], ByteBuffer.wrap(record, 1, record.length - 1).slice(), changed);
+        }
+        for (List<byte[]> statement : committed) {
+            for (byte[] record : statement) {
+                redo(catalog, record[0], ByteBuffer.wrap(record, 1, record.length - 1).slice(), changed);
+            }
+        }
+
+        if (!unfinished.isEmpty()) {
+            System.out.println("Rolled back the writes of a statement that did not commit");
+        }
+        System.out.println("Recovered " + committed.size() + " statements from the write-ahead log");
+        return changed;
+    }
+
+    // Splits one segment into its committed statements and the records after its last commit.
+    // Only the segment being written at the crash can end torn or with an uncommitted statement.
+    private void readSegment(byte[] log, List<List<byte[]>> committed, List<byte[]> unfinished) {
+        List<byte[]> statement = new ArrayList<>(); // Records of the statement being read, type first
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(log));
+        try {
+            while (dis.available() > 0) {
+                byte type = dis.readByte();
+                byte[] payload = new byte[dis.readInt()];
+                dis.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(payload);
+                if (dis.readInt() != (int) crc.getValue()) {
+                    break; // Torn write at the end of the log
+                }
+
+                if (type == COMMIT) {
+                    committed.add(statement);
+                    statement = new ArrayList<>();
+                } else {
+                    byte[] record = new byte[payload.length + 1];
+                    record[0] = type;
+                    System.arraycopy(payload, 0, record, 1, payload.length);
+                    statement.add(record);
+                }
+            }
+        } catch (IOException | NegativeArraySizeException | OutOfMemoryError e) {
+            // A record that was only partly written
+        }
+        unfinished.addAll(statement);
+    }
+
+    // Takes back one write of a statement that didn't commit. Only undo records touch the table
+    // files, the tables of the others are still reported as changed.
+    private void undo(byte type, ByteBuffer payload, Set<Integer> changed) throws IOException {
+        if (type == PAGE || type == TRUNCATE) {
+            changed.add(payload.getInt());
+        }
+        if (type != UNDO) {
+            return;
+        }
+        int tableId = payload.getInt();
+        long fileLength = payload.getLong();
+        int slot = payload.getInt();
+        byte[] image = new byte[payload.remaining()];
+        payload.get(image);
+        changed.add(tableId);
+        if (!new File(getTableFile(tableId)).exists()) {
+            return; // Dropped since
+        }
+        try (RandomAccessFile file = new RandomAccessFile(getTableFile(tableId), "rw")) {
+            if (image.length > 0) {
+                file.seek(Integer.BYTES + ((long) slot * Main.getPageSize()));
+                file.write(image);
+            }
+            file.setLength(fileLength);
+        }
+    }
+
+    private void redo(Catalog catalog, byte type, ByteBuffer payload, Set<Integer> changed) throws IOException {
+        int pageSize = Main.getPageSize();
+        switch (type) {
+            case CATALOG -> {
+                byte[] image = new byte[payload.remaining()];
+                payload.get(image);
+                catalog.readTables(new DataInputStream(new ByteArrayInputStream(image)));
+                for (Table table : catalog.getTables()) {
+                    changed.add(table.getTableID());
+                }
+            }
+            case TABLE_LAYOUT -> {
+                Table table = catalog.getTable(payload.getInt());
+                int pageCount = payload.getInt();
+                int[] locations = new int[pageCount];
+                for (int i = 0; i < pageCount; i++) {
+                    locations[i] = payload.getInt();
+                }
+                if (table != null) {
+                    table.setLayout(pageCount, locations);
+                    changed.add(table.getTableID());
+                }
+            }
+            case PAGE -> {
+                int tableId = payload.getInt();
+                int slot = payload.getInt();
+                byte[] image = new byte[payload.remaining()];
+                payload.get(image);
+                try (RandomAccessFile file = new RandomAccessFile(getTableFile(tableId), "rw")) {
+                    file.seek(Integer.BYTES + ((long) slot * pageSize));
+                    file.write(image);
+                }
+                changed.add(tableId);
+            }
+            case TRUNCATE -> {
+                int tableId = payload.getInt();
+                int slotCount = payload.getInt();
+                try (RandomAccessFile file = new RandomAccessFile(getTableFile(tableId), "rw")) {
+                    file.setLength(Integer.BYTES + ((long) slotCount * pageSize));
+                }
+                changed.add(tableId);
+            }
+            case OVERFLOW_PAGE -> {
+                int tableId = payload.getInt();
+                int pageId = payload.getInt();
+                byte[] image = new byte[payload.remaining()];
+                payload.get(image);
+                try (RandomAccessFile file = new RandomAccessFile(OverflowManager.getFileName(tableId), "rw")) {
+                    file.seek((long) pageId * pageSize);
+                    file.write(image);
+                }
+            }
+            case OVERFLOW_DROP -> new File(OverflowManager.getFileName(payload.getInt())).delete();
+            case UNDO -> { } // Only used when the statement didn't commit
+            default -> throw new IOException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    private static String getTableFile(int tableId) {
+        return Main.getDBLocation() + "tables/" + tableId + ".bin";
+    }
+}
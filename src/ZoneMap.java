@@ -0,0 +1,244 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// Per page summary of a table (min/max and null count of every column) describing what
+// is stored on disk for one page slot. Scans check it against the where tree before a
+// page is read, so pages that cannot hold a matching record are never loaded.
+public class ZoneMap {
+    private static final int MAX_STRING_BOUND = 255; // Longer strings leave the column unbounded
+
+    private int recordCount;
+    private Object[] min;
+    private Object[] max;
+    private int[] nullCount;
+    private boolean[] bounded; // false if min/max could not be tracked for the column
+
+    private ZoneMap(int attributeCount) {
+        this.recordCount = 0;
+        this.min = new Object[attributeCount];
+        this.max = new Object[attributeCount];
+        this.nullCount = new int[attributeCount];
+        this.bounded = new boolean[attributeCount];
+    }
+
+    // Builds the zone map for a page, without loading any out of line varchar
+    public static ZoneMap fromPage(Page page, Attribute[] attributes) {
+        ZoneMap zone = new ZoneMap(attributes.length);
+        Arrays.fill(zone.bounded, true);
+        for (Record record : page.getRecords()) {
+            zone.add(record.getData(Record.NO_COLUMNS));
+        }
+        return zone;
+    }
+
+    // Builds the zone map for a block of tuples, used by columnar tables
+    public static ZoneMap fromTuples(List<List<Object>> tuples, Attribute[] attributes) {
+        ZoneMap zone = new ZoneMap(attributes.length);
+        Arrays.fill(zone.bounded, true);
+        for (List<Object> tuple : tuples) {
+            zone.add(tuple);
+        }
+        return zone;
+    }
+
+    private void add(List<Object> data) {
+        recordCount++;
+        for (int i = 0; i < min.length; i++) {
+            Object value = i < data.size() ? data.get(i) : null;
+            if (value == null) {
+                nullCount[i]++;
+            } else if (value instanceof OverflowValue
+                    || (value instanceof String && ((String) value).length() > MAX_STRING_BOUND)) {
+                bounded[i] = false;
+            } else {
+                if (min[i] == null || compare(value, min[i]) < 0) min[i] = value;
+                if (max[i] == null || compare(value, max[i]) > 0) max[i] = value;
+            }
+        }
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    // Smallest non null value of a column, null if unknown
+    public Object getMin(int column) {
+        return column < min.length && bounded[column] ? min[column] : null;
+    }
+
+    // Largest non null value of a column, null if unknown
+    public Object getMax(int column) {
+        return column < max.length && bounded[column] ? max[column] : null;
+    }
+
+    // Returns false only if no record summarized by this zone map can satisfy the where tree
+    public boolean mayMatch(Node where, List<String> columnNames) {
+        if (where == null) {
+            return true;
+        }
+
+        switch (where.getValue()) {
+            case "and":
+                return mayMatch(where.getLeftLeaf(), columnNames) && mayMatch(where.getRightLeaf(), columnNames);
+            case "or":
+                return mayMatch(where.getLeftLeaf(), columnNames) || mayMatch(where.getRightLeaf(), columnNames);
+            case "=":
+            case "!=":
+            case ">":
+            case "<":
+            case ">=":
+            case "<=":
+                return comparisonMayMatch(where, columnNames);
+            default:
+                return true;
+        }
+    }
+
+    private boolean comparisonMayMatch(Node comparison, List<String> columnNames) {
+        String operator = comparison.getValue();
+        String left = comparison.getLeftLeaf().getValue();
+        String right = comparison.getRightLeaf().getValue();
+
+        int column = getColumnIndex(left, columnNames);
+        String literal = right;
+        if (column == -1) { // Literal on the left side, mirror the operator
+            column = getColumnIndex(right, columnNames);
+            literal = left;
+            operator = flip(operator);
+        }
+        if (column == -1 || column >= nullCount.length || getColumnIndex(literal, columnNames) != -1) {
+            return true; // Nothing to prune on (two columns, two literals or unknown column)
+        }
+
+        if (literal.equals("null")) {
+            return nullCount[column] > 0;
+        }
+        if (!bounded[column]) {
+            return true;
+        }
+        if (min[column] == null) {
+            return false; // Every value is null, comparisons against a literal never match
+        }
+
+        Integer low = compareLiteral(min[column], literal);
+        Integer high = compareLiteral(max[column], literal);
+        if (low == null || high == null) {
+            return true; // Type mismatch, let the evaluator report it
+        }
+
+        switch (operator) {
+            case "=":
+                return low <= 0 && high >= 0;
+            case "!=":
+                return !(low == 0 && high == 0);
+            case ">":
+                return high > 0;
+            case ">=":
+                return high >= 0;
+            case "<":
+                return low < 0;
+            case "<=":
+                return low <= 0;
+            default:
+                return true;
+        }
+    }
+
+    private static String flip(String operator) {
+        switch (operator) {
+            case ">": return "<";
+            case "<": return ">";
+            case ">=": return "<=";
+            case "<=": return ">=";
+            default: return operator;
+        }
+    }
+
+    // Same name resolution as the where tree: qualified names match exactly, plain names by column
+    private static int getColumnIndex(String name, List<String> columnNames) {
+        for (int i = 0; i < columnNames.size(); i++) {
+            String columnName = columnNames.get(i);
+            if (columnName.equals(name) || columnName.substring(columnName.indexOf('.') + 1).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Compares a stored value with a literal from the where clause, null if the types do not line up
+    private static Integer compareLiteral(Object value, String literal) {
+        if (value instanceof Integer || value instanceof Double) {
+            try {
+                return Double.compare(((Number) value).doubleValue(), Double.parseDouble(literal));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (value instanceof Boolean) {
+            if (!literal.equals("true") && !literal.equals("false")) return null;
+            return Boolean.compare((Boolean) value, Boolean.parseBoolean(literal));
+        }
+        if (value instanceof String) {
+            String[] parts = literal.split("\"");
+            if (parts.length != 2) return null;
+            return ((String) value).compareTo(parts[1]);
+        }
+        return null;
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof Integer) return Integer.compare((Integer) a, (Integer) b);
+        if (a instanceof Double) return Double.compare((Double) a, (Double) b);
+        if (a instanceof Boolean) return Boolean.compare((Boolean) a, (Boolean) b);
+        return ((String) a).compareTo((String) b);
+    }
+
+    public void writeToStream(DataOutputStream dos, Attribute[] attributes) throws IOException {
+        dos.writeInt(this.recordCount);
+        for (int i = 0; i < attributes.length; i++) {
+            dos.writeInt(this.nullCount[i]);
+            boolean hasRange = this.bounded[i] && this.min[i] != null;
+            dos.writeBoolean(this.bounded[i]);
+            dos.writeBoolean(hasRange);
+            if (hasRange) {
+                writeValue(dos, this.min[i], attributes[i]);
+                writeValue(dos, this.max[i], attributes[i]);
+            }
+        }
+    }
+
+    public static ZoneMap readFromStream(DataInputStream dis, Attribute[] attributes) throws IOException {
+        ZoneMap zone = new ZoneMap(attributes.length);
+        zone.recordCount = dis.readInt();
+        for (int i = 0; i < attributes.length; i++) {
+            zone.nullCount[i] = dis.readInt();
+            zone.bounded[i] = dis.readBoolean();
+            if (dis.readBoolean()) {
+                zone.min[i] = readValue(dis, attributes[i]);
+                zone.max[i] = readValue(dis, attributes[i]);
+            }
+        }
+        return zone;
+    }
+
+    static void writeValue(DataOutputStream dos, Object value, Attribute attr) throws IOException {
+        switch (attr.getType().toLowerCase()) {
+            case "integer" -> dos.writeInt((Integer) value);
+            case "double" -> dos.writeDouble((Double) value);
+            case "boolean" -> dos.writeBoolean((Boolean) value);
+            default -> dos.writeUTF((String) value);
+        }
+    }
+
+    static Object readValue(DataInputStream dis, Attribute attr) throws IOException {
+        switch (attr.getType().toLowerCase()) {
+            case "integer": return dis.readInt();
+            case "double": return dis.readDouble();
+            case "boolean": return dis.readBoolean();
+            default: return dis.readUTF();
+        }
+    }
+}
@@ -1,5 +1,8 @@
-import java.io.IOException;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -14,6 +17,24 @@ public class parser {
         }
     
         String tableDef = parts[2].trim();
+
+        // Optional storage mode after the attribute list: "storage ordered|heap|columnar"
+        byte storageMode = Table.ORDERED;
+        Matcher storage = Pattern.compile("(?is)(.*\\))\\s*storage\\s+(\\w+)\\s*;").matcher(tableDef);
+        if (storage.matches()) {
+            switch (storage.group(2).toLowerCase()) {
+                case "ordered" -> storageMode = Table.ORDERED;
+                case "heap" -> storageMode = Table.HEAP;
+                case "columnar" -> storageMode = Table.COLUMNAR;
+                default -> {
+                    System.err.println("Unknown storage mode \"" + storage.group(2) + "\", expected ordered, heap or columnar.");
+                    System.err.println("ERROR");
+                    return;
+                }
+            }
+            tableDef = storage.group(1) + ";";
+        }
+
         int openParenIdx = tableDef.indexOf('(');
     
         if (openParenIdx == -1 || !tableDef.endsWith(");")) {
@@ -82,13 +103,17 @@ public class parser {
     
         // Create and register the table
         Table table = new Table(tableName, catalog.getNextTableID(), attributes.size(), attributes.toArray(new Attribute[0]));
+        table.setStorage(storageMode);
         catalog.addTable(table);
     
         // Create a B+ Tree index if indexing is enabled
         if (Main.getIndexing()) {
             ArrayList<BPlusTree> trees = Main.getBPlusTrees();
             BPlusTree index = new BPlusTree(primaryKey, table.getTableID());
-            trees.add(index);
+            while (trees.size() <= table.getTableID()) {
+                trees.add(null); // A dropped table's id can be taken again
+            }
+            trees.set(table.getTableID(), index);
             System.out.println("BPlus Tree created successfully.");
         }
     
@@ -110,47 +135,48 @@ public class parser {
             System.out.println("Table " + tableName + " not found.");
             return;
         }
+        if (table.isColumnar()) {
+            System.out.println("Alter table is not supported on columnar tables.");
+            System.out.println("ERROR\n");
+            return;
+        }
 
         String operation = tokens[3].toLowerCase();
         String definition = tokens[4].replace(";", "");
 
         if (operation.equals("add")) {
             Attribute newAttr = Attribute.parse(definition);
+            // The pages on disk are read with the columns they were written with, then the
+            // table is rewritten with the new one
+            List<Record> records = readAllRecords(table, storageManager);
             table.addAttribute(newAttr);
         
             Attribute[] attributes = table.getAttributes();
             int newAttributeIndex = attributes.length - 1;
         
-            List<Page> pages = storageManager.getPages(table.getTableID());
-            for (Page page : pages) {
-                for (Record record : page.getRecords()) {
-                    Object defaultValue = newAttr.getDefaultValue();
-                    
-                    if (definition.contains("default")) {
-                        String[] definitionParts = definition.split("\\s+");
-                        String defVal = definitionParts[definitionParts.length - 1];
-                        attributes[newAttributeIndex].setDefaultValue(defaultValue);
-
-                        record.addValue(defVal, newAttributeIndex, newAttr);
-                    } else {
-                        // Add null value and adjust size
-                        record.addValue(null, newAttributeIndex, newAttr);
-                    }
-                }
-                // Recalculate Page Size test
-                page.reCalcPageSize(); 
-                // Update the page size to reflect new attribute addition
-                page.setSize(page.getSize());
-                if (page.isOverfull()) {
-                    storageManager.splitPage(page);
+            Object defVal = null;
+            if (definition.contains("default")) {
+                // Stored with the column's type, the pages are encoded by it when they are written
+                String[] definitionParts = definition.split("\\s+");
+                defVal = parseValueBasedOnType(definitionParts[definitionParts.length - 1], newAttr);
+                attributes[newAttributeIndex].setDefaultValue(defVal);
+            }
+
+            for (Record record : records) {
+                if (defVal != null) {
+                    record.addValue(defVal, newAttributeIndex, newAttr);
+                    table.valueUpdated(newAttributeIndex, null, record.getData(Record.NO_COLUMNS).get(newAttributeIndex));
+                } else {
+                    // Add null value and adjust size
+                    record.addValue(null, newAttributeIndex, newAttr);
                 }
             }
+            storageManager.rewriteRecords(table, records);
         
         }
         
          else if (operation.equals("drop")) {
             Attribute[] attributes = table.getAttributes();
-            List<Page> pages = storageManager.getPages(table.getTableID());
 
             OptionalInt attributeIndexOpt = IntStream.range(0, attributes.length)
                     .filter(i -> attributes[i].getName().equals(definition))
@@ -163,20 +189,27 @@ public class parser {
 
             int attributeIndex = attributeIndexOpt.getAsInt();
 
-            for (Page page : pages) {
-                for (Record record : page.getRecords()) {
-                    int sizeLost = record.removeValue(attributeIndex, attributes[attributeIndex]);
-                    page.setSize(page.getSize() - sizeLost);
-                    // record.removeAttribute(attributeIndex);
-                }
+            List<Record> records = readAllRecords(table, storageManager);
+            for (Record record : records) {
+                record.removeValue(attributeIndex, attributes[attributeIndex]);
             }
 
             table.dropAttribute(definition);
+            storageManager.rewriteRecords(table, records);
         } else {
             System.out.println("Unsupported ALTER TABLE operation: " + operation);
         }
     }
 
+    // Reads every record of a table in page order, with the columns it has now
+    private static List<Record> readAllRecords(Table table, StorageManager storageManager) {
+        List<Record> records = new ArrayList<>();
+        for (Page page : storageManager.scan(table.getTableID())) {
+            records.addAll(page.getRecords());
+        }
+        return records;
+    }
+
     private static void dropTable(String statement, Catalog catalog) {
         String[] tokens = statement.split("\\s+");
         if (tokens.length != 3 || !tokens[0].equalsIgnoreCase("drop") || !tokens[1].equalsIgnoreCase("table")) {
@@ -188,6 +221,95 @@ public class parser {
         System.out.println("Table " + tableName + " dropped successfully.");
     }
     
+    // vacuum <table>; merges under-filled pages and rewrites the table file in page order
+    private static void vacuum(String statement, Catalog catalog, StorageManager storageManager) {
+        String[] tokens = statement.trim().split("\\s+");
+        if (tokens.length != 2) {
+            System.out.println("Syntax error in VACUUM command.");
+            return;
+        }
+        String tableName = tokens[1].replace(";", "");
+        Table table = catalog.getTableByName(tableName);
+        if (table == null) {
+            System.out.println("No such table " + tableName);
+            System.out.println("ERROR\n");
+            return;
+        }
+
+        if (table.isColumnar()) {
+            ColumnStore store = table.getColumnStore();
+            int blocksBefore = store.getBlockCount();
+            store.vacuum();
+            System.out.println("Table " + tableName + " vacuumed: " + blocksBefore + " blocks -> " + store.getBlockCount() + " blocks");
+            System.out.println("SUCCESS\n");
+            return;
+        }
+
+        int pagesBefore = table.getPageCount();
+        storageManager.vacuum(table);
+        System.out.println("Table " + tableName + " vacuumed: " + pagesBefore + " pages -> " + table.getPageCount() + " pages");
+        System.out.println("SUCCESS\n");
+    }
+
+    // truncate [table] <table>; deletes every row of the table, same as a delete without a where
+    private static void truncate(String statement, Catalog catalog, StorageManager storageManager) {
+        String[] tokens = statement.trim().replace(";", "").split("\\s+");
+        if (tokens.length == 3 && tokens[1].equalsIgnoreCase("table")) {
+            tokens = new String[] { tokens[0], tokens[2] };
+        }
+        if (tokens.length != 2) {
+            System.out.println("Syntax error in TRUNCATE command.");
+            return;
+        }
+        String tableName = tokens[1];
+        Table table = catalog.getTableByName(tableName);
+        if (table == null) {
+            System.out.println("No such table " + tableName);
+            System.out.println("ERROR\n");
+            return;
+        }
+
+        storageManager.truncate(table);
+        System.out.println("SUCCESS\n");
+    }
+
+    // analyze <table>; builds the histograms of the table's columns from a sample of its pages
+    private static void analyze(String statement, Catalog catalog) {
+        String[] tokens = statement.trim().split("\\s+");
+        if (tokens.length != 2) {
+            System.out.println("Syntax error in ANALYZE command.");
+            return;
+        }
+        String tableName = tokens[1].replace(";", "");
+        Table table = catalog.getTableByName(tableName);
+        if (table == null) {
+            System.out.println("No such table " + tableName);
+            System.out.println("ERROR\n");
+            return;
+        }
+
+        int sampled = table.getStats().analyze(table);
+        System.out.println("Table " + tableName + " analyzed: " + sampled + " of " + table.getRecordCount() + " rows sampled");
+        System.out.println("SUCCESS\n");
+    }
+
+    // set durability none|per-commit|periodic(ms);
+    private static void set(String statement) {
+        String[] tokens = statement.trim().replace(";", "").split("\\s+", 3);
+        if (tokens.length != 3 || !tokens[1].equalsIgnoreCase("durability")) {
+            System.out.println("Syntax error in SET command.");
+            return;
+        }
+        WriteAheadLog wal = Main.getWal();
+        if (!wal.setDurability(tokens[2])) {
+            System.out.println("Unknown durability " + tokens[2] + ", expected none, per-commit or periodic(ms)");
+            System.out.println("ERROR\n");
+            return;
+        }
+        System.out.println("Durability: " + wal.getDurability());
+        System.out.println("SUCCESS\n");
+    }
+
     private static void insertInto(String statement, Catalog catalog, StorageManager storageManager) {
         String[] tokens = statement.trim().split("\\s+", 4);
     
@@ -213,6 +335,7 @@ public class parser {
         String valuesPart = tokens[3].substring(tokens[3].indexOf("("), tokens[3].length() - 1); // Remove trailing semicolon
     
         String[] individualValueSets = valuesPart.split("\\),\\s*\\(");
+        List<Record> rows = new ArrayList<>(individualValueSets.length);
         for (String valueSet : individualValueSets) {
             valueSet = valueSet.trim().replaceAll("^\\(|\\)$", ""); // Remove outer parentheses
             String currentRow = "row (" + valueSet + "):";
@@ -224,6 +347,10 @@ public class parser {
             }
 
             if (values.length != table.getAttributesCount()) {
+                // The rows before a bad one are still inserted, as if inserted one at a time
+                if (!insertRows(table, rows, catalog, storageManager)) {
+                    return;
+                }
                 String expected = "";
                 for(Attribute attr : table.getAttributes()){
                     expected += attr.getTypeFancy() + " ";
@@ -242,7 +369,6 @@ public class parser {
             }
             ArrayList<Byte> nullBitMap = new ArrayList<>(table.getAttributesCount());
             ArrayList<Object> recordValues = new ArrayList<>();
-            Object primaryKeyValue = null; // used for BPlusTree
 
             for (int i = 0; i < values.length; i++) {
                 String value = values[i].trim();
@@ -257,6 +383,9 @@ public class parser {
                 // Parse value based on attribute type
                 Object parsedValue = parseValueBasedOnType(value, attribute);
                 if (parsedValue == null) {
+                    if (!insertRows(table, rows, catalog, storageManager)) {
+                        return;
+                    }
                     String expected = "";
                     for(Attribute attr : table.getAttributes()){
                         expected += attr.getTypeFancy() + " ";
@@ -278,6 +407,9 @@ public class parser {
                 if (parsedValue instanceof String) {
                     int length = ((String) parsedValue).length();
                     if ((attribute.getType().equals("char") || attribute.getType().equals("varchar")) && length > attribute.getSize()) {
+                        if (!insertRows(table, rows, catalog, storageManager)) {
+                            return;
+                        }
                         System.err.println("\nrow (" + valueSet + "): " + attribute.getType() + "(" + 
                             attribute.getSize() + ") can only accept " + attribute.getSize() + " " + 
                             attribute.getType() + "s; " + value + " is " + value.length());
@@ -288,32 +420,53 @@ public class parser {
     
                 recordValues.add(parsedValue);
                 nullBitMap.add((byte) 0);
-
-                if (attribute.getPrimaryKey()) primaryKeyValue = parsedValue;
             }
     
             int recordSize = calculateRecordSize(recordValues, table.getAttributes());
-            Record newRecord = new Record(recordSize, recordValues, nullBitMap);
-                // choose insert operation based on if indexing is on or not
-                if (Main.getIndexing()) {
-
-                    BPlusTree bPlusTree = Main.getBPlusTrees().get(table.getTableID());
-                    boolean success = bPlusTree.insert(newRecord, primaryKeyValue, recordSize, table.getTableID());
-                    if (!success) {
-                        System.out.println("Insert failed: duplicate primary key");
-                        return;
-                    }
-                }
-                else{
-                    if (!storageManager.addRecord(catalog, newRecord, table.getTableID())) {
-                        return;
-                    }
-                }
+            rows.add(new Record(recordSize, recordValues, nullBitMap));
+        }
+
+        if (!insertRows(table, rows, catalog, storageManager)) {
+            return;
         }
         System.out.println("SUCCESS\n");
     
         // System.out.println("Record(s) inserted successfully into table: " + tableName);
-    }    
+    }
+
+    // Inserts the parsed rows of an INSERT statement. Like inserting one row at a time, the rows
+    // before the first duplicate are kept and the rest are dropped. Large lists and loads into
+    // an empty table are bulk loaded, the others go through the regular insert one by one.
+    // Returns false if a row was rejected.
+    private static boolean insertRows(Table table, List<Record> rows, Catalog catalog, StorageManager storageManager) {
+        int accepted = storageManager.findFirstDuplicate(table, rows);
+        boolean allAccepted = accepted == rows.size();
+        List<Record> toInsert = new ArrayList<>(rows.subList(0, accepted));
+        rows.clear(); // A later call for the same statement must not insert them again
+
+        if (table.isColumnar()) { // Written as whole blocks, see ColumnStore.append
+            if (!toInsert.isEmpty()) {
+                table.getColumnStore().append(toInsert);
+                for (Record newRecord : toInsert) {
+                    table.recordInserted(newRecord);
+                }
+            }
+            return allAccepted;
+        }
+
+        // A heap table appends without sorting, a bulk load has nothing to gain there
+        if (!toInsert.isEmpty() && !table.isHeap() && storageManager.prefersBulkLoad(table, toInsert.size())) {
+            storageManager.bulkLoad(table, toInsert);
+        } else {
+            // The storage manager places each record and tells the table's B+ tree where it went
+            for (Record newRecord : toInsert) {
+                if (!storageManager.addRecord(catalog, newRecord, table.getTableID())) {
+                    return false;
+                }
+            }
+        }
+        return allAccepted;
+    }
     
     private static String getActualType(String value) {
         if (value.matches("-?\\d+")) return "integer";
@@ -365,10 +518,8 @@ public class parser {
                     size += attr.getSize();
                     break;
                 case "varchar":
-                    String stringValue = (String) value;
-                    size += stringValue.getBytes().length;
-                    // Include 4 bytes to store the length of varchar if needed
-                    size += Integer.BYTES;
+                    // Length prefix + bytes, or just the stub if the value goes out of line
+                    size += OverflowManager.varcharSize(value);
                     break;
                 default:
                     System.out.println("Unsupported attribute type: " + attr.getType());
@@ -514,20 +665,14 @@ public class parser {
 
         }
 
-        // Get all records from tables and generate the Cartesian product
-        // SELECT x, y, z FROM t1, t2, t3 WHERE ... ORDER BY ...
-        // allRecords stores t1, t2, t3 records in a 3D list
-        List<List<List<Object>>> allRecords = new ArrayList<>();
+        // Column names of the Cartesian product, in table order
         List<String> columnNames = new ArrayList<>();
         for (Table table : tableObjects) {
-            List<List<Object>> records = storageManager.getRecords(table.getTableID());
             String tableName = table.getName();
             for (Attribute attr : table.getAttributes()) {
                 columnNames.add(tableName + "." + attr.getName());
             }
-            allRecords.add(records);
         }
-        List<List<Object>> cartesianProduct = cartesianProduct(allRecords);
 
         // Map each attribute in allAttr to its correct index in the original columnNames
         ArrayList<Integer> attrIndices = new ArrayList<>();
@@ -542,7 +687,7 @@ public class parser {
 
 
         // Process WHERE clause if present
-        List<List<Object>> validRecords = cartesianProduct;
+        Node tree = null;
         if (whereIndex != -1) {
         ArrayList<String> allConditionals = new ArrayList<>();
         int whereEnd = (orderByIndex != -1) ? orderByIndex : words.length;
@@ -587,30 +732,188 @@ public class parser {
         }
 
         // Build where tree after resolving ambiguity
-        Node tree = buildWhereTree(allConditionals);
-        if (tree != null) {
-            validRecords = evaluateWhereTree(cartesianProduct, columnNames, tree);
-        }
+        tree = buildWhereTree(allConditionals);
     }
 
-
-        // Process ORDER BY clause if present
+        // Get the matching records of the tables and join them
+        // SELECT x, y, z FROM t1, t2, t3 WHERE ... ORDER BY ...
+        // With a single table the where tree is applied while its pages are streamed (and skips
+        // pages through their zone maps), so only matching rows are ever held
+        List<String> clauseWords = Arrays.asList(words).subList(endOfTables, words.length);
+        List<boolean[]> referenced = new ArrayList<>();
+        for (Table table : tableObjects) {
+            referenced.add(getReferencedColumns(table, allAttr, clauseWords));
+        }
+        // A single table whose where tree bounds its primary key, or that is ordered by it, may be
+        // read through its B+ tree instead, in key order
+        int orderByColumn = -1;
         if (orderByIndex != -1 && orderByIndex + 1 < words.length) {
-            String orderByCondition = words[orderByIndex + 1];        
-            int attrIndex = getAttributeIndex(orderByCondition, columnNames);
-            if (attrIndex == -1) {
+            orderByColumn = getAttributeIndex(words[orderByIndex + 1], columnNames);
+            if (orderByColumn == -1) {
                 // Error already handled in getAttributeIndex(), no need for further action
                 return;
             }
-        
+        }
+        KeyRange range = null;
+        boolean orderedByKey = false;
+        if (tableObjects.size() == 1) {
+            Table table = tableObjects.get(0);
+            orderedByKey = orderByColumn != -1 && table.getAttributes()[orderByColumn].isPrimaryKey();
+            range = indexRange(table, tree, columnNames, orderedByKey);
+        }
+        List<List<Object>> validRecords;
+        if (range != null) {
+            validRecords = storageManager.getRecordsByKey(tableObjects.get(0), referenced.get(0), range.low(),
+                    range.lowInclusive(), range.high(), range.highInclusive(), whereFilter(tree, columnNames));
+        } else if (tableObjects.size() == 1) {
+            validRecords = storageManager.getRecords(tableObjects.get(0).getTableID(), referenced.get(0), tree,
+                    columnNames, whereFilter(tree, columnNames));
+        } else {
+            validRecords = join(tableObjects, referenced, tree, columnNames, storageManager);
+        }
+
+
+        // Process ORDER BY clause if present, records read through the index are already in key order
+        if (orderByColumn != -1 && !(range != null && orderedByKey)) {
             // Sort records by the found attribute index
-            validRecords = sortRecords(validRecords, attrIndex);
+            validRecords = sortRecords(validRecords, orderByColumn);
         }
         
         // Print the final results
         printGiven2List(validRecords, allAttr, attrIndices);
     }
 
+    // Flags the columns of a table that a select reads (projected, in the where or orderby clause).
+    // Out of line varchars in the other columns are never loaded from their overflow chains.
+    private static boolean[] getReferencedColumns(Table table, List<String> selectedAttr, List<String> clauseWords) {
+        Attribute[] attributes = table.getAttributes();
+        boolean[] referenced = new boolean[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            String qualified = table.getName() + "." + attributes[i].getName();
+            referenced[i] = selectedAttr.contains(qualified)
+                || clauseWords.contains(qualified)
+                || clauseWords.contains(attributes[i].getName());
+        }
+        return referenced;
+    }
+
+    // Primary key bounds a select reads its table through the B+ tree with, a null bound is open
+    private record KeyRange(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+    }
+
+    // The primary key range to read a single table with through its B+ tree, null to scan the
+    // table instead. The and-ed comparisons of the key with a literal bound the range, the rest
+    // of the where tree is still checked on every record read. Without bounds the tree is only
+    // used for an orderby on the key of an ordered table, whose leaves and pages are in the same
+    // order. Heap records are in no key order, each one read through the tree may be on its own
+    // page, so a heap table is scanned unless the range is estimated (see Selectivity) to keep
+    // no more records than the table has pages. The bounds are on one column, the fraction
+    // between them is the fractions above the lower and below the upper one less the whole.
+    private static KeyRange indexRange(Table table, Node where, List<String> columnNames, boolean orderedByKey) {
+        BPlusTree index = Main.getBPlusTree(table.getTableID());
+        if (index == null || table.isColumnar()) {
+            return null;
+        }
+        Attribute pkAttr = index.getAttribute();
+        String type = pkAttr.getType().toLowerCase();
+        if (!type.equals("integer") && !type.equals("double") && !type.equals("varchar")) {
+            return null; // Char values keep their padding in the pages, a boolean key has no range worth it
+        }
+
+        List<Node> conditions = new ArrayList<>();
+        splitConditions(where, conditions);
+        String qualified = table.getName() + "." + pkAttr.getName();
+        Comparator<Object> comparator = index.getComparator();
+        Object low = null, high = null;
+        boolean lowInclusive = true, highInclusive = true;
+        Node lowCondition = null, highCondition = null; // The comparisons the bounds come from
+        for (Node condition : conditions) {
+            String operator = condition.getValue();
+            if (!operator.equals("=") && !operator.equals(">") && !operator.equals(">=")
+                    && !operator.equals("<") && !operator.equals("<=")) {
+                continue;
+            }
+            String left = condition.getLeftLeaf().getValue();
+            String right = condition.getRightLeaf().getValue();
+            String literal;
+            if (left.equals(qualified) || left.equals(pkAttr.getName())) {
+                literal = right;
+            } else if (right.equals(qualified) || right.equals(pkAttr.getName())) {
+                literal = left;
+                operator = flip(operator);
+            } else {
+                continue;
+            }
+            Object value = keyLiteral(literal, pkAttr);
+            if (value == null) {
+                return null; // Another column or a value of the wrong type, the scan evaluates or reports it
+            }
+            if (!operator.startsWith("<")) { // =, > or >= raise the lower bound
+                boolean inclusive = !operator.equals(">");
+                int order = low == null ? 1 : comparator.compare(value, low);
+                if (order > 0 || (order == 0 && lowInclusive && !inclusive)) {
+                    low = value;
+                    lowInclusive = inclusive;
+                    lowCondition = condition;
+                }
+            }
+            if (!operator.startsWith(">")) { // =, < or <= lower the upper bound
+                boolean inclusive = !operator.equals("<");
+                int order = high == null ? -1 : comparator.compare(value, high);
+                if (order < 0 || (order == 0 && highInclusive && !inclusive)) {
+                    high = value;
+                    highInclusive = inclusive;
+                    highCondition = condition;
+                }
+            }
+        }
+
+        if (lowCondition == null && highCondition == null) {
+            return orderedByKey && !table.isHeap() ? new KeyRange(null, true, null, true) : null;
+        }
+        if (table.isHeap()) {
+            List<Table> tables = List.of(table);
+            double fraction;
+            if (lowCondition == null || highCondition == null || lowCondition == highCondition) {
+                fraction = Selectivity.estimate(lowCondition != null ? lowCondition : highCondition, columnNames, tables);
+            } else {
+                fraction = Math.max(0, Selectivity.estimate(lowCondition, columnNames, tables)
+                        + Selectivity.estimate(highCondition, columnNames, tables) - 1);
+            }
+            if (fraction * table.getStats().getRowCount() > table.getPageCount()) {
+                return null;
+            }
+        }
+        return new KeyRange(low, lowInclusive, high, highInclusive);
+    }
+
+    // A literal of the where tree as a key value, null if it is not a value of the key's type
+    private static Object keyLiteral(String literal, Attribute pkAttr) {
+        try {
+            switch (pkAttr.getType().toLowerCase()) {
+                case "integer":
+                    return Integer.parseInt(literal);
+                case "double":
+                    return Double.parseDouble(literal);
+                default:
+                    boolean quoted = literal.length() >= 2 && literal.startsWith("\"") && literal.endsWith("\"");
+                    return quoted ? literal.substring(1, literal.length() - 1) : null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String flip(String operator) {
+        switch (operator) {
+            case ">": return "<";
+            case "<": return ">";
+            case ">=": return "<=";
+            case "<=": return ">=";
+            default: return operator;
+        }
+    }
+
     // order by will always be an element in the select's parsed str
     // allAttr[] = t1.a, t2.b, t2.c, t3.d
     // attrName = t1.a
@@ -705,27 +1008,244 @@ public class parser {
     }
 
 
-    private static List<List<Object>> cartesianProduct(List<List<List<Object>>> tables) {
-        if (tables.isEmpty()) {
-            return new ArrayList<>();
+    // Combinations of one row from each table that pass the filter (all of them if it is null).
+    // Combinations are built one at a time, so only the matching ones are held.
+    // Joins the tables of a select. The and-ed conditions of the where tree that read a single
+    // table are applied while that table is scanned, like the where tree of a single table select.
+    // The others are checked in a nested loop over the remaining rows as soon as the tables they
+    // read are bound. Tables are bound in the order that keeps the estimated number of partial
+    // rows low (see Selectivity), and the rows come out in the order of the cartesian product of
+    // the tables as listed.
+    private static List<List<Object>> join(List<Table> tables, List<boolean[]> referenced, Node tree,
+                                           List<String> columnNames, StorageManager storageManager) {
+        int[] offsets = new int[tables.size() + 1]; // First column of each table in the rows
+        for (int t = 0; t < tables.size(); t++) {
+            offsets[t + 1] = offsets[t] + tables.get(t).getAttributesCount();
+        }
+
+        // A table listed twice has the same column names twice, its conditions are kept whole
+        List<Node> conditions = new ArrayList<>();
+        boolean repeated = tables.stream().map(Table::getName).distinct().count() < tables.size();
+        if (tree != null && repeated) {
+            conditions.add(tree);
+        } else {
+            splitConditions(tree, conditions);
         }
-        
+        List<BitSet> tablesRead = new ArrayList<>();
+        for (Node condition : conditions) {
+            BitSet read = new BitSet();
+            if (repeated) {
+                read.set(0, tables.size());
+            } else {
+                addTablesRead(condition, columnNames, offsets, read);
+            }
+            tablesRead.add(read);
+        }
+
+        // The conditions on one table filter its scan
+        Node[] pushed = new Node[tables.size()];
+        List<Node> joinConditions = new ArrayList<>();
+        List<BitSet> joinTables = new ArrayList<>();
+        for (int c = 0; c < conditions.size(); c++) {
+            BitSet read = tablesRead.get(c);
+            if (read.cardinality() == 1) {
+                int t = read.nextSetBit(0);
+                pushed[t] = pushed[t] == null ? conditions.get(c) : and(pushed[t], conditions.get(c));
+            } else {
+                joinConditions.add(conditions.get(c));
+                joinTables.add(read);
+            }
+        }
+        for (int t = 0; t < tables.size(); t++) { // The first pages of every table are read while the ones before are
+            storageManager.prefetch(tables.get(t).getTableID(), pushed[t], columnNames.subList(offsets[t], offsets[t + 1]));
+        }
+        List<List<List<Object>>> rows = new ArrayList<>();
+        for (int t = 0; t < tables.size(); t++) {
+            List<String> tableColumns = columnNames.subList(offsets[t], offsets[t + 1]);
+            rows.add(storageManager.getRecords(tables.get(t).getTableID(), referenced.get(t), pushed[t], tableColumns,
+                    whereFilter(pushed[t], tableColumns)));
+        }
+        if (joinConditions.isEmpty()) {
+            return cartesianProduct(rows, null);
+        }
+
+        // Bind next the table giving the fewest estimated rows with the conditions it completes
+        double[] selectivity = new double[joinConditions.size()];
+        for (int c = 0; c < joinConditions.size(); c++) {
+            selectivity[c] = Selectivity.estimate(joinConditions.get(c), columnNames, tables);
+        }
+        int[] order = new int[tables.size()];
+        BitSet bound = new BitSet();
+        double estimate = 1;
+        for (int depth = 0; depth < tables.size(); depth++) {
+            int best = -1;
+            double bestEstimate = 0;
+            for (int t = 0; t < tables.size(); t++) {
+                if (bound.get(t)) continue;
+                double rowsAfter = estimate * rows.get(t).size();
+                BitSet withTable = (BitSet) bound.clone();
+                withTable.set(t);
+                for (int c = 0; c < joinConditions.size(); c++) {
+                    if (isCompletedBy(joinTables.get(c), bound, withTable)) {
+                        rowsAfter *= selectivity[c];
+                    }
+                }
+                if (best < 0 || rowsAfter < bestEstimate) {
+                    best = t;
+                    bestEstimate = rowsAfter;
+                }
+            }
+            order[depth] = best;
+            bound.set(best);
+            estimate = bestEstimate;
+        }
+
+        // The conditions checked once the table at each depth is bound, the ones reading no
+        // table with the first one
+        List<List<Predicate<List<Object>>>> checks = new ArrayList<>();
+        bound.clear();
+        for (int depth = 0; depth < tables.size(); depth++) {
+            BitSet withTable = (BitSet) bound.clone();
+            withTable.set(order[depth]);
+            List<Predicate<List<Object>>> atDepth = new ArrayList<>();
+            for (int c = 0; c < joinConditions.size(); c++) {
+                if (isCompletedBy(joinTables.get(c), bound, withTable) || (depth == 0 && joinTables.get(c).isEmpty())) {
+                    atDepth.add(whereFilter(joinConditions.get(c), columnNames));
+                }
+            }
+            checks.add(atDepth);
+            bound = withTable;
+        }
+
+        // Nested loop, positions holds the row of each table (in listed order) in the current row
+        Object[] row = new Object[columnNames.size()];
+        List<Object> rowView = Arrays.asList(row);
+        int[] positions = new int[tables.size()];
+        int[] next = new int[tables.size()]; // Next row to try at each depth
         List<List<Object>> result = new ArrayList<>();
-        result.add(new ArrayList<>());
-        
-        for (List<List<Object>> table : tables) {
-            List<List<Object>> temp = new ArrayList<>();
-            for (List<Object> currentCombo : result) {
-                for (List<Object> record : table) {
-                    List<Object> newCombo = new ArrayList<>(currentCombo);
-                    newCombo.addAll(record); // Appends record elements in order
-                    temp.add(newCombo);
+        List<int[]> resultPositions = new ArrayList<>();
+        int depth = 0;
+        while (depth >= 0) {
+            if (depth == tables.size()) {
+                result.add(new ArrayList<>(rowView));
+                resultPositions.add(positions.clone());
+                depth--;
+                continue;
+            }
+            int t = order[depth];
+            List<List<Object>> tableRows = rows.get(t);
+            boolean matched = false;
+            while (!matched && next[depth] < tableRows.size()) {
+                positions[t] = next[depth]++;
+                List<Object> tableRow = tableRows.get(positions[t]);
+                for (int i = 0; i < tableRow.size(); i++) {
+                    row[offsets[t] + i] = tableRow.get(i);
+                }
+                matched = checks.get(depth).stream().allMatch(check -> check.test(rowView));
+            }
+            if (matched) {
+                depth++;
+                if (depth < tables.size()) {
+                    next[depth] = 0;
                 }
+            } else {
+                depth--;
+            }
+        }
+
+        // Back in cartesian product order
+        Integer[] byPosition = new Integer[result.size()];
+        for (int i = 0; i < byPosition.length; i++) {
+            byPosition[i] = i;
+        }
+        Arrays.sort(byPosition, (a, b) -> Arrays.compare(resultPositions.get(a), resultPositions.get(b)));
+        List<List<Object>> ordered = new ArrayList<>(result.size());
+        for (int i : byPosition) {
+            ordered.add(result.get(i));
+        }
+        return ordered;
+    }
+
+    // True if a condition reading the given tables can first be checked once withTable are bound
+    private static boolean isCompletedBy(BitSet read, BitSet bound, BitSet withTable) {
+        BitSet missing = (BitSet) read.clone();
+        missing.andNot(withTable);
+        BitSet before = (BitSet) read.clone();
+        before.andNot(bound);
+        return !read.isEmpty() && missing.isEmpty() && !before.isEmpty();
+    }
+
+    // Adds the and-ed conditions of a where tree to conditions
+    private static void splitConditions(Node tree, List<Node> conditions) {
+        if (tree == null) {
+            return;
+        }
+        if (tree.getValue().equals("and")) {
+            splitConditions(tree.getLeftLeaf(), conditions);
+            splitConditions(tree.getRightLeaf(), conditions);
+        } else {
+            conditions.add(tree);
+        }
+    }
+
+    private static Node and(Node left, Node right) {
+        Node node = new Node("and");
+        node.setLeftLeaf(left);
+        node.setRightLeaf(right);
+        return node;
+    }
+
+    // Marks the tables whose columns a condition reads, with the name resolution of the where tree
+    private static void addTablesRead(Node condition, List<String> columnNames, int[] offsets, BitSet read) {
+        if (condition.getLeftLeaf() != null || condition.getRightLeaf() != null) {
+            if (condition.getLeftLeaf() != null) addTablesRead(condition.getLeftLeaf(), columnNames, offsets, read);
+            if (condition.getRightLeaf() != null) addTablesRead(condition.getRightLeaf(), columnNames, offsets, read);
+            return;
+        }
+        String name = condition.getValue();
+        for (int column = 0; column < columnNames.size(); column++) {
+            String columnName = columnNames.get(column);
+            if (columnName.equals(name) || columnName.substring(columnName.indexOf('.') + 1).equals(name)) {
+                int table = 0;
+                while (offsets[table + 1] <= column) {
+                    table++;
+                }
+                read.set(table);
+                return;
+            }
+        }
+    }
+
+    private static List<List<Object>> cartesianProduct(List<List<List<Object>>> tables, Predicate<List<Object>> filter) {
+        List<List<Object>> result = new ArrayList<>();
+        if (tables.isEmpty()) {
+            return result;
+        }
+        for (List<List<Object>> table : tables) {
+            if (table.isEmpty()) {
+                return result;
+            }
+        }
+
+        int[] positions = new int[tables.size()]; // Row of each table in the current combination
+        while (true) {
+            List<Object> combo = new ArrayList<>();
+            for (int t = 0; t < tables.size(); t++) {
+                combo.addAll(tables.get(t).get(positions[t])); // Appends record elements in order
+            }
+            if (filter == null || filter.test(combo)) {
+                result.add(combo);
+            }
+
+            // Next combination, the last table varies fastest
+            int t = tables.size() - 1;
+            while (t >= 0 && ++positions[t] == tables.get(t).size()) {
+                positions[t--] = 0;
+            }
+            if (t < 0) {
+                return result;
             }
-            result = temp;
         }
-        
-        return result;
     }
 
     private static Node buildWhereTree(ArrayList<String> conditionals){
@@ -844,23 +1364,25 @@ public class parser {
 
     }
 
-    //Evaluates the where tree taking in a 2-D array of the cartesianed tables requested
-    public static List<List<Object>> evaluateWhereTree(List<List<Object>> cartesianedRecords, List<String> columnNames, Node tree){
-        List<List<Object>> validRecords = new ArrayList<>();
-
-        for(List<Object> combinedRecords : cartesianedRecords){
-            try{
-                if(tree.evaluate(combinedRecords, columnNames)){
-                    validRecords.add(combinedRecords);
-                }
+    // Row filter for the where tree, null if there is none. The first error evaluating the
+    // tree is printed and no row matches after it.
+    private static Predicate<List<Object>> whereFilter(Node tree, List<String> columnNames) {
+        if (tree == null) {
+            return null;
+        }
+        boolean[] failed = { false };
+        return row -> {
+            if (failed[0]) {
+                return false;
             }
-            catch(Exception e){
+            try {
+                return tree.evaluate(row, columnNames);
+            } catch (Exception e) {
                 System.out.println(e.getMessage());
-                break;
+                failed[0] = true;
+                return false;
             }
-        }
-        
-        return validRecords;
+        };
     }
 
     // Note: This prints the table: listToPrint when given the specific select conditions. Takes on 
@@ -1053,6 +1575,23 @@ public class parser {
             }
         }
     
+        // Without a where every row goes, the table is emptied without reading it
+        if (whereTree == null) {
+            storageManager.truncate(table);
+            System.out.println("SUCCESS\n");
+            return;
+        }
+
+        // Columnar tables write the blocks holding matching rows again without them
+        if (table.isColumnar()) {
+            table.getColumnStore().rewrite(whereTree, columnNames, whereFilter(whereTree, columnNames), row -> {
+                table.recordDeleted(row);
+                return null;
+            });
+            System.out.println("SUCCESS\n");
+            return;
+        }
+
         // Use indexing. B+ Tree tracks exact (PageID, IndexInPage) for each key so u can j delete record using the ptr
         if (Main.getIndexing()) {
             Attribute pkAttr = null;
@@ -1072,10 +1611,10 @@ public class parser {
                 // Check if WHERE clause targets the PK 
                 if (pkCond.equals(pkAttr.getName()) || pkCond.equals(tableName + "." + pkAttr.getName())) {
                     Object key = parseValueBasedOnType(value, pkAttr);
-                    BPlusTree index = Main.getBPlusTrees().get(table.getTableID());
+                    BPlusTree index = Main.getBPlusTree(table.getTableID());
 
                     if (index != null) {
-                        Record deleted = index.delete(key);
+                        Record deleted = storageManager.deleteByKey(table, key);
                         if (deleted != null) {
                             System.out.println("SUCCESS\n");
                             return; 
@@ -1088,44 +1627,21 @@ public class parser {
             }
         }
     
-        // Not using indexing...Reg full scan delete
-        List<Page> pages = storageManager.getPages(table.getTableID());
-        List<List<Object>> allRecordData = new ArrayList<>();
-        for (Page page : pages) {
-            for (Record record : page.getRecords()) {
-                allRecordData.add(record.getData());
-            }
-        }
-    
-        List<List<Object>> matchingRecords = whereTree != null
-            ? evaluateWhereTree(allRecordData, columnNames, whereTree)
-            : allRecordData; // If no WHERE, delete all
-    
-        for (Page page : pages) {
-            List<Record> records = page.getRecords();
-            int i = 0;
-    
-            while (i < records.size()) {
-                Record record = records.get(i);
-                List<Object> recordData = record.getData();
-    
-                if (rowMatches(recordData, matchingRecords)) {
-                    page.deleteRecord(record, i);
-                    if (page.getRecordCount() == 0) {
-                        table.dropPage(page.getPageId());
-                        break; // exit this page
-                    }
-                } else {
-                    i++;
-                }
-            }
-        }
+        // Not using indexing...Reg full scan delete, pages ruled out by their zone map are skipped.
+        // The where tree is checked once per record as the pages are streamed, and each page
+        // has its matching records taken out at once
+        boolean[] whereColumns = getReferencedColumns(table, List.of(), Arrays.asList(whereClause.split("\\s+")));
+        storageManager.deleteWhere(table, whereTree, columnNames, whereColumns, whereFilter(whereTree, columnNames));
     
         System.out.println("SUCCESS\n");
     }
     
     
 
+    // update <table> set <column> = <expression>[, <column> = <expression> ...] [where <condition>];
+    // The pages the where tree may match are streamed once and the matching records changed in
+    // place, see StorageManager.updateWhere. An update of key, unique or notnull columns checks
+    // every matching row first, so it is all or nothing.
     private static void update(String normalizedStatement, Catalog catalog, StorageManager storageManager){
         normalizedStatement = normalizedStatement.trim();
         if (normalizedStatement.endsWith(";")) {
@@ -1139,21 +1655,10 @@ public class parser {
             System.err.println("Missing SET clause.");
             return;
         }
-        if (whereIndex == -1) {
-            System.err.println("Missing WHERE clause.");
-            return;
-        }
 
         String tableName = normalizedStatement.substring(7, setIndex).trim(); 
-        String setClause = normalizedStatement.substring(setIndex + 5, whereIndex).trim(); 
-        String whereClause = normalizedStatement.substring(whereIndex + 7).trim();        
-
-        String[] assignment = setClause.split("=", 2);
-        String columnName = assignment[0].trim();
-        String valueStr = assignment[1].trim();
-        if (valueStr.startsWith("\"") && valueStr.endsWith("\"")) {
-            valueStr = valueStr.substring(1, valueStr.length() - 1); // Remove quotes
-        }
+        String setClause = normalizedStatement.substring(setIndex + 5, whereIndex == -1 ? normalizedStatement.length() : whereIndex).trim();
+        String whereClause = whereIndex == -1 ? null : normalizedStatement.substring(whereIndex + 7).trim();
 
         //Get current table 
         Table tableToUpdate = catalog.getTableByName(tableName);
@@ -1168,226 +1673,129 @@ public class parser {
             columnNames.add(tableName + "." + attr.getName());
         }
 
-        //Find the attribute to update
-        Attribute[] attributes = tableToUpdate.getAttributes();
-        int columnIndex = -1;
-        for (int i = 0; i < attributes.length; i++) {
-            if (attributes[i].getName().equalsIgnoreCase(columnName)) {
-                columnIndex = i;
-                break;
+        // Parse the assignments, split on the commas outside quotes
+        List<Assignment> assignments = new ArrayList<>();
+        boolean[] assigned = new boolean[tableToUpdate.getAttributesCount()];
+        for (String text : setClause.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)")) {
+            Assignment assignment = Assignment.parse(text, tableToUpdate);
+            if (assignment == null) {
+                System.out.println("ERROR\n");
+                return;
             }
+            if (assigned[assignment.getColumn()]) {
+                System.err.println("Column assigned twice: " + assignment.getAttribute().getName());
+                System.out.println("ERROR\n");
+                return;
+            }
+            assigned[assignment.getColumn()] = true;
+            assignments.add(assignment);
         }
-        if (columnIndex == -1) {
-            System.err.println("Column not found: " + columnName);
-            return;
-        }  
-        Attribute targetAttr = attributes[columnIndex];
-        
-        //Parse the new value based on attribute type
-        Object newValue = parseValueBasedOnType(valueStr, targetAttr);
-        if (newValue == null) {
-            System.err.println("Invalid value for attribute type: " + targetAttr.getType());
-            return;
-        }
-
-        //Get all pages.
-        List<Page> pages = storageManager.getPages(tableToUpdate.getTableID());
 
         //Parse where condition into tree
-        ArrayList<String> conditionTokens = new ArrayList<>(Arrays.asList(whereClause.split("\\s+")));
-        Node conditionTree = buildWhereTree(conditionTokens);
-        if (conditionTree == null) {
-            System.err.println("Error parsing WHERE clause.");
-            return;
-        }
-
-        List<List<Object>> allRecordData = new ArrayList<>();
-        for (Page page : pages) {
-            for (Record record : page.getRecords()) {
-                allRecordData.add(record.getData());
+        Node conditionTree = null;
+        if (whereClause != null) {
+            ArrayList<String> conditionTokens = new ArrayList<>(Arrays.asList(whereClause.split("\\s+")));
+            conditionTree = buildWhereTree(conditionTokens);
+            if (conditionTree == null) {
+                System.err.println("Error parsing WHERE clause.");
+                return;
             }
         }
+        Predicate<List<Object>> filter = whereFilter(conditionTree, columnNames);
 
-        List<List<Object>> whereTable = evaluateWhereTree(allRecordData, columnNames, conditionTree);
-
+        // Out of line varchars are only loaded for the columns the where and the assignments use
+        boolean[] columns = whereClause == null ? new boolean[tableToUpdate.getAttributesCount()]
+                : getReferencedColumns(tableToUpdate, List.of(), Arrays.asList(whereClause.split("\\s+")));
+        for (Assignment assignment : assignments) {
+            columns[assignment.getColumn()] = true;
+            assignment.markReadColumns(columns);
+        }
 
-        //Do when indexing is on
-        if (Main.getIndexing()) {
+        if (!checkAssignments(tableToUpdate, assignments, conditionTree, columnNames, columns, filter, storageManager)) {
+            System.out.println("ERROR\n");
+            return;
+        }
 
-            //Idenfity primary key attribute
-            Attribute pkAttr = null;
-            for (Attribute attr : tableToUpdate.getAttributes()) {
-                if (attr.isPrimaryKey()) {
-                pkAttr = attr;
-                break;
-               }
+        // Every expression sees the row as it was before the update
+        UnaryOperator<List<Object>> change = row -> {
+            List<Object> newRow = new ArrayList<>(row);
+            for (Assignment assignment : assignments) {
+                newRow.set(assignment.getColumn(), assignment.evaluate(row));
             }
-
-            if (pkAttr == null) {
-                System.err.println("No primary key found for table: " + tableName);
-            } else if (conditionTree != null && conditionTree.getValue().equals("=")) {
-                String pkCond = conditionTree.getLeftLeaf().getValue();
-                String value = conditionTree.getRightLeaf().getValue().replaceAll("^\"|\"$", "");
-
-                // Check if WHERE clause targets the PK 
-                if (pkCond.equals(pkAttr.getName()) || pkCond.equals(tableName + "." + pkAttr.getName())) {
-                    Object key = parseValueBasedOnType(value, pkAttr);
-                    BPlusTree index = Main.getBPlusTrees().get(tableToUpdate.getTableID());
-
-                    if (index != null) {
-                        Record record = index.delete(key);
-                        if (record != null) {
-                            Object oldVal = record.getData().get(columnIndex);
-
-                            // Only update if value actually changes
-                            if (!oldVal.equals(newValue)) {
-                                record.getData().set(columnIndex, newValue);
-                                record.setBitMapValue(columnIndex, newValue == null ? 1 : 0);
-
-                                // If we're updating the PK, use the new key; otherwise reuse the same
-                                // determine if primary key changed
-                                int pkIndex = -1;
-                                for (int i = 0; i < attributes.length; i++) {
-                                    if (attributes[i].getName().equalsIgnoreCase(pkAttr.getName())) {
-                                        pkIndex = i;
-                                        break;
-                                    }
-                                }
-                                Object newKey = (columnIndex == pkIndex) ? newValue : key;
-
-                                index.update(record, newKey, key);
-                            }
-                            System.out.println("SUCCESS\n");
-                            return;
-                        } else {
-                            System.out.println("No matching record found to update.\n");
-                            return;
-                        }
-                    }
+            return newRow;
+        };
+
+        // Columnar tables write the blocks holding matching rows again
+        if (tableToUpdate.isColumnar()) {
+            tableToUpdate.getColumnStore().rewrite(conditionTree, columnNames, filter, row -> {
+                List<Object> newRow = change.apply(row);
+                for (Assignment assignment : assignments) {
+                    int column = assignment.getColumn();
+                    tableToUpdate.valueUpdated(column, row.get(column), newRow.get(column));
                 }
-            }
+                return newRow;
+            });
+            System.out.println("SUCCESS\n");
+            return;
         }
-        
-        //Do when indexing is off
-        for (Page page : pages) {
-            List<Record> records = page.getRecords();
-            for (Record record : records) {
-                System.out.println(record.getData());
-            }
+
+        // Records of an ordered table whose primary key changed come back out of their pages
+        List<Record> moved = storageManager.updateWhere(tableToUpdate, conditionTree, columnNames, columns, filter, change);
+        if (!moved.isEmpty() && !insertRows(tableToUpdate, moved, catalog, storageManager)) {
+            return;
         }
 
-        //Apply Update
-        for (Page page : pages) {
-            List<Record> records = page.getRecords();
-            for (Record record : records) {
+        System.out.println("SUCCESS\n");
+    }
 
-                //If current record don't satisfy where condition, skip
-                if (!rowMatches(record.getData(), whereTable)) {
-                    continue;
+    // Checks the assignments to key, unique and notnull columns against every matching row: no
+    // null in a key or notnull column, and no value of a key or unique column twice, among the
+    // new values or in a row the update leaves alone. Prints the error and returns false if one fails.
+    private static boolean checkAssignments(Table table, List<Assignment> assignments, Node where, List<String> columnNames,
+                                            boolean[] columns, Predicate<List<Object>> filter, StorageManager storageManager) {
+        List<Assignment> constrained = new ArrayList<>();
+        for (Assignment assignment : assignments) {
+            Attribute attr = assignment.getAttribute();
+            if (attr.isPrimaryKey() || attr.isUnique() || attr.isnonNull()) {
+                constrained.add(assignment);
+            }
+        }
+        if (constrained.isEmpty()) {
+            return true;
+        }
+
+        List<List<Object>> rows = storageManager.getRecords(table.getTableID(), columns, where, columnNames, filter);
+        for (Assignment assignment : constrained) {
+            Attribute attr = assignment.getAttribute();
+            int column = assignment.getColumn();
+            Set<Object> oldValues = new HashSet<>();
+            Set<Object> newValues = new HashSet<>();
+            for (List<Object> row : rows) {
+                Object newValue = assignment.evaluate(row);
+                if (newValue == null && (attr.isPrimaryKey() || attr.isnonNull())) {
+                    System.err.println(attr.isPrimaryKey() ? "Primary Key cannot be assign Null Value"
+                                                           : "Attribute " + attr.getName() + " cannot be null");
+                    return false;
                 }
-
-                //Verify that new value is unique if attribute is primary key
-                if(targetAttr.isPrimaryKey()){
-                    if(newValue == null){
-                        System.err.println("Primary Key cannot be assign Null Value");
-                    }
-                    for (Page otherPage : pages) {
-                        for (Record otherRecord : otherPage.getRecords()) {
-                            if (otherRecord == record) {
-                                continue;
-                            }
-                            Object otherVal = otherRecord.getData().get(columnIndex);
-                            if(newValue.equals(otherVal)){
-                                System.err.println("Duplicate primarykey");
-                                System.out.println("ERROR\n");
-                                return;
-                            }
-                        }
-                    }
-                } 
-
-                //Verify that new value is unique if attribute is declared unique
-                if(targetAttr.isUnique()){
-                    for (Page otherPage : pages) {
-                        for (Record otherRecord : otherPage.getRecords()) {
-                            if (otherRecord == record) {
-                                continue;
-                            }
-                            Object otherVal = otherRecord.getData().get(columnIndex);
-                            if(newValue.equals(otherVal)){
-                                System.err.println("Value already exist in this unique attribute");
-                                System.out.println("ERROR\n");
-                                return;
-                            }
-                        }
-                    }
-                } 
-                
-                // Update the record's value for the target column.
-                Object oldVal = record.getData().get(columnIndex);
-                int sizeDiff = 0;
-                if (oldVal != null) {
-                    sizeDiff -= getAttributeSize(oldVal, targetAttr);
+                if (!attr.isPrimaryKey() && !attr.isUnique()) {
+                    continue;
                 }
-                record.getData().set(columnIndex, newValue);
-                record.setBitMapValue(columnIndex, newValue == null ? 1 : 0);
-                if (newValue != null) {
-                    sizeDiff += getAttributeSize(newValue, targetAttr);
+                if (row.get(column) != null) {
+                    oldValues.add(row.get(column));
                 }
-
-                // Adjust the page's size to account for the change in the record's size.
-                page.setSize(page.getSize() + sizeDiff);
-                page.setUpdated(true);
-
-                // If the updated page becomes overfull, call the storage manager to split the page.
-                if (page.isOverfull()) {
-                    storageManager.splitPage(page);
+                if (newValue != null && !newValues.add(newValue)) {
+                    System.err.println(attr.isPrimaryKey() ? "Duplicate primarykey" : "Value already exist in this unique attribute");
+                    return false;
                 }
-
-            }
-        }
-
-        for (Page page : pages) {
-            List<Record> records = page.getRecords();
-            for (Record record : records) {
-                System.out.println(record.getData());
             }
-        }
-
-        System.out.println("SUCCESS\n");
-    }
-
-    /**
-    * Helper method to calculate the size (in bytes) of a given attribute value.
-    * For fixed-size types, it may use the attribute's declared size.
-    * For variable-length types like varchar, it calculates the actual byte length plus overhead.
-    */
-    private static int getAttributeSize(Object value, Attribute attr) {
-        if (value == null) return 0;
-        switch (attr.getType().toLowerCase()) {
-            case "integer":
-                return Integer.BYTES;
-            case "double":
-                return Double.BYTES;
-            case "boolean":
-                return 1;
-            case "char":
-                return attr.getSize(); // Assuming size is set correctly for fixed-length char.
-            case "varchar":
-                String s = (String) value;
-                return s.getBytes().length + Integer.BYTES; // Include 4 bytes for length storage.
-            default:
-                return 0;
-        }
-    }
-
-    private static boolean rowMatches(List<Object> recordData, List<List<Object>> filteredData) {
-        for (List<Object> match : filteredData) {
-            if (recordData.equals(match)) {
-                return true;
+            for (Object newValue : newValues) {
+                if (!oldValues.contains(newValue) && table.getUniqueIndex(column).contains(newValue)) {
+                    System.err.println(attr.isPrimaryKey() ? "Duplicate primarykey" : "Value already exist in this unique attribute");
+                    return false;
+                }
             }
         }
-        return false;
+        return true;
     }
 
 
@@ -1405,31 +1813,30 @@ public class parser {
             case "<quit>":
                 System.out.println("\nSafely shutting down the database...");
                 System.out.println("Purging page buffer...");
-                Main.writeBuffer();
-                try {
-                    System.out.println("Saving catalog...\n");
-                    Main.writeCatalogToFile(dbDirectory + "/catalog.bin");
-                } catch (IOException e) {
-                    System.err.println("Error while saving catalog: " + e.getMessage());
-                }
+                System.out.println("Saving catalog...\n");
+                Main.checkpoint();
                 System.out.println("Exiting the database...\n");
                 System.exit(0);
                 break;
 
             case "create":
                 createTable(statement, catalog);
+                storageManager.commit(true);
                 break;
 
             case "drop":
                 dropTable(statement, catalog);
+                storageManager.commit(true);
                 break;
 
             case "alter":
                 alterTable(statement, catalog, storageManager);
+                storageManager.commit(true);
                 break;
 
             case "insert":
                 insertInto(statement, catalog, storageManager);
+                storageManager.commit(false);
                 break;
 
             case "select":
@@ -1438,10 +1845,30 @@ public class parser {
 
             case "delete":
                 delete(statement, catalog, storageManager);
+                storageManager.commit(false);
                 break;
 
             case "update":
                 update(statement, catalog, storageManager);
+                storageManager.commit(false);
+                break;
+
+            case "vacuum":
+                vacuum(statement, catalog, storageManager);
+                storageManager.commit(false);
+                break;
+
+            case "truncate":
+                truncate(statement, catalog, storageManager);
+                storageManager.commit(false);
+                break;
+
+            case "analyze":
+                analyze(statement, catalog);
+                break;
+
+            case "set":
+                set(statement);
                 break;
 
             case "display":